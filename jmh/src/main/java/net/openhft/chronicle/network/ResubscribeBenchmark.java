@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package net.openhft.chronicle.network;
+
+import net.openhft.chronicle.core.Jvm;
+import net.openhft.chronicle.network.connection.AbstractAsyncSubscription;
+import net.openhft.chronicle.network.connection.SocketAddressSupplier;
+import net.openhft.chronicle.network.connection.TcpChannelHub;
+import net.openhft.chronicle.threads.EventGroup;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.WireType;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to re-establish the connection, and resend all the subscriptions,
+ * after the connection is dropped, as the number of subscriptions is increased.
+ */
+@State(Scope.Benchmark)
+public class ResubscribeBenchmark {
+
+    public static final WireType WIRE_TYPE = WireType.BINARY;
+
+    @Param({"1000", "10000", "50000"})
+    public int subscriptions;
+
+    private DroppableTcpChannelHub hub;
+    private EventGroup eg;
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ResubscribeBenchmark.class.getSimpleName())
+                .warmupIterations(5)
+                .measurementIterations(20)
+                .forks(1)
+                .mode(Mode.SingleShotTime)
+                .timeUnit(TimeUnit.MILLISECONDS)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        String desc = "host.port";
+        TCPRegistry.createServerSocketChannelFor(desc);
+        eg = new EventGroup(true);
+        eg.start();
+        createServer(desc, eg);
+        hub = new DroppableTcpChannelHub(eg, SocketAddressSupplier.uri(desc));
+
+        for (int i = 0; i < subscriptions; i++) {
+            hub.subscribe(new AbstractAsyncSubscription(hub, "/subscription/" + i, "benchmark") {
+                @Override
+                public void onSubscribe(@NotNull WireOut wireOut) {
+                    wireOut.writeEventName(() -> "subscribe").text("");
+                }
+
+                @Override
+                public void onConsumer(@NotNull WireIn inWire) {
+                    inWire.readDocument(null, d -> {
+                    });
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println("\nresubscribed " + hub.lastResubscribeCount() + " in " +
+                hub.lastResubscribeTimeNanos() / 1000 + " us");
+        eg.stop();
+        hub.close();
+        TcpChannelHub.closeAllHubs();
+        TCPRegistry.reset();
+    }
+
+    @Benchmark
+    public long reconnect() {
+        final long reconnects = hub.reconnects();
+        hub.drop();
+        while (hub.reconnects() == reconnects)
+            Jvm.pause(1);
+        return hub.lastResubscribeTimeNanos();
+    }
+
+    private void createServer(String desc, EventGroup eg) throws IOException {
+        AcceptorEventHandler eah = new AcceptorEventHandler(desc,
+                () -> new WireEchoRequestHandler(WIRE_TYPE), VanillaSessionDetails::new, 0, 0);
+        eg.addHandler(eah);
+        SocketChannel sc = TCPRegistry.createSocketChannel(desc);
+        sc.configureBlocking(false);
+    }
+
+    static class DroppableTcpChannelHub extends TcpChannelHub {
+        DroppableTcpChannelHub(EventGroup eg, SocketAddressSupplier socketAddressSupplier) {
+            super(null, eg, WIRE_TYPE, "", socketAddressSupplier, false);
+        }
+
+        void drop() {
+            closeSocket();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.openhft.chronicle.network;
+
+import net.openhft.chronicle.network.connection.StripedTcpChannelHub;
+import net.openhft.chronicle.network.connection.TcpChannelHub;
+import net.openhft.chronicle.threads.EventGroup;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the request/response throughput of many client threads, as the number of
+ * connections they are striped across is increased.
+ */
+@State(Scope.Benchmark)
+public class StripedChannelHubBenchmark {
+
+    public static final WireType WIRE_TYPE = WireType.BINARY;
+    private static final int THREADS = Integer.getInteger("threads", 16);
+
+    @Param({"1", "2", "4", "8"})
+    public int connections;
+
+    private StripedTcpChannelHub stripedHub;
+    private EventGroup eg;
+
+    public static void main(String[] args) throws RunnerException {
+        int time = Boolean.getBoolean("longTest") ? 30 : 2;
+        System.out.println("measurementTime: " + time + " secs");
+        Options opt = new OptionsBuilder()
+                .include(StripedChannelHubBenchmark.class.getSimpleName())
+                .warmupIterations(5)
+                .forks(1)
+                .threads(THREADS)
+                .mode(Mode.Throughput)
+                .measurementTime(TimeValue.seconds(time))
+                .timeUnit(TimeUnit.SECONDS)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        String desc = "host.port";
+        TCPRegistry.createServerSocketChannelFor(desc);
+        eg = new EventGroup(true);
+        eg.start();
+        createServer(desc, eg);
+        stripedHub = new StripedTcpChannelHub(null, eg, WIRE_TYPE, "", new String[]{desc},
+                connections, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        eg.stop();
+        stripedHub.close();
+        TcpChannelHub.closeAllHubs();
+        TCPRegistry.reset();
+    }
+
+    @Benchmark
+    public String test() {
+        final TcpChannelHub hub = stripedHub.hub();
+
+        // create the message to send
+        final long tid = hub.nextUniqueTransaction(System.currentTimeMillis());
+
+        // write the message into the hub's outWire, which lock() then writes to the socket
+        hub.lock(() -> {
+            final Wire wire = hub.outWire();
+            wire.writeDocument(true, w -> w.writeEventName(() -> "tid").int64(tid));
+            wire.writeDocument(false, w -> w.writeEventName(() -> "payload").text("<my message>"));
+        });
+
+        // read the reply from the socket ( timeout after 1 second )
+        Wire reply = hub.proxyReply(TimeUnit.SECONDS.toMillis(1), tid);
+
+        String[] text = {null};
+        // read the reply and check the result
+        reply.readDocument(null, data -> {
+            text[0] = data.readEventName(new StringBuilder()).text();
+        });
+        return text[0];
+    }
+
+    private void createServer(String desc, EventGroup eg) throws IOException {
+        AcceptorEventHandler eah = new AcceptorEventHandler(desc,
+                () -> new WireEchoRequestHandler(WIRE_TYPE), VanillaSessionDetails::new, 0, 0);
+        eg.addHandler(eah);
+        SocketChannel sc = TCPRegistry.createSocketChannel(desc);
+        sc.configureBlocking(false);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package net.openhft.chronicle.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.connection.RingWireOutPublisher;
+import net.openhft.chronicle.network.connection.WireOutPublisher;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compares the cost of publishing a message with the queue of {@link WireOutPublisher}, and the
+ * pre-serialised ring of {@link RingWireOutPublisher}, as the number of publishing threads
+ * increases. Each thread adds a message, and whichever thread gets the lock plays the part of
+ * the event loop, writing the waiting messages to the output buffer.
+ */
+@State(Scope.Benchmark)
+public class WireOutPublisherBenchmark {
+
+    public static final WireType WIRE_TYPE = WireType.BINARY;
+    private static final Runnable NO_READ = () -> {
+    };
+
+    @Param({"queue", "ring"})
+    public String publisherType;
+
+    private WireOutPublisher publisher;
+    private Wire out;
+    private final ReentrantLock eventLoop = new ReentrantLock();
+
+    public static void main(String[] args) throws RunnerException {
+        int time = Boolean.getBoolean("longTest") ? 30 : 2;
+        System.out.println("measurementTime: " + time + " secs");
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Options opt = new OptionsBuilder()
+                    .include(WireOutPublisherBenchmark.class.getSimpleName())
+                    .warmupIterations(5)
+                    .forks(1)
+                    .threads(threads)
+                    .mode(Mode.AverageTime)
+                    .measurementTime(TimeValue.seconds(time))
+                    .timeUnit(TimeUnit.NANOSECONDS)
+                    .build();
+
+            new Runner(opt).run();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        publisher = "ring".equals(publisherType)
+                ? new RingWireOutPublisher(1024, 256, WIRE_TYPE)
+                : new WireOutPublisher();
+        final Bytes bytes = Bytes.elasticByteBuffer();
+        bytes.ensureCapacity(1 << 20);
+        out = WIRE_TYPE.apply(bytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        final long tid = Thread.currentThread().getId();
+        final double price = System.nanoTime() * 1e-6;
+        publisher.add(w -> {
+            w.writeDocument(true, d -> d.write(() -> "tid").int64(tid));
+            w.writeDocument(false, d -> d.writeEventName(() -> "price").float64(price));
+        });
+
+        if (eventLoop.tryLock()) {
+            try {
+                out.bytes().clear();
+                publisher.applyAction(out, NO_READ);
+            } finally {
+                eventLoop.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The server side of csp interning, there is one per connection. When the meta data of a
+ * request holds {@code CoreFields.internCsp}, the handler calls {@link #intern(CharSequence)}
+ * with its csp, and writes the cid returned in the meta data of the reply, as {@code
+ * CoreFields.cid} straight after the tid, see {@code WireTcpHandler.writeInternedCid}. The client
+ * then sends only the cid in later requests, which the handler turns back into the csp with
+ * {@link #csp(long)}, without parsing or comparing the text of the csp.
+ * <p>
+ * The cids are only valid for the connection, they start at {@code firstCid}, which should be
+ * chosen so they do not clash with any other cids the server hands out, and a cid is never
+ * reused.
+ * <p>
+ * The interner holds at most {@code capacity} csps, so a client which uses a great many csps
+ * can not run the server out of memory. When it is full, the csp used least recently is evicted
+ * to make room. The client is told the cid it should no longer use, with {@code
+ * CoreFields.evictedCid} after the new cid, see {@link #pollEvicted()}, and until then the
+ * evicted cid is still resolved, for the requests already sent with it. The last {@code
+ * capacity} evicted cids are held for this.
+ */
+public class CspInterner {
+
+    private static final int CAPACITY = Integer.getInteger("CspInterner.capacity", 1024);
+
+    private final long firstCid;
+    private final int capacity;
+    // the cid of each csp, in the order they were last used
+    private final LinkedHashMap<String, Long> cids = new LinkedHashMap<>(16, 0.75f, true);
+    // the csp of each cid, including those evicted which are still held
+    private final Map<Long, String> csps = new HashMap<>();
+    // the cids evicted, oldest first, which are still resolved
+    private final ArrayDeque<Long> evicted = new ArrayDeque<>();
+    // the cids evicted which the client has not been told of
+    private final ArrayDeque<Long> toReport = new ArrayDeque<>();
+    private long nextCid;
+
+    /**
+     * @param firstCid the cid given to the first csp
+     */
+    public CspInterner(long firstCid) {
+        this(firstCid, CAPACITY);
+    }
+
+    /**
+     * @param firstCid the cid given to the first csp
+     * @param capacity the most csps held
+     */
+    public CspInterner(long firstCid, int capacity) {
+        if (firstCid <= 0)
+            throw new IllegalArgumentException("firstCid=" + firstCid);
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity=" + capacity);
+        this.firstCid = firstCid;
+        this.capacity = capacity;
+        this.nextCid = firstCid;
+    }
+
+    /**
+     * @param csp the csp of the request
+     * @return the cid of the csp, assigning one if it has none, which may evict another
+     */
+    public long intern(@NotNull CharSequence csp) {
+        final String cspString = csp.toString();
+        final Long cid = cids.get(cspString);
+        if (cid != null)
+            return cid;
+
+        if (cids.size() >= capacity)
+            evictEldest();
+
+        final long newCid = nextCid++;
+        cids.put(cspString, newCid);
+        csps.put(newCid, cspString);
+        return newCid;
+    }
+
+    private void evictEldest() {
+        final Iterator<Long> iterator = cids.values().iterator();
+        final Long cid = iterator.next();
+        iterator.remove();
+        evicted.add(cid);
+        toReport.add(cid);
+        if (evicted.size() > capacity) {
+            final Long oldest = evicted.poll();
+            csps.remove(oldest);
+            toReport.remove(oldest);
+        }
+    }
+
+    /**
+     * @param cid a cid returned by {@link #intern(CharSequence)}
+     * @return the csp of the cid, or null if the cid was not assigned by this interner, or was
+     * evicted too long ago
+     */
+    @Nullable
+    public String csp(long cid) {
+        if (cid < firstCid || cid >= nextCid)
+            return null;
+        final String csp = csps.get(cid);
+        // counts as a use of the csp, so it is not the next evicted
+        if (csp != null)
+            cids.get(csp);
+        return csp;
+    }
+
+    /**
+     * @return a cid which has been evicted, which the client should be told to stop using, or 0
+     * if there are none
+     */
+    public long pollEvicted() {
+        final Long cid = toReport.poll();
+        return cid == null ? 0 : cid;
+    }
+
+    /**
+     * @return the number of csps interned, not including those evicted
+     */
+    public int size() {
+        return cids.size();
+    }
+}
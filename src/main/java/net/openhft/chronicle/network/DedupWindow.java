@@ -0,0 +1,195 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.core.util.Time;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The server side of exactly once requests. A client sends a request which is not idempotent
+ * with an idempotency key in its meta data, see {@code CoreFields.idempotencyKey}, and uses the
+ * same key if it has to resend the request after a failover. The server records the reply to
+ * each key, and if a key is seen again replays the recorded reply rather than processing the
+ * request a second time.
+ * <p>
+ * A handler would typically, after writing the meta data of its reply with the tid of this
+ * attempt, call {@link #replay(long, Bytes)} and only if that returns false process the request
+ * and then {@link #record(long, Bytes, long)} the reply it wrote, or {@link #abandon(long)} the
+ * key if it could not. The tid is not recorded, as it changes with each attempt.
+ * <p>
+ * The first {@link #replay(long, Bytes)} of a key reserves it, so an attempt which arrives while
+ * the first is still being processed, on another connection, waits for its reply rather than
+ * processing the request as well.
+ * <p>
+ * The window is bounded by both the number of replies and how long they are held for, it must
+ * be longer than the time it takes a client to fail over and resend. A single window should be
+ * shared by all the connections to a server, as the resent request usually arrives on a new
+ * connection.
+ */
+public class DedupWindow {
+
+    private final int maxEntries;
+    private final long windowMs;
+    private final LinkedHashMap<Long, Reply> replies = new LinkedHashMap<>();
+    private long replays;
+
+    /**
+     * @param maxEntries the most replies to hold
+     * @param windowMs   how long a reply is held for
+     */
+    public DedupWindow(int maxEntries, long windowMs) {
+        this.maxEntries = maxEntries;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * @param key the idempotency key of the request
+     * @param out the bytes to write the recorded reply to
+     * @return true if the request has already been processed, and its reply has been written to
+     * {@code out}, otherwise the key is reserved for the caller, which must process the request
+     * and then record or abandon it
+     * @throws IllegalStateException if the key is reserved by the calling thread, which would
+     *                               wait for itself
+     */
+    public synchronized boolean replay(long key, @NotNull Bytes out) {
+        long now = Time.currentTimeMillis();
+        expire(now);
+        Reply reply = replies.get(key);
+
+        // another attempt is being processed, wait for its reply
+        while (reply != null && reply.bytes == null) {
+            if (reply.owner == Thread.currentThread())
+                throw new IllegalStateException("key=" + key + " is already being processed " +
+                        "by this thread");
+            final long remaining = reply.timeMs + windowMs - now;
+            if (remaining <= 0)
+                break;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+            now = Time.currentTimeMillis();
+            reply = replies.get(key);
+        }
+
+        if (reply == null || reply.bytes == null) {
+            // either the first attempt, or the one being processed was abandoned, or took longer
+            // than the window
+            replies.put(key, new Reply(null, now, Thread.currentThread()));
+            trim();
+            return false;
+        }
+
+        out.write(reply.bytes, 0, reply.bytes.readLimit());
+        replays++;
+        return true;
+    }
+
+    /**
+     * records the reply to the request
+     *
+     * @param key  the idempotency key of the request
+     * @param out  the bytes the reply was written to
+     * @param from the position in {@code out} that the reply starts at
+     */
+    public synchronized void record(long key, @NotNull Bytes out, long from) {
+        final long now = Time.currentTimeMillis();
+        expire(now);
+
+        final Bytes bytes = Bytes.elasticByteBuffer();
+        bytes.write(out, from, out.writePosition() - from);
+
+        // the reply is held for the window from when it was recorded
+        final Reply prev = replies.remove(key);
+        replies.put(key, new Reply(bytes, now, null));
+        if (prev != null && prev.bytes != null)
+            prev.bytes.release();
+
+        trim();
+        notifyAll();
+    }
+
+    /**
+     * releases the key reserved by {@link #replay(long, Bytes)}, when the request could not be
+     * processed, so the next attempt processes it
+     *
+     * @param key the idempotency key of the request
+     */
+    public synchronized void abandon(long key) {
+        final Reply reply = replies.get(key);
+        if (reply != null && reply.bytes == null) {
+            replies.remove(key);
+            notifyAll();
+        }
+    }
+
+    private void trim() {
+        if (replies.size() > maxEntries) {
+            final Iterator<Reply> iterator = replies.values().iterator();
+            final Reply reply = iterator.next();
+            if (reply.bytes != null)
+                reply.bytes.release();
+            iterator.remove();
+        }
+    }
+
+    private void expire(long now) {
+        final Iterator<Reply> iterator = replies.values().iterator();
+        while (iterator.hasNext()) {
+            final Reply reply = iterator.next();
+            if (now - reply.timeMs <= windowMs)
+                return;
+            if (reply.bytes != null)
+                reply.bytes.release();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return the number of requests which were replayed rather than processed
+     */
+    public synchronized long replays() {
+        return replays;
+    }
+
+    public synchronized int size() {
+        return replies.size();
+    }
+
+    private static final class Reply {
+        // null while the request is being processed
+        @Nullable
+        final Bytes bytes;
+        final long timeMs;
+        // the thread processing the request
+        @Nullable
+        final Thread owner;
+
+        Reply(@Nullable Bytes bytes, long timeMs, @Nullable Thread owner) {
+            this.bytes = bytes;
+            this.timeMs = timeMs;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network;
+
+import net.openhft.chronicle.core.io.Closeable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer for a large number of timeouts, such as request deadlines, heartbeats and reconnect
+ * back-offs, which are usually cancelled before they expire. Scheduling and cancelling are O(1) and lock free, and a
+ * single thread expires the timeouts, so there is no need for each connection or request to
+ * poll the time.
+ * <p>
+ * The timeouts are held in a wheel of buckets, each {@code tickMs} wide, a timeout further away
+ * than one turn of the wheel waits for a number of rounds. Timeouts fire on the first tick at or
+ * after their deadline, so may be up to {@code tickMs} late. The tasks are run on the timer
+ * thread, so must be short and must not block.
+ */
+public class HashedWheelTimer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+    // the most new timeouts added to the wheel per tick, so a burst does not stall the wheel
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final int mask;
+    @NotNull
+    private final Bucket[] wheel;
+    @NotNull
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    @NotNull
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    @NotNull
+    private final Thread worker;
+    private volatile boolean closed;
+    private long tick;
+
+    /**
+     * @param name      used to name the timer thread
+     * @param tickMs    the resolution of the timer
+     * @param wheelSize the number of buckets, this is rounded up to a power of 2
+     */
+    public HashedWheelTimer(@NotNull String name, long tickMs, int wheelSize) {
+        if (tickMs <= 0)
+            throw new IllegalArgumentException("tickMs=" + tickMs);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        final int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+
+        this.worker = new Thread(this::run, "HashedWheelTimer-" + name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @return the timer shared by all the connections in this process, its resolution is set by
+     * {@code -Dtimer.tick.ms}
+     */
+    @NotNull
+    public static HashedWheelTimer shared() {
+        return Shared.TIMER;
+    }
+
+    /**
+     * @param task    run on the timer thread when the timeout expires
+     * @param delayMs how long from now the timeout expires
+     * @return the timeout, which can be cancelled
+     */
+    @NotNull
+    public Timeout schedule(@NotNull Runnable task, long delayMs) {
+        final long deadline = System.nanoTime() - startNanos +
+                TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        final Timeout timeout = new Timeout(this, task, deadline);
+        if (closed)
+            throw new IllegalStateException("Closed");
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (!closed) {
+            final long deadline = tickNanos * (tick + 1);
+            for (; ; ) {
+                final long sleepNanos = deadline - (System.nanoTime() - startNanos);
+                if (sleepNanos <= 0 || closed)
+                    break;
+                LockSupport.parkNanos(this, sleepNanos);
+            }
+
+            removeCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        for (Timeout timeout; (timeout = cancelled.poll()) != null; ) {
+            final Bucket bucket = timeout.bucket;
+            if (bucket != null)
+                bucket.remove(timeout);
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            final Timeout timeout = added.poll();
+            if (timeout == null)
+                return;
+            if (timeout.state != Timeout.PENDING)
+                continue;
+
+            final long expiryTick = timeout.deadlineNanos / tickNanos;
+            // a timeout which is already due expires on this tick
+            final long ticks = Math.max(expiryTick, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(worker);
+    }
+
+    /**
+     * a scheduled task, which can be cancelled
+     */
+    public static final class Timeout {
+        static final int PENDING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        @NotNull
+        private final HashedWheelTimer timer;
+        @NotNull
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile int state;
+
+        // only used by the timer thread
+        private long remainingRounds;
+        @Nullable
+        private Timeout prev, next;
+        @Nullable
+        private Bucket bucket;
+
+        Timeout(@NotNull HashedWheelTimer timer, @NotNull Runnable task, long deadlineNanos) {
+            this.timer = timer;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * @return true if the timeout was cancelled, false if it has already expired or been
+         * cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+                return false;
+            // removed from the wheel by the timer thread, to free it straight away
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED))
+                return;
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOG.warn("timeout task failed " + task, t);
+            }
+        }
+    }
+
+    /**
+     * a doubly linked list of the timeouts in one slot of the wheel, only used by the timer
+     * thread
+     */
+    private static final class Bucket {
+        @Nullable
+        private Timeout head, tail;
+
+        void add(@NotNull Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                assert tail != null;
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.state != Timeout.PENDING) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(@NotNull Timeout timeout) {
+            if (timeout.bucket != this)
+                return;
+            final Timeout next = timeout.next;
+            if (timeout.prev != null)
+                timeout.prev.next = next;
+            if (next != null)
+                next.prev = timeout.prev;
+
+            if (timeout == head)
+                head = next;
+            if (timeout == tail)
+                tail = timeout.prev;
+
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private static final class Shared {
+        static final HashedWheelTimer TIMER = new HashedWheelTimer("shared",
+                Integer.getInteger("timer.tick.ms", 10), 512);
+    }
+}
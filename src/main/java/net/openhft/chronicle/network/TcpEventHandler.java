@@ -67,7 +67,11 @@ class TcpEventHandler implements EventHandler, Closeable {
     private ByteBuffer outBB = ByteBuffer.allocateDirect(CAPACITY);
     @Nullable
     private Bytes outBBB;
-    private long lastTickReadTime = Time.tickTime(), lastHeartBeatTick = lastTickReadTime + 1000;
+    private volatile long lastTickReadTime = Time.tickTime(), lastHeartBeatTick = lastTickReadTime + 1000;
+    // set by the timer, so the event loop does not have to check the time for every connection
+    private volatile boolean heartBeatDue, heartBeatTimedOut;
+    // created once, rather than on every reschedule
+    private final Runnable checkHeartBeat = this::checkHeartBeat;
 
 
     public TcpEventHandler(@NotNull SocketChannel sc, @NotNull TcpHandler handler, @NotNull final SessionDetailsProvider sessionDetails,
@@ -98,6 +102,36 @@ class TcpEventHandler implements EventHandler, Closeable {
         outBB.limit(0);
         readLog = new NetworkLog(this.sc, "read");
         writeLog = new NetworkLog(this.sc, "write");
+
+        if (heartBeatIntervalTicks > 0)
+            scheduleHeartBeatCheck();
+    }
+
+    /**
+     * checks the heartbeat on the timer thread, at the next time a heartbeat could be due or the
+     * connection could time out
+     */
+    private void scheduleHeartBeatCheck() {
+        final long nextHeartBeat = lastHeartBeatTick + heartBeatIntervalTicks + 1;
+        final long timeout = lastTickReadTime + heartBeatTimeoutTicks + 1;
+        final long delay = Math.min(nextHeartBeat, timeout) - Time.tickTime();
+        HashedWheelTimer.shared().schedule(checkHeartBeat, Math.max(1, delay));
+    }
+
+    private void checkHeartBeat() {
+        if (!sc.isOpen())
+            return;
+
+        final long tickTime = Time.tickTime();
+        if (tickTime > lastTickReadTime + heartBeatTimeoutTicks) {
+            heartBeatTimedOut = true;
+            return;
+        }
+
+        if (tickTime > lastHeartBeatTick + heartBeatIntervalTicks)
+            heartBeatDue = true;
+        else
+            scheduleHeartBeatCheck();
     }
 
     @NotNull
@@ -137,6 +171,11 @@ class TcpEventHandler implements EventHandler, Closeable {
             throw new InvalidEventHandlerException();
         }
 
+        if (handler.disconnectRequested()) {
+            closeSC();
+            return false;
+        }
+
         if (oneInTen++ == 10) {
             oneInTen = 0;
             try {
@@ -168,18 +207,21 @@ class TcpEventHandler implements EventHandler, Closeable {
 
             readLog.idle();
 
-            if (heartBeatIntervalTicks == 0)
-                return false;
-
-            long tickTime = Time.tickTime();
-            if (tickTime > lastTickReadTime + heartBeatTimeoutTicks) {
-                closeSC();
-                return false;
+            if (heartBeatTimedOut) {
+                heartBeatTimedOut = false;
+                if (Time.tickTime() > lastTickReadTime + heartBeatTimeoutTicks) {
+                    closeSC();
+                    return false;
+                }
+                // data arrived after the timer fired
+                scheduleHeartBeatCheck();
             }
 
-            if (tickTime > lastHeartBeatTick + heartBeatIntervalTicks) {
-                lastHeartBeatTick = tickTime;
+            if (heartBeatDue) {
+                heartBeatDue = false;
+                lastHeartBeatTick = Time.tickTime();
                 sendHeartBeat();
+                scheduleHeartBeatCheck();
             }
         } catch (ClosedChannelException e) {
             closeSC();
@@ -20,12 +20,17 @@ import net.openhft.chronicle.bytes.Bytes;
 import net.openhft.chronicle.core.util.Time;
 import net.openhft.chronicle.network.api.TcpHandler;
 import net.openhft.chronicle.network.api.session.SessionDetailsProvider;
+import net.openhft.chronicle.network.connection.CompactFrames;
+import net.openhft.chronicle.network.connection.CoreFields;
+import net.openhft.chronicle.network.connection.EventId;
 import net.openhft.chronicle.network.connection.WireOutPublisher;
+import net.openhft.chronicle.wire.ValueIn;
 import net.openhft.chronicle.wire.Wire;
 import net.openhft.chronicle.wire.WireIn;
 import net.openhft.chronicle.wire.WireOut;
 import net.openhft.chronicle.wire.Wires;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,10 +48,28 @@ public abstract class WireTcpHandler implements TcpHandler {
     private Wire inWire;
     protected Wire outWire;
     private boolean recreateWire;
-    protected final WireOutPublisher publisher = new WireOutPublisher();
+    protected final WireOutPublisher publisher;
+    @Nullable
+    private DedupWindow dedupWindow;
+    @Nullable
+    private CspInterner cspInterner;
+    private boolean compactFrames;
+    private long compactTid;
+    private long compactCid;
 
     public WireTcpHandler(@NotNull final Function<Bytes, Wire> bytesToWire) {
+        this(bytesToWire, new WireOutPublisher());
+    }
+
+    /**
+     * @param bytesToWire converts bytes into wire
+     * @param publisher   holds the messages published asynchronously to this connection, for
+     *                    example a {@link net.openhft.chronicle.network.connection.RingWireOutPublisher}
+     */
+    public WireTcpHandler(@NotNull final Function<Bytes, Wire> bytesToWire,
+                          @NotNull final WireOutPublisher publisher) {
         this.bytesToWire = bytesToWire;
+        this.publisher = publisher;
     }
 
     @Override
@@ -65,11 +88,187 @@ public abstract class WireTcpHandler implements TcpHandler {
         outWire.writeDocument(false, w -> w.writeEventName(() -> "heartbeat").int64(Time.currentTimeMillis()));
     }
 
+    /**
+     * consumes the credit sent by a flow controlled subscription, see {@code
+     * AbstractFlowControlledSubscription}, by granting it to the publisher of this connection,
+     * so the messages for the subscription which were held back are sent. A handler should call
+     * this with each data document, before reading it as a request.
+     *
+     * @param tid the tid in the meta data of the message
+     * @param in  the data document
+     * @return true if the document was a credit, which has been consumed, otherwise nothing has
+     * been read
+     */
+    protected boolean readCredit(long tid, @NotNull WireIn in) {
+        final long position = in.bytes().readPosition();
+        final StringBuilder eventName = Wires.acquireStringBuilder();
+        ValueIn valueIn = in.readEventName(eventName);
+        if (!EventId.credit.contentEquals(eventName)) {
+            in.bytes().readPosition(position);
+            return false;
+        }
+        publisher.grant(tid, valueIn.int64());
+
+        // the bytes in flight are limited with the first grant, if at all
+        if (in.bytes().readRemaining() > 0) {
+            valueIn = in.readEventName(eventName);
+            if (EventId.creditBytes.contentEquals(eventName))
+                publisher.creditBytes(tid, valueIn.int64());
+        }
+        return true;
+    }
+
+    /**
+     * @param dedupWindow the replies to the requests already processed, which should be shared
+     *                    by all the connections to the server, or null to process every request
+     */
+    public void dedupWindow(@Nullable DedupWindow dedupWindow) {
+        this.dedupWindow = dedupWindow;
+    }
+
+    /**
+     * supports csp interning on this connection, see {@link CspInterner}, the client only asks
+     * for it with {@code -Dtcp.client.csp.interning}, and stops asking if the replies do not
+     * hold a cid
+     *
+     * @param cspInterner the interner of this connection, not shared with any other, or null to
+     *                    not support interning
+     */
+    public void cspInterner(@Nullable CspInterner cspInterner) {
+        this.cspInterner = cspInterner;
+    }
+
+    /**
+     * writes, after the tid in the meta data of the reply to a request whose meta data holds
+     * {@code CoreFields.internCsp}, the cid of its csp, and the cids evicted to make room, which
+     * the client should stop using. Nothing is written if interning is not supported.
+     *
+     * @param metaData the meta data of the reply
+     * @param csp      the csp of the request
+     */
+    protected void writeInternedCid(@NotNull WireOut metaData, @NotNull CharSequence csp) {
+        final CspInterner cspInterner = this.cspInterner;
+        if (cspInterner == null)
+            return;
+        metaData.writeEventName(CoreFields.cid).int64(cspInterner.intern(csp));
+        for (long evicted; (evicted = cspInterner.pollEvicted()) != 0; )
+            metaData.writeEventName(CoreFields.evictedCid).int64(evicted);
+    }
+
+    /**
+     * @param cid the cid in the meta data of a request
+     * @return the csp the cid was interned for on this connection, or null if it was not, in
+     * which case the cid was not assigned by csp interning
+     */
+    @Nullable
+    protected String internedCsp(long cid) {
+        final CspInterner cspInterner = this.cspInterner;
+        return cspInterner == null ? null : cspInterner.csp(cid);
+    }
+
+    /**
+     * agrees to the compact meta data, see {@link CompactFrames}, which the client asks for with
+     * {@code EventId.compactFrames} in its hand shake, only with {@code
+     * -Dtcp.client.compact.frames}. A client which is not told the server agrees carries on
+     * sending the meta data as wire documents.
+     *
+     * @param out the wire the reply to the hand shake is written to
+     */
+    protected void acceptCompactFrames(@NotNull WireOut out) {
+        CompactFrames.writeAccept(out);
+        compactFrames = true;
+    }
+
+    /**
+     * reads the meta data of a request, if it is compact, this should be called with each
+     * document before it is read as a wire document, once {@link #acceptCompactFrames(WireOut)}
+     * has been called
+     *
+     * @param in the document, positioned at its header
+     * @return true if the document was a compact meta data, which has been consumed, its tid
+     * and cid are then {@link #compactTid()} and {@link #compactCid()}, otherwise nothing has
+     * been read
+     */
+    protected boolean readCompactMetaData(@NotNull WireIn in) {
+        if (!compactFrames)
+            return false;
+        final Bytes bytes = in.bytes();
+        final long position = bytes.readPosition();
+        if (bytes.readRemaining() < SIZE_OF_SIZE)
+            return false;
+        final int header = bytes.readInt(position);
+        if (Wires.isData(header))
+            return false;
+        final long length = Wires.lengthOf(header);
+        final long offset = position + SIZE_OF_SIZE;
+        if (!CompactFrames.isCompact(bytes, offset, length))
+            return false;
+
+        compactTid = CompactFrames.tid(bytes, offset);
+        compactCid = CompactFrames.cid(bytes, offset);
+        bytes.readSkip(SIZE_OF_SIZE + length);
+        return true;
+    }
+
+    /**
+     * @return the tid of the last compact meta data read by {@link #readCompactMetaData(WireIn)}
+     */
+    protected long compactTid() {
+        return compactTid;
+    }
+
+    /**
+     * @return the cid of the last compact meta data read by {@link #readCompactMetaData(WireIn)}
+     */
+    protected long compactCid() {
+        return compactCid;
+    }
+
+    /**
+     * processes a request at most once, for a client which resends it after a failover. If a
+     * request with the same {@code idempotencyKey} has been processed, its reply is written again
+     * rather than processing the request a second time. This should be called after writing the
+     * meta data of the reply, as only the data of the reply is recorded.
+     *
+     * @param idempotencyKey the key in the meta data of the request, see {@code
+     *                       CoreFields.idempotencyKey}, or 0 if it has none
+     * @param out            the wire the reply is written to
+     * @param request        processes the request, and writes its reply to {@code out}
+     */
+    protected void processOnce(long idempotencyKey, @NotNull WireOut out, @NotNull Runnable request) {
+        final DedupWindow dedupWindow = this.dedupWindow;
+        if (dedupWindow == null || idempotencyKey == 0) {
+            request.run();
+            return;
+        }
+
+        final Bytes bytes = out.bytes();
+        if (dedupWindow.replay(idempotencyKey, bytes))
+            return;
+
+        final long from = bytes.writePosition();
+        boolean processed = false;
+        try {
+            request.run();
+            processed = true;
+        } finally {
+            if (processed)
+                dedupWindow.record(idempotencyKey, bytes, from);
+            else
+                dedupWindow.abandon(idempotencyKey);
+        }
+    }
+
     @Override
     public void onEndOfConnection(boolean heartbeatTimeOut) {
         publisher.close();
     }
 
+    @Override
+    public boolean disconnectRequested() {
+        return publisher.disconnectRequested();
+    }
+
     /**
      * process all messages in this batch, provided there is plenty of output space.
      *
@@ -42,4 +42,12 @@ public interface TcpHandler extends ClientClosedProvider {
 
     default void onEndOfConnection(boolean heartbeatTimeOut) {
     }
+
+    /**
+     * @return true if the connection should be dropped, for example as the client is not keeping
+     * up with the messages published to it
+     */
+    default boolean disconnectRequested() {
+        return false;
+    }
 }
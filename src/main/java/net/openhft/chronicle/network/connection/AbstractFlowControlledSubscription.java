@@ -0,0 +1,166 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.network.HashedWheelTimer;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.WriteMarshallable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A subscription which tells the server how many messages it is ready to consume, so a slow
+ * consumer is not flooded. The subscription grants the server a window of {@code credit}
+ * messages when it subscribes, and grants more as it consumes them, once half the window has
+ * been consumed. The server holds back the messages for this subscription while it has no
+ * credit, see {@link WireOutPublisher#grant(long, long)}. The subscription may also limit the bytes
+ * the server sends ahead of it, as the server counts them, see {@link
+ * WireOutPublisher#creditBytes(long, long)}, which is given with the first grant.
+ * <p>
+ * The credit is sent as an {@link EventId#credit} event with the tid of the subscription. The
+ * reader thread never waits for the outbound lock to send it, if the lock is busy the credit is
+ * kept and sent with a later message, or by the timer once the server has used up its window.
+ */
+public abstract class AbstractFlowControlledSubscription extends AbstractAsyncSubscription {
+
+    @NotNull
+    private final TcpChannelHub hub;
+    private final String csp;
+    private final int credit;
+    private final long creditBytes;
+    private final TcpChannelHub.Task sendCredit = this::sendCredit;
+    private final WriteMarshallable creditEvent = this::writeCreditEvent;
+    private final Runnable retryCredit = this::retryCredit;
+    // consumed since the last grant, counted by the reader thread and reset on a resubscribe
+    private final AtomicInteger consumed = new AtomicInteger();
+    private final AtomicBoolean retryScheduled = new AtomicBoolean();
+    // only used while holding the outBytesLock
+    private int creditToGrant;
+    private boolean firstGrant;
+    private volatile long creditsGranted;
+
+    /**
+     * @param hub    handles the tcp connectivity.
+     * @param csp    the url of the subscription.
+     * @param name   the name of the subscription
+     * @param credit the most messages the server may send ahead of the consumer
+     */
+    public AbstractFlowControlledSubscription(@NotNull TcpChannelHub hub,
+                                              String csp,
+                                              String name,
+                                              int credit) {
+        this(hub, csp, name, credit, 0);
+    }
+
+    /**
+     * @param hub         handles the tcp connectivity.
+     * @param csp         the url of the subscription.
+     * @param name        the name of the subscription
+     * @param credit      the most messages the server may send ahead of the consumer
+     * @param creditBytes the most bytes the server may send ahead of the consumer, or 0 for no
+     *                    limit
+     */
+    public AbstractFlowControlledSubscription(@NotNull TcpChannelHub hub,
+                                              String csp,
+                                              String name,
+                                              int credit,
+                                              long creditBytes) {
+        super(hub, csp, name);
+        if (credit < 2)
+            throw new IllegalArgumentException("credit=" + credit);
+        if (creditBytes < 0)
+            throw new IllegalArgumentException("creditBytes=" + creditBytes);
+        this.hub = hub;
+        this.csp = csp;
+        this.credit = credit;
+        this.creditBytes = creditBytes;
+    }
+
+    @Override
+    public void applySubscribe() {
+        super.applySubscribe();
+
+        // the server has forgotten any credit if this is a resubscribe
+        consumed.set(0);
+        firstGrant = true;
+        writeCredit(credit);
+        firstGrant = false;
+        hub.writeSocket(hub.outWire());
+    }
+
+    @Override
+    public final void onConsumer(@NotNull WireIn inWire) {
+        try {
+            onMessage(inWire);
+        } finally {
+            if (consumed.incrementAndGet() >= credit / 2)
+                tryGrant();
+        }
+    }
+
+    /**
+     * sends the credit without waiting for the outbound lock, once the server has used up its
+     * window no more messages will arrive to trigger another attempt, so the timer retries it
+     */
+    private void tryGrant() {
+        if (hub.lock(sendCredit, true))
+            return;
+        if (consumed.get() >= credit && retryScheduled.compareAndSet(false, true))
+            HashedWheelTimer.shared().schedule(retryCredit, 1);
+    }
+
+    private void retryCredit() {
+        retryScheduled.set(false);
+        tryGrant();
+    }
+
+    private void sendCredit() {
+        final int toGrant = consumed.getAndSet(0);
+        if (toGrant > 0)
+            writeCredit(toGrant);
+    }
+
+    private void writeCredit(int toGrant) {
+        creditToGrant = toGrant;
+        hub.writeMetaDataForKnownTID(tid(), hub.outWire(), csp, 0);
+        hub.outWire().writeDocument(false, creditEvent);
+        creditsGranted += creditToGrant;
+    }
+
+    private void writeCreditEvent(@NotNull WireOut wireOut) {
+        wireOut.writeEventName(EventId.credit).int64(creditToGrant);
+        if (firstGrant && creditBytes > 0)
+            wireOut.writeEventName(EventId.creditBytes).int64(creditBytes);
+    }
+
+    /**
+     * called on the reader thread for each message
+     *
+     * @param inWire the message
+     */
+    protected abstract void onMessage(@NotNull WireIn inWire);
+
+    /**
+     * @return the total credit granted to the server
+     */
+    public long creditsGranted() {
+        return creditsGranted;
+    }
+}
@@ -38,10 +38,24 @@ import static net.openhft.chronicle.network.connection.CoreFields.reply;
  */
 public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> implements Closeable {
 
+    // the back-off between the attempts to resend a request, after the first
+    private static final int RETRY_BACKOFF_MIN_MS = Integer.getInteger("tcp.client.retry" +
+            ".backoff.min", 10);
+    private static final int RETRY_BACKOFF_MAX_MS = Integer.getInteger("tcp.client.retry" +
+            ".backoff.max", 1_000);
+
+    // for a striped client this is the connection for the subscriptions to the csp, a request
+    // and the read of its reply should use hub(), which picks the caller's connection
     @NotNull
     protected final TcpChannelHub hub;
     protected final String csp;
     private final long cid;
+    @Nullable
+    private final StripedTcpChannelHub stripedHub;
+    @Nullable
+    private NearCache nearCache;
+    @Nullable
+    private HedgedRequests hedgedRequests;
 
     /**
      * @param hub for this connection
@@ -54,6 +68,57 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
         this.cid = cid;
         this.csp = csp;
         this.hub = hub;
+        this.stripedHub = null;
+    }
+
+    /**
+     * @param stripedHub the connections that the requests are striped across, by caller thread
+     * @param cid        used by proxies such as the entry-set
+     * @param csp        the uri of the request
+     */
+    protected AbstractStatelessClient(@NotNull final StripedTcpChannelHub stripedHub,
+                                      long cid,
+                                      @NotNull final String csp) {
+        this.cid = cid;
+        this.csp = csp;
+        this.hub = stripedHub.hubFor(csp);
+        this.stripedHub = stripedHub;
+    }
+
+    /**
+     * @return the hub for the calling thread, a request and the read of its reply must be made
+     * on the same thread so that they use the same connection
+     */
+    @NotNull
+    protected TcpChannelHub hub() {
+        return stripedHub == null ? hub : stripedHub.hub();
+    }
+
+    /**
+     * @param nearCache used to cache the results of {@link #proxyReturnCachedTypedObject(ParameterizeWireKey,
+     *                  Class, Object...)}, or null to not cache them
+     */
+    public void nearCache(@Nullable NearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    @Nullable
+    public NearCache nearCache() {
+        return nearCache;
+    }
+
+    /**
+     * @param hedgedRequests used to send {@link #proxyReturnHedgedTypedObject(ParameterizeWireKey,
+     *                       Class, Object...)} to a replica as well, if the primary is slow to
+     *                       reply, or null to not hedge them
+     */
+    public void hedgedRequests(@Nullable HedgedRequests hedgedRequests) {
+        this.hedgedRequests = hedgedRequests;
+    }
+
+    @Nullable
+    public HedgedRequests hedgedRequests() {
+        return hedgedRequests;
     }
 
     protected static <E extends ParameterizeWireKey>
@@ -145,18 +210,99 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
                 consumerIn);
     }
 
+    /**
+     * as {@link #proxyReturnTypedObject(ParameterizeWireKey, Object, Class, Object...)} but the
+     * result is looked up in the near cache first, if there is one. This must only be used for
+     * idempotent calls, whose results are not modified by the caller.
+     */
+    @Nullable
+    protected <R> R proxyReturnCachedTypedObject(
+            @NotNull final E eventId,
+            @NotNull final Class<R> resultType,
+            @NotNull Object... args) {
+
+        final NearCache nearCache = this.nearCache;
+        if (nearCache == null)
+            return proxyReturnTypedObject(eventId, null, resultType, args);
+
+        final String event = eventId.toString();
+        final Object cached = nearCache.get(csp, event, args);
+        if (cached != null)
+            return resultType.cast(cached);
+
+        final long version = nearCache.version();
+        final R result = proxyReturnTypedObject(eventId, null, resultType, args);
+        // the key is only allocated on a miss
+        nearCache.put(new NearCache.Key(csp, event, args), result, version);
+        return result;
+    }
+
+    /**
+     * as {@link #proxyReturnTypedObject(ParameterizeWireKey, Object, Class, Object...)} but the
+     * request is hedged, if there are {@link #hedgedRequests()}. This must only be used for
+     * idempotent calls, as the request may be processed by both servers.
+     */
+    @Nullable
+    protected <R> R proxyReturnHedgedTypedObject(
+            @NotNull final E eventId,
+            @NotNull final Class<R> resultType,
+            @NotNull Object... args) {
+
+        final HedgedRequests hedgedRequests = this.hedgedRequests;
+        if (hedgedRequests == null)
+            return proxyReturnTypedObject(eventId, null, resultType, args);
+
+        return attempt(() -> hedgedRequests.request(csp, eventId, toParameters(eventId, args),
+                f -> f.object(resultType), hub().timeoutMs));
+    }
+
+    /**
+     * as {@link #proxyReturnTypedObject(ParameterizeWireKey, Object, Class, Object...)} but for a
+     * request which is not idempotent. The request is sent with an idempotency key, which is the
+     * same for each attempt, so if it is resent after a failover the server replies with the
+     * result of the first attempt, rather than processing it again.
+     */
+    @Nullable
+    protected <R> R proxyReturnTypedObjectOnce(
+            @NotNull final E eventId,
+            @NotNull final Class<R> resultType,
+            @NotNull Object... args) {
+        final long startTime = Time.currentTimeMillis();
+        final long idempotencyKey = hub().nextIdempotencyKey();
+        return attempt(startTime, () -> readWire(sendEvent(startTime, eventId,
+                toParameters(eventId, args), idempotencyKey), startTime, CoreFields.reply,
+                f -> f.object(resultType)));
+    }
+
     /**
      * this method will re attempt a number of times until successful,if connection is dropped to
      * the  remote server the TcpChannelHub may ( if configured )  automatically failover to another
-     * host.
+     * host. The first attempt to resend is made as soon as the connection is re-established, the
+     * later attempts back off, with jitter, as the connection may be up but keep dropping the
+     * request.
      *
      * @param s   the supply
      * @param <T> the type of supply
      * @return the result for s.get()
      */
     protected <T> T attempt(@NotNull final Supplier<T> s) {
+        return attempt(Time.currentTimeMillis(), s);
+    }
+
+    /**
+     * as {@link #attempt(Supplier)}, but all the attempts share the one timeout, from the {@code
+     * startTime} the reply of each attempt is read against. The wait for the connection and the
+     * back-off come out of the time left, and a request is not resent once there is none, as its
+     * reply could only time out.
+     *
+     * @param startTime the time the call was made, as passed to {@link #sendEvent(long, WireKey,
+     *                  Consumer)}
+     */
+    protected <T> T attempt(final long startTime, @NotNull final Supplier<T> s) {
+        final long deadlineMs = startTime + hub().timeoutMs;
 
         ConnectionDroppedException t = null;
+        ReconnectBackoff backoff = null;
         for (int i = 1; i <= 10; i++) {
 
             try {
@@ -165,11 +311,21 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
                 t = e;
             }
 
-            // pause then resend the request
+            try {
+                if (!hub().awaitConnected(deadlineMs - Time.currentTimeMillis()))
+                    break;
+                if (backoff == null)
+                    backoff = new ReconnectBackoff(RETRY_BACKOFF_MIN_MS, RETRY_BACKOFF_MAX_MS);
+                else
+                    Thread.sleep(Math.max(0, Math.min(backoff.nextDelayMs(),
+                            deadlineMs - Time.currentTimeMillis())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
 
-            // do NOT make this value too small, we have to give time of the connection to be
-            // re-established
-            Jvm.pause(200);
+            if (deadlineMs - Time.currentTimeMillis() <= 0)
+                break;
         }
 
         throw t;
@@ -200,8 +356,8 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
     protected <T> T proxyReturnWireConsumer(@NotNull final WireKey eventId,
                                             @NotNull final Function<ValueIn, T> consumer) {
         final long startTime = Time.currentTimeMillis();
-        return attempt(() -> readWire(sendEvent(startTime, eventId, null), startTime, CoreFields
-                .reply, consumer));
+        return attempt(startTime, () -> readWire(sendEvent(startTime, eventId, null), startTime,
+                CoreFields.reply, consumer));
     }
 
     protected <T> T proxyReturnWireConsumerInOut(@NotNull final WireKey eventId,
@@ -209,8 +365,8 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
                                                  @Nullable final Consumer<ValueOut> consumerOut,
                                                  @NotNull final Function<ValueIn, T> consumerIn) {
         final long startTime = Time.currentTimeMillis();
-        return attempt(() -> readWire(sendEvent(startTime, eventId, consumerOut), startTime,
-                reply, consumerIn));
+        return attempt(startTime, () -> readWire(sendEvent(startTime, eventId, consumerOut),
+                startTime, reply, consumerIn));
     }
 
     @SuppressWarnings("SameParameterValue")
@@ -218,8 +374,8 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
                                  @Nullable final Consumer<ValueOut> consumer) {
         final long startTime = Time.currentTimeMillis();
 
-        attempt(() -> readWire(sendEvent(startTime, eventId, consumer), startTime, CoreFields
-                .reply, v -> v.marshallable(ReadMarshallable.DISCARD)));
+        attempt(startTime, () -> readWire(sendEvent(startTime, eventId, consumer), startTime,
+                CoreFields.reply, v -> v.marshallable(ReadMarshallable.DISCARD)));
     }
 
     @SuppressWarnings("SameParameterValue")
@@ -230,8 +386,20 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
     protected long sendEvent(final long startTime,
                              @NotNull final WireKey eventId,
                              @Nullable final Consumer<ValueOut> consumer) {
+        return sendEvent(startTime, eventId, consumer, 0);
+    }
+
+    /**
+     * @param idempotencyKey the same for every attempt to send this request, so the server
+     *                       processes it only once, or 0 if the request is idempotent
+     */
+    protected long sendEvent(final long startTime,
+                             @NotNull final WireKey eventId,
+                             @Nullable final Consumer<ValueOut> consumer,
+                             final long idempotencyKey) {
         long tid;
-        if (hub.outBytesLock().isHeldByCurrentThread())
+        final TcpChannelHub hub = hub();
+        if (hub.outBytesLock().isHeldByCurrentThread() && !hub.isBatching())
             throw new IllegalStateException("Cannot view map while debugging");
         try {
             hub.checkConnection();
@@ -242,7 +410,7 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
         // can't use lock() as we are setting tid.
         hub.outBytesLock().lock();
         try {
-            tid = writeMetaDataStartTime(startTime);
+            tid = hub.writeMetaDataStartTime(startTime, hub.outWire(), csp, cid, idempotencyKey);
             hub.outWire().writeDocument(false, wireOut -> {
 
                 final ValueOut valueOut = wireOut.writeEventName(eventId);
@@ -268,6 +436,7 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
     protected boolean sendEventAsync(@NotNull final WireKey eventId,
                                      @Nullable final Consumer<ValueOut> consumer,
                                      boolean reattemptUponFailure) {
+        final TcpChannelHub hub = hub();
 
         if (reattemptUponFailure)
             try {
@@ -308,6 +477,7 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
     protected void sendEventAsyncWithoutLock(@NotNull final WireKey eventId,
                                              @Nullable final Consumer<ValueOut> consumer) {
 
+        final TcpChannelHub hub = hub();
         writeAsyncMetaData();
         hub.outWire().writeDocument(false, wireOut -> {
             final ValueOut valueOut = wireOut.writeEventName(eventId);
@@ -320,20 +490,13 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
         hub.writeSocket(hub.outWire());
     }
 
-    /**
-     * @param startTime the start time of this transaction
-     * @return the translation id ( which is sent to the server )
-     */
-    private long writeMetaDataStartTime(long startTime) {
-        return hub.writeMetaDataStartTime(startTime, hub.outWire(), csp, cid);
-    }
-
     /**
      * Useful for when you know the tid
      *
      * @param tid the tid transaction
      */
     protected void writeMetaDataForKnownTID(long tid) {
+        final TcpChannelHub hub = hub();
         hub.writeMetaDataForKnownTID(tid, hub.outWire(), csp, cid);
     }
 
@@ -341,6 +504,7 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
      * if async meta data is written, no response will be returned from the server
      */
     private void writeAsyncMetaData() {
+        final TcpChannelHub hub = hub();
         hub.writeAsyncHeader(hub.outWire(), csp, cid);
     }
 
@@ -354,12 +518,13 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
     }
 
     protected boolean readBoolean(long tid, long startTime) throws ConnectionDroppedException {
+        final TcpChannelHub hub = hub();
         assert !hub.outBytesLock().isHeldByCurrentThread();
 
-        long timeoutTime = startTime + hub.timeoutMs;
+        final long timeoutMs = startTime + hub.timeoutMs - Time.currentTimeMillis();
 
         // receive
-        final Wire wireIn = hub.proxyReply(timeoutTime, tid);
+        final Wire wireIn = hub.proxyReply(timeoutMs, tid);
         checkIsData(wireIn);
 
         return readReply(wireIn, CoreFields.reply, ValueIn::bool);
@@ -382,48 +547,71 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
     }
 
 
+    /**
+     * sends all the events and requests made by the {@code batch} together, see {@link
+     * TcpChannelHub#batch(TcpChannelHub.Task)}. The replies to the requests should be read after
+     * the batch using {@link #readWire(long, long, WireKey, Function)}, on the same thread.
+     *
+     * @param batch makes any number of calls to {@link #sendEvent(long, WireKey, Consumer)} and
+     *              {@link #sendEventAsync(WireKey, Consumer, boolean)}
+     * @return the tids of the requests, in the order they were made
+     */
+    @NotNull
+    protected long[] sendBatch(@NotNull final TcpChannelHub.Task batch) {
+        final TcpChannelHub hub = hub();
+        try {
+            hub.checkConnection();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return hub.batch(batch);
+    }
+
     @SuppressWarnings("SameParameterValue")
     protected boolean proxyReturnBooleanWithArgs(
             @NotNull final E eventId,
             @NotNull final Object... args) {
         final long startTime = Time.currentTimeMillis();
-        return attempt(() -> readBoolean(sendEvent(startTime, eventId, toParameters(eventId, args)
-        ), startTime));
+        return attempt(startTime, () -> readBoolean(sendEvent(startTime, eventId,
+                toParameters(eventId, args)), startTime));
     }
 
     protected boolean proxyReturnBooleanWithSequence(
             @NotNull final E eventId,
             @NotNull final Collection sequence) {
         final long startTime = Time.currentTimeMillis();
-        return attempt(() -> readBoolean(sendEvent(startTime, eventId, out ->
+        return attempt(startTime, () -> readBoolean(sendEvent(startTime, eventId, out ->
                 sequence.forEach(out::object)), startTime));
     }
 
     @SuppressWarnings("SameParameterValue")
     protected boolean proxyReturnBoolean(@NotNull final WireKey eventId) {
         final long startTime = Time.currentTimeMillis();
-        return attempt(() -> readBoolean(sendEvent(startTime, eventId, null), startTime));
+        return attempt(startTime, () -> readBoolean(sendEvent(startTime, eventId, null),
+                startTime));
     }
 
-    private <T> T readWire(long tid, long startTime,
+    protected <T> T readWire(long tid, long startTime,
                            @NotNull WireKey reply,
                            @NotNull Function<ValueIn, T> c) throws ConnectionDroppedException {
+        final TcpChannelHub hub = hub();
         assert !hub.outBytesLock().isHeldByCurrentThread();
-        final long timeoutTime = startTime + hub.timeoutMs;
+        final long timeoutMs = startTime + hub.timeoutMs - Time.currentTimeMillis();
 
         // receive
-        final Wire wire = hub.proxyReply(timeoutTime, tid);
+        final Wire wire = hub.proxyReply(timeoutMs, tid);
         checkIsData(wire);
         return readReply(wire, reply, c);
 
     }
 
     protected int readInt(long tid, long startTime) throws ConnectionDroppedException {
+        final TcpChannelHub hub = hub();
         assert !hub.outBytesLock().isHeldByCurrentThread();
 
-        long timeoutTime = startTime + hub.timeoutMs;
+        final long timeoutMs = startTime + hub.timeoutMs - Time.currentTimeMillis();
 
-        final Wire wireIn = hub.proxyReply(timeoutTime, tid);
+        final Wire wireIn = hub.proxyReply(timeoutMs, tid);
         checkIsData(wireIn);
         return wireIn.read(reply).int32();
 
@@ -431,7 +619,10 @@ public abstract class AbstractStatelessClient<E extends ParameterizeWireKey> imp
 
     @Override
     public void close() {
-        hub.close();
+        if (stripedHub != null)
+            stripedHub.close();
+        else
+            hub.close();
     }
 
 }
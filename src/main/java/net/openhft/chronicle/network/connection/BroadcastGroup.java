@@ -0,0 +1,306 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesStore;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.WriteMarshallable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static net.openhft.chronicle.bytes.Bytes.elasticByteBuffer;
+
+/**
+ * Sends the same messages to many connections, serialising each message once, rather than once
+ * per connection. A message, with a meta data document holding a place holder tid, is written
+ * into an off heap buffer, which is shared, read only, by the {@link WireOutPublisher} of every
+ * member. Each connection copies the bytes into its output buffer, and then writes its own tid
+ * over the place holder, which is encoded in a fixed width. The buffer, and the writes queued
+ * for each member, are reference counted and reused once every member has written or dropped
+ * the message, so a broadcast does not allocate once the pool is warm.
+ * <p>
+ * A member whose publisher has been closed is removed on the next broadcast. A member is never
+ * waited for, if its queue is full the message is dropped for that member alone, whatever the
+ * overflow policy of its publisher, so one slow connection cannot hold up the others.
+ */
+public class BroadcastGroup {
+
+    // the most buffers held for reuse
+    private static final int POOL_SIZE = 64;
+    // a tid with 19 digits, as many as any positive long, which is odd and too large for a
+    // float or a double to hold exactly, so it is encoded in the same width as the tid of any
+    // member, as digits by a text wire, or as a 64-bit int by a binary wire
+    private static final long TID_PLACE_HOLDER = 1_000_000_000_000_000_001L;
+    private static final int TID_DIGITS = 19;
+    private static final WriteMarshallable META_DATA =
+            w -> w.writeEventName(CoreFields.tid).int64(TID_PLACE_HOLDER);
+
+    @NotNull
+    private final Function<Bytes, Wire> wire;
+    private final List<Member> members = new CopyOnWriteArrayList<>();
+    // guarded by itself
+    private final ArrayDeque<SharedMessage> pool = new ArrayDeque<>();
+    private final AtomicLong broadcasts = new AtomicLong();
+    private final AtomicLong sends = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // where the place holder tid is in a serialised message, and if it is text or binary
+    private final long tidOffset;
+    private final boolean textTid;
+
+    /**
+     * @param wire converts bytes into wire, the same type of wire as the connections
+     * @throws IllegalArgumentException if the wire does not encode the tid in a fixed width
+     */
+    public BroadcastGroup(@NotNull Function<Bytes, Wire> wire) {
+        this.wire = wire;
+
+        final Wire probe = wire.apply(elasticByteBuffer());
+        probe.writeDocument(true, META_DATA);
+        final Bytes bytes = probe.bytes();
+        final long end = bytes.writePosition();
+        final byte[] digits = Long.toString(TID_PLACE_HOLDER).getBytes();
+        long binary = -1, text = -1;
+        for (long i = 0; i < end && binary < 0 && text < 0; i++) {
+            if (i + 8 <= end && bytes.readLong(i) == TID_PLACE_HOLDER)
+                binary = i;
+            else if (i + digits.length <= end && matches(bytes, i, digits))
+                text = i;
+        }
+        if (binary < 0 && text < 0)
+            throw new IllegalArgumentException("The tid can not be found in " +
+                    bytes.toDebugString());
+        this.textTid = text >= 0;
+        this.tidOffset = textTid ? text : binary;
+    }
+
+    private static boolean matches(@NotNull Bytes bytes, long offset, @NotNull byte[] digits) {
+        for (int j = 0; j < digits.length; j++)
+            if (bytes.readByte(offset + j) != digits[j])
+                return false;
+        return true;
+    }
+
+    /**
+     * @param publisher the publisher of the connection
+     * @param tid       the tid the connection is sent the messages with, typically the tid of
+     *                  its subscription
+     * @throws IllegalArgumentException if the tid is negative and the wire is text, as it can
+     *                                  not be written in a fixed width
+     */
+    public void join(@NotNull WireOutPublisher publisher, long tid) {
+        if (textTid && tid < 0)
+            throw new IllegalArgumentException("tid=" + tid);
+        members.add(new Member(publisher, tid));
+    }
+
+    public void leave(@NotNull WireOutPublisher publisher, long tid) {
+        members.removeIf(m -> m.publisher == publisher && m.tid == tid);
+    }
+
+    /**
+     * serialises the message once and publishes it to every member
+     *
+     * @param data writes the data document of the message
+     */
+    public void broadcast(@NotNull WriteMarshallable data) {
+        final Object[] members = this.members.toArray();
+        if (members.length == 0)
+            return;
+
+        final SharedMessage message = acquire(members.length);
+        message.wire.writeDocument(true, META_DATA);
+        message.wire.writeDocument(false, data);
+        message.refCount.set(members.length);
+        broadcasts.incrementAndGet();
+
+        for (int i = 0; i < members.length; i++) {
+            final Member member = (Member) members[i];
+            final MemberWrite write = message.writes[i];
+            write.member = member;
+            try {
+                if (member.publisher.tryAdd(write)) {
+                    sends.incrementAndGet();
+                } else {
+                    dropped.incrementAndGet();
+                    message.release();
+                }
+            } catch (IllegalStateException e) {
+                // the connection has gone
+                this.members.remove(member);
+                message.release();
+            }
+        }
+    }
+
+    public int members() {
+        return members.size();
+    }
+
+    /**
+     * @return the number of messages serialised
+     */
+    public long broadcasts() {
+        return broadcasts.get();
+    }
+
+    /**
+     * @return the number of messages published to the members
+     */
+    public long sends() {
+        return sends.get();
+    }
+
+    /**
+     * @return the number of messages not published to a member, as its queue was full
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of buffers waiting to be reused, as every member has written or dropped
+     * their message
+     */
+    public int pooled() {
+        synchronized (pool) {
+            return pool.size();
+        }
+    }
+
+    /**
+     * @param members the number of members the message will be written by
+     */
+    @NotNull
+    private SharedMessage acquire(int members) {
+        SharedMessage message;
+        synchronized (pool) {
+            message = pool.poll();
+        }
+        if (message == null)
+            message = new SharedMessage();
+        message.wire.bytes().clear();
+        if (message.writes.length < members) {
+            final MemberWrite[] writes = Arrays.copyOf(message.writes, members);
+            for (int i = message.writes.length; i < members; i++)
+                writes[i] = new MemberWrite(message);
+            message.writes = writes;
+        }
+        return message;
+    }
+
+    /**
+     * writes the tid of a member over the place holder, in the message just copied to the bytes
+     *
+     * @param start the position the message was copied to
+     */
+    private void patchTid(@NotNull Bytes bytes, long start, long tid) {
+        final long offset = start + tidOffset;
+        if (!textTid) {
+            bytes.writeLong(offset, tid);
+            return;
+        }
+        for (int i = TID_DIGITS - 1; i >= 0; i--) {
+            bytes.writeByte(offset + i, (byte) ('0' + tid % 10));
+            tid /= 10;
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "BroadcastGroup{" +
+                "members=" + members.size() +
+                ", broadcasts=" + broadcasts +
+                ", sends=" + sends +
+                ", dropped=" + dropped +
+                '}';
+    }
+
+    private static final class Member {
+        @NotNull
+        final WireOutPublisher publisher;
+        final long tid;
+
+        Member(@NotNull WireOutPublisher publisher, long tid) {
+            this.publisher = publisher;
+            this.tid = tid;
+        }
+    }
+
+    /**
+     * a serialised message, which is not changed until every member has written or dropped it.
+     * If a publisher is closed with the message still queued, the buffer is not reused, and is
+     * left to the GC.
+     */
+    private final class SharedMessage {
+        @NotNull
+        final Wire wire = BroadcastGroup.this.wire.apply(elasticByteBuffer());
+        final AtomicInteger refCount = new AtomicInteger();
+        // the write queued for each member, reused with the message
+        @NotNull
+        MemberWrite[] writes = new MemberWrite[0];
+
+        void release() {
+            if (refCount.decrementAndGet() != 0)
+                return;
+            synchronized (pool) {
+                if (pool.size() < POOL_SIZE)
+                    pool.add(this);
+            }
+        }
+    }
+
+    private final class MemberWrite implements WireOutPublisher.Droppable, WireOutPublisher.Sized {
+        @NotNull
+        private final SharedMessage message;
+        // set before the write is queued, and not changed until the message is released
+        private Member member;
+
+        MemberWrite(@NotNull SharedMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public void writeMarshallable(@NotNull WireOut out) {
+            final Bytes bytes = message.wire.bytes();
+            final Bytes outBytes = out.bytes();
+            final long start = outBytes.writePosition();
+            outBytes.write((BytesStore) bytes, 0L, bytes.writePosition());
+            patchTid(outBytes, start, member.tid);
+            message.release();
+        }
+
+        @Override
+        public void onDropped() {
+            message.release();
+        }
+
+        @Override
+        public long size() {
+            return message.wire.bytes().writePosition();
+        }
+    }
+}
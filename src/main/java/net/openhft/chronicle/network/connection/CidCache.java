@@ -0,0 +1,189 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.core.util.Time;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The client side of csp interning. The first request for a csp on a connection is sent with the
+ * csp text and {@link CoreFields#internCsp}, the server assigns the csp a cid, for that
+ * connection, and returns it in the meta data of the reply, after the tid. Later requests for
+ * the csp are then sent with just the cid.
+ * <p>
+ * The cids are only valid for one connection, so the cache is cleared when the connection is
+ * dropped. The server may evict a cid, to bound the csps it holds, and says so in the meta data
+ * of a reply which assigned a cid, see {@link #evict(long)}, the csp is then sent as text again
+ * until it is interned again. If the server does not return a cid for the first few requests, it is assumed not to
+ * support interning, and no more are asked for on the connection.
+ * <p>
+ * Not every request gets a reply, for example one which timed out, so a request waiting for a
+ * cid is forgotten when the hub gives up on it, see {@link #forget(long)}, or once it is older
+ * than {@code expireMs}, after which its csp can be asked for again.
+ */
+class CidCache {
+
+    // the replies without a cid, before the server is assumed not to support interning
+    private static final int UNSUPPORTED_AFTER = 8;
+    // the most requests waiting for a cid
+    private static final int MAX_PENDING = 1024;
+
+    private final long expireMs;
+    private final Map<String, Long> cids = new ConcurrentHashMap<>();
+    // the requests which asked for a csp to be interned, by tid
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    // the same requests by csp, so only one request at a time asks for each
+    private final Map<String, Pending> requested = new ConcurrentHashMap<>();
+    private volatile int unassigned;
+    private volatile boolean supported = true;
+
+    /**
+     * @param expireMs how long a request waits for its cid before it is forgotten
+     */
+    CidCache(long expireMs) {
+        this.expireMs = expireMs;
+    }
+
+    /**
+     * @return the cid of the csp, or 0 if it has not been interned
+     */
+    long cid(@NotNull String csp) {
+        final Long cid = cids.get(csp);
+        return cid == null ? 0 : cid;
+    }
+
+    /**
+     * @return true if the request should ask for the csp to be interned, the request is then
+     * remembered until its reply is seen by {@link #onReply(long, long)}
+     */
+    boolean request(long tid, @NotNull String csp) {
+        if (!supported)
+            return false;
+
+        final long now = Time.currentTimeMillis();
+        final Pending prev = requested.get(csp);
+        if (prev != null) {
+            if (now - prev.timeMs <= expireMs)
+                return false;
+            forget(prev.tid);
+        }
+        if (pending.size() >= MAX_PENDING) {
+            expire(now);
+            if (pending.size() >= MAX_PENDING)
+                return false;
+        }
+
+        final Pending request = new Pending(tid, csp, now);
+        if (requested.putIfAbsent(csp, request) != null)
+            return false;
+        pending.put(tid, request);
+        return true;
+    }
+
+    /**
+     * forgets a request which will not get a reply, such as one that timed out or an
+     * unsubscribed subscription, so the csp can be asked for again
+     *
+     * @param tid the tid of the request
+     */
+    void forget(long tid) {
+        final Pending request = pending.remove(tid);
+        if (request != null)
+            requested.remove(request.csp, request);
+    }
+
+    private void expire(long now) {
+        final Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            final Pending request = iterator.next();
+            if (now - request.timeMs > expireMs) {
+                iterator.remove();
+                requested.remove(request.csp, request);
+            }
+        }
+    }
+
+    /**
+     * @return true if a request is waiting for a cid, so the reader thread should look for one
+     */
+    boolean isPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * called by the reader thread with the meta data of each reply, while {@link #isPending()}
+     *
+     * @param tid the tid of the reply
+     * @param cid the cid in the meta data of the reply, or 0 if there was none
+     */
+    void onReply(long tid, long cid) {
+        final Pending request = pending.remove(tid);
+        if (request == null)
+            return;
+        requested.remove(request.csp, request);
+
+        if (cid != 0) {
+            cids.put(request.csp, cid);
+            unassigned = 0;
+        } else if (++unassigned >= UNSUPPORTED_AFTER) {
+            supported = false;
+            pending.clear();
+            requested.clear();
+        }
+    }
+
+    /**
+     * forgets a cid the server has evicted
+     *
+     * @param cid the cid in the meta data of the reply, as {@link CoreFields#evictedCid}
+     */
+    void evict(long cid) {
+        cids.values().remove(cid);
+    }
+
+    /**
+     * forgets the cids, as the connection has been dropped
+     */
+    void clear() {
+        cids.clear();
+        pending.clear();
+        requested.clear();
+        unassigned = 0;
+        supported = true;
+    }
+
+    int size() {
+        return cids.size();
+    }
+
+    private static final class Pending {
+        final long tid;
+        @NotNull
+        final String csp;
+        final long timeMs;
+
+        Pending(long tid, @NotNull String csp, long timeMs) {
+            this.tid = tid;
+            this.csp = csp;
+            this.timeMs = timeMs;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.Wires;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The compact frame header, which replaces the meta data document of a message once both ends
+ * of a connection have agreed to use it. Rather than the text keyed {@code csp}, {@code cid}
+ * and {@code tid} fields of a wire document, the meta data is a fixed binary layout
+ * <pre>
+ *     int  header  meta data, length 17
+ *     byte marker  0xFF, which can not start a wire document
+ *     long tid
+ *     long cid     or 0 if there is none
+ * </pre>
+ * followed by the data document as before. So the reader can route a message with two reads at
+ * fixed offsets, without parsing the meta data, which matters for tiny messages where the meta
+ * data costs as much as the payload.
+ * <p>
+ * The client asks for compact frames by adding {@link EventId#compactFrames} to its hand shake,
+ * and the server agrees by sending {@link #writeAccept(WireOut)}, see {@code
+ * WireTcpHandler.acceptCompactFrames}. Until then, and for a meta data which holds more than a
+ * tid and a cid, the meta data is written as a wire document, so a reader must check each meta
+ * data with {@link #isCompact(Bytes, long, long)}, see {@code
+ * WireTcpHandler.readCompactMetaData}.
+ */
+public final class CompactFrames {
+
+    /**
+     * the length of a compact meta data, not including its header
+     */
+    public static final int LENGTH = 17;
+    private static final byte MARKER = (byte) 0xFF;
+
+    private CompactFrames() {
+    }
+
+    /**
+     * writes a compact meta data
+     */
+    public static void writeMetaData(@NotNull Bytes bytes, long tid, long cid) {
+        bytes.writeInt(Wires.META_DATA | LENGTH);
+        bytes.writeByte(MARKER);
+        bytes.writeLong(tid);
+        bytes.writeLong(cid);
+    }
+
+    /**
+     * @param bytes  holding the meta data
+     * @param offset the offset of the meta data, after its header
+     * @param length the length of the meta data
+     * @return true if the meta data is compact, rather than a wire document
+     */
+    public static boolean isCompact(@NotNull Bytes bytes, long offset, long length) {
+        return length == LENGTH && bytes.readByte(offset) == MARKER;
+    }
+
+    /**
+     * @param offset the offset of a compact meta data, after its header
+     */
+    public static long tid(@NotNull Bytes bytes, long offset) {
+        return bytes.readLong(offset + 1);
+    }
+
+    /**
+     * @param offset the offset of a compact meta data, after its header
+     */
+    public static long cid(@NotNull Bytes bytes, long offset) {
+        return bytes.readLong(offset + 9);
+    }
+
+    /**
+     * written by the server, in reply to a hand shake with {@link EventId#compactFrames}, if it
+     * supports compact frames
+     */
+    public static void writeAccept(@NotNull WireOut wire) {
+        wire.writeDocument(true, w -> w.writeEventName(CoreFields.tid).int64(0));
+        wire.writeDocument(false, w -> w.writeEventName(EventId.compactFrames).bool(true));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Connects to the first of a number of servers to accept the connection, rather than trying
+ * them one at a time. The connection attempts are started in order, the primary first, each
+ * {@code staggerMs} after the last unless it has already failed, so the primary is preferred if
+ * it accepts the connection quickly, but a dead primary does not delay the connection to a
+ * replica.
+ * <p>
+ * The connects are non-blocking and raced on a selector, the first to complete is kept and the
+ * rest are closed.
+ */
+class ConnectionRacer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionRacer.class);
+
+    @NotNull
+    private final SocketChannelFactory socketChannelFactory;
+    private final long staggerMs;
+    private int winner = -1;
+    private long attempts;
+
+    /**
+     * @param socketChannelFactory opens an unconnected socket channel
+     * @param staggerMs            the delay between starting each connection attempt
+     */
+    ConnectionRacer(@NotNull SocketChannelFactory socketChannelFactory, long staggerMs) {
+        this.socketChannelFactory = socketChannelFactory;
+        this.staggerMs = staggerMs;
+    }
+
+    /**
+     * @param addresses  the addresses to connect to, in order of preference
+     * @param timeoutMs  how long to wait for any of the connections
+     * @param isShutdown stops the race early
+     * @return a connected, non-blocking, socket channel or null if none of the addresses accepted
+     * a connection in time
+     */
+    @Nullable
+    SocketChannel connect(@NotNull List<? extends Supplier<SocketAddress>> addresses,
+                          long timeoutMs,
+                          @NotNull BooleanSupplier isShutdown) throws IOException {
+        winner = -1;
+        final int count = addresses.size();
+        final SocketChannel[] channels = new SocketChannel[count];
+        SocketChannel connected = null;
+
+        try (Selector selector = Selector.open()) {
+            final long deadline = System.currentTimeMillis() + timeoutMs;
+            long nextStart = 0;
+            int started = 0;
+            int pending = 0;
+
+            while (!isShutdown.getAsBoolean()) {
+                final long now = System.currentTimeMillis();
+                if (now >= deadline)
+                    break;
+
+                // start the next attempt, straight away if all the others have failed
+                if (started < count && (now >= nextStart || pending == 0)) {
+                    final int index = started++;
+                    nextStart = now + staggerMs;
+
+                    final SocketChannel sc = start(addresses.get(index).get());
+                    if (sc != null) {
+                        channels[index] = sc;
+                        if (sc.isConnected()) {
+                            connected = sc;
+                            winner = index;
+                            break;
+                        }
+                        sc.register(selector, SelectionKey.OP_CONNECT, index);
+                        pending++;
+                    }
+                    continue;
+                }
+
+                if (pending == 0)
+                    break;
+
+                final long waitUntil = started < count ? Math.min(nextStart, deadline) : deadline;
+                selector.select(Math.max(1, waitUntil - now));
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext() && connected == null) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    final int index = (Integer) key.attachment();
+                    final SocketChannel sc = channels[index];
+                    try {
+                        if (!sc.finishConnect())
+                            continue;
+                        key.cancel();
+                        connected = sc;
+                        winner = index;
+                    } catch (IOException e) {
+                        if (LOG.isDebugEnabled())
+                            LOG.debug("failed to connect to " + addresses.get(index), e);
+                        closeQuietly(sc);
+                        channels[index] = null;
+                        pending--;
+                    }
+                }
+
+                if (connected != null)
+                    break;
+            }
+
+        } finally {
+            for (SocketChannel sc : channels) {
+                if (sc != null && sc != connected)
+                    closeQuietly(sc);
+            }
+        }
+
+        return connected;
+    }
+
+    @Nullable
+    private SocketChannel start(@Nullable SocketAddress address) throws IOException {
+        if (address == null)
+            return null;
+
+        attempts++;
+        final SocketChannel sc = socketChannelFactory.open();
+        try {
+            sc.configureBlocking(false);
+            if (LOG.isDebugEnabled())
+                LOG.debug("attempting to connect to address=" + address);
+            sc.connect(address);
+            return sc;
+        } catch (IOException e) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("failed to connect to " + address, e);
+            closeQuietly(sc);
+            return null;
+        }
+    }
+
+    /**
+     * @return the index of the address connected to by the last race, or -1 if none was
+     */
+    int winner() {
+        return winner;
+    }
+
+    /**
+     * @return the number of connection attempts started
+     */
+    long attempts() {
+        return attempts;
+    }
+
+    private static void closeQuietly(@NotNull SocketChannel sc) {
+        try {
+            sc.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    interface SocketChannelFactory {
+        @NotNull
+        SocketChannel open() throws IOException;
+    }
+}
@@ -30,7 +30,10 @@ public enum CoreFields implements WireKey {
     csp,
     cid,
     reply,
-    exception;
+    exception,
+    idempotencyKey,
+    internCsp,
+    evictedCid;
 
     @NotNull
     static final ThreadLocal<StringBuilder> cpsBuilder = ThreadLocal.withInitial(StringBuilder::new);
@@ -67,6 +70,10 @@ public enum CoreFields implements WireKey {
         return longEvent(CoreFields.cid, wire);
     }
 
+    public static long idempotencyKey(@NotNull final WireIn wire) {
+        return longEvent(CoreFields.idempotencyKey, wire);
+    }
+
     @NotNull
     public static StringBuilder csp(@NotNull final WireIn wire) {
         return stringEvent(CoreFields.csp, cpsBuilder.get(), wire);
@@ -0,0 +1,130 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.core.util.Time;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes to a non-blocking socket, and when the socket buffer is full, waits on a selector for
+ * it to become writable, rather than spinning, but only until a deadline. The time writes are
+ * held up is recorded.
+ */
+class DeadlineWriter implements Closeable {
+
+    // used to wait for the socket to become writable, guarded by itself
+    @NotNull
+    private final Selector selector;
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    DeadlineWriter() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * writes all the remaining bytes to the non-blocking {@code socketChannel}
+     *
+     * @param socketChannel the channel to write to
+     * @param buffers       the data that you wish to write
+     * @param deadlineMs    the time by which the write must complete
+     * @return false if the deadline passed before all the bytes were written
+     * @throws IOException if the connection fails
+     */
+    boolean writeFully(@NotNull SocketChannel socketChannel,
+                       @NotNull ByteBuffer[] buffers,
+                       long deadlineMs) throws IOException {
+        long blockedSince = 0;
+
+        try {
+            while (remaining(buffers) > 0) {
+                final long len = socketChannel.write(buffers);
+
+                if (len == -1)
+                    throw new EOFException();
+
+                if (len > 0)
+                    continue;
+
+                // the socket buffer is full, the server is not keeping up
+                if (blockedSince == 0)
+                    blockedSince = System.nanoTime();
+
+                final long remainingMs = deadlineMs - Time.currentTimeMillis();
+                if (remainingMs <= 0)
+                    return false;
+
+                awaitWritable(socketChannel, remainingMs);
+            }
+            return true;
+
+        } finally {
+            if (blockedSince != 0) {
+                blockedNanos.addAndGet(System.nanoTime() - blockedSince);
+                blockedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private static long remaining(@NotNull ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers)
+            remaining += buffer.remaining();
+        return remaining;
+    }
+
+    private void awaitWritable(@NotNull SocketChannel socketChannel, long timeoutMs)
+            throws IOException {
+        synchronized (selector) {
+            if (socketChannel.keyFor(selector) == null)
+                socketChannel.register(selector, SelectionKey.OP_WRITE);
+            selector.select(timeoutMs);
+            selector.selectedKeys().clear();
+        }
+    }
+
+    /**
+     * @return the total time in nanoseconds that writes have been held up
+     */
+    long blockedNanos() {
+        return blockedNanos.get();
+    }
+
+    /**
+     * @return the number of writes that had to wait for the socket to become writable
+     */
+    long blockedCount() {
+        return blockedCount.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
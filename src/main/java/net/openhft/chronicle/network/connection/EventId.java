@@ -23,5 +23,11 @@ public enum EventId implements WireKey {
     heartbeatReply,
     onClientClosing,
     onClosingReply,
-    userid
+    userid,
+    subscribeInvalidations,
+    invalidate,
+    invalidateAll,
+    credit,
+    compactFrames,
+    creditBytes
 }
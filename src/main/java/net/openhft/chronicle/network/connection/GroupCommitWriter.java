@@ -0,0 +1,296 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Offloads the client's outbound writes to a writer thread. A caller copies its frame into a
+ * ring and returns straight away, and the writer thread drains everything that is pending with
+ * one gathering {@code write()}. So when the callers write faster than the socket, many frames
+ * share one syscall, and the caller holds the hub's outBytesLock for a copy rather than for a
+ * syscall.
+ * <p>
+ * This is not a multi producer queue, the callers still take turns on the outBytesLock, as they
+ * all serialise into the hub's single outWire. A producer copies its frame and then publishes it
+ * by advancing {@code committed}, so the writer always sees a contiguous run of complete frames.
+ * <p>
+ * When there is nothing to write, the writer thread parks until a frame is appended. It can be
+ * made to spin first, for {@code -Dtcp.client.groupCommit.spin} iterations, which saves the
+ * wake up of the writer at the cost of a busy core, by default it does not spin.
+ * <p>
+ * Frames which can not be written, as a write failed or there is no connection, are discarded.
+ * A failed write is passed to {@code onWriteFailure}, the hub then closes the connection, and
+ * that fails the sync requests which have not had their replies, see {@link
+ * PendingReplies#failReserved()}, so a producer whose frame was discarded is told when it waits
+ * for its reply.
+ */
+public class GroupCommitWriter implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommitWriter.class);
+    // the times the writer checks for frames before it parks, zero so it does not busy spin
+    private static final int SPIN_BEFORE_PARK = Integer.getInteger("tcp.client.groupCommit.spin",
+            0);
+
+    @NotNull
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    @NotNull
+    private final ThreadLocal<ByteBuffer> producerView;
+    @NotNull
+    private final ByteBuffer[] writerView = new ByteBuffer[2];
+
+    // claimed by the producer, only used by the thread holding the caller's lock
+    private long tail;
+    // published by the producer, always <= tail
+    private final AtomicLong committed = new AtomicLong();
+    // consumed by the writer, always <= committed
+    private volatile long head;
+
+    @NotNull
+    private final String name;
+    @NotNull
+    private final Supplier<SocketChannel> channel;
+    @NotNull
+    private final ChannelWriter channelWriter;
+    @NotNull
+    private final Consumer<Exception> onWriteFailure;
+
+    @Nullable
+    private volatile Thread writerThread;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    private volatile long frames;
+    private volatile long writes;
+    private volatile long bytesWritten;
+
+    /**
+     * @param name           used to name the writer thread
+     * @param capacity       the size of the ring in bytes, this is rounded up to a power of 2
+     * @param channel        supplies the current socket channel, or null when disconnected
+     * @param channelWriter  writes all the remaining bytes of the buffers to the channel
+     * @param onWriteFailure called on the writer thread if a write fails, the frames it was
+     *                       writing are discarded
+     */
+    public GroupCommitWriter(@NotNull String name,
+                             int capacity,
+                             @NotNull Supplier<SocketChannel> channel,
+                             @NotNull ChannelWriter channelWriter,
+                             @NotNull Consumer<Exception> onWriteFailure) {
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.buffer = ByteBuffer.allocateDirect(this.capacity);
+        this.producerView = ThreadLocal.withInitial(buffer::duplicate);
+        this.writerView[0] = buffer.duplicate();
+        this.writerView[1] = buffer.duplicate();
+        this.name = name;
+        this.channel = channel;
+        this.channelWriter = channelWriter;
+        this.onWriteFailure = onWriteFailure;
+    }
+
+    public void start() {
+        final Thread thread = new Thread(this, "TcpChannelHub-writer-" + name);
+        thread.setDaemon(true);
+        writerThread = thread;
+        thread.start();
+    }
+
+    /**
+     * copies the remaining bytes of the {@code frame} into the ring and hands them to the writer
+     * thread, the bytes are consumed from {@code frame}. Only one thread at a time may append.
+     *
+     * @param frame      the frame to send
+     * @param deadlineMs how long to wait for space in the ring
+     * @throws IllegalArgumentException if the frame can never fit in the ring
+     * @throws IllegalStateException    if there is no space by the {@code deadlineMs}
+     */
+    public void append(@NotNull ByteBuffer frame, long deadlineMs) {
+        final int length = frame.remaining();
+        if (length == 0)
+            return;
+
+        if (length > capacity)
+            throw new IllegalArgumentException("frame of " + length + " bytes is larger than the " +
+                    "group commit buffer of " + capacity + " bytes");
+
+        final long start = claim(length, deadlineMs);
+
+        final ByteBuffer view = producerView.get();
+        final int offset = (int) (start & mask);
+        final int firstPart = Math.min(length, capacity - offset);
+        final int limit = frame.limit();
+
+        frame.limit(frame.position() + firstPart);
+        view.clear();
+        view.position(offset);
+        view.put(frame);
+
+        frame.limit(limit);
+        if (firstPart < length) {
+            view.clear();
+            view.put(frame);
+        }
+
+        frames++;
+        tail = start + length;
+        // a full fence, so the check of writerParked below can not be reordered before the
+        // publish, which could miss the writer parking and leave the frame unsent
+        committed.set(start + length);
+
+        if (writerParked)
+            LockSupport.unpark(writerThread);
+    }
+
+    private long claim(int length, long deadlineMs) {
+        final long t = tail;
+        while (t + length - head > capacity) {
+            if (closed)
+                throw new IllegalStateException("Closed");
+            if (System.currentTimeMillis() > deadlineMs)
+                throw new IllegalStateException("group commit buffer is full, " +
+                        "pending=" + (t - head) + " bytes");
+            LockSupport.unpark(writerThread);
+            Thread.yield();
+        }
+        return t;
+    }
+
+    /**
+     * drops any bytes which have not yet been written, this must only be called while the
+     * producers are excluded and the channel supplier returns null, so that the writer discards
+     * rather than sends them
+     */
+    public void discardPending() {
+        while (head != committed.get() && !closed) {
+            LockSupport.unpark(writerThread);
+            Thread.yield();
+        }
+    }
+
+    public boolean hasPending() {
+        return head != committed.get();
+    }
+
+    @Override
+    public void run() {
+        int spins = 0;
+        while (!closed) {
+            final long h = head;
+            final long c = committed.get();
+
+            if (c == h) {
+                if (spins++ < SPIN_BEFORE_PARK)
+                    continue;
+                writerParked = true;
+                if (committed.get() == head)
+                    LockSupport.parkNanos(this, 1_000_000L);
+                writerParked = false;
+                continue;
+            }
+            spins = 0;
+
+            // with no connection the frames are discarded, their requests were failed as the
+            // connection was closed
+            final SocketChannel socketChannel = channel.get();
+            if (socketChannel != null) {
+                try {
+                    write(socketChannel, h, c);
+                } catch (IOException | RuntimeException e) {
+                    if (!closed) {
+                        if (LOG.isDebugEnabled())
+                            LOG.debug("group commit write failed, name=" + name, e);
+                        onWriteFailure.accept(e);
+                    }
+                }
+            }
+
+            head = c;
+        }
+    }
+
+    private void write(@NotNull SocketChannel socketChannel, long from, long to) throws IOException {
+        final int offset = (int) (from & mask);
+        final int length = (int) (to - from);
+        final int firstPart = Math.min(length, capacity - offset);
+
+        final ByteBuffer first = writerView[0];
+        first.clear();
+        first.position(offset).limit(offset + firstPart);
+
+        final ByteBuffer second = writerView[1];
+        second.clear();
+        second.limit(length - firstPart);
+
+        channelWriter.write(socketChannel, writerView);
+        writes++;
+        bytesWritten += length;
+    }
+
+    /**
+     * @return the number of frames which have been handed to the writer
+     */
+    public long frames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of batches sent by the writer, compare with {@link #frames()} to see how
+     * well the frames are being batched
+     */
+    public long writes() {
+        return writes;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+    }
+
+    public interface ChannelWriter {
+        void write(@NotNull SocketChannel socketChannel, @NotNull ByteBuffer[] buffers)
+                throws IOException;
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "GroupCommitWriter{" +
+                "name=" + name +
+                ", frames=" + frames +
+                ", writes=" + writes +
+                ", bytesWritten=" + bytesWritten +
+                '}';
+    }
+}
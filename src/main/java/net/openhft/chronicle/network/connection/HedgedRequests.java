@@ -0,0 +1,311 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.bytes.ConnectionDroppedException;
+import net.openhft.chronicle.core.Jvm;
+import net.openhft.chronicle.network.HashedWheelTimer;
+import net.openhft.chronicle.wire.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Sends read only requests to a primary server, and if there is no reply within a hedge delay,
+ * sends the same request to a secondary server. The first reply is used, and the other is
+ * cancelled. This bounds the tail latency caused by a pause, such as a GC, on one server.
+ * <p>
+ * The hedge delay is the {@code percentile} of the recent reply times, so only the slowest
+ * requests are sent twice. Each request is sent as a temporary subscription, so that its reply is
+ * handed over by the reader thread, rather than a thread blocking on each connection. A
+ * cancelled request stays subscribed until its reply arrives, and the reply is discarded, so a
+ * late reply is not parked with the replies for other requests, where it could push them out.
+ * If there is still no reply after another {@code timeoutMs}, the request is unsubscribed.
+ * <p>
+ * Only idempotent requests should be hedged, as the server may process both.
+ */
+public class HedgedRequests {
+
+    private static final int INITIAL_DELAY_MS = Integer.getInteger("tcp.client.hedge.initial" +
+            ".delay", 100);
+    private static final int SAMPLES = 1024;
+    private static final int RECALCULATE_EVERY = 128;
+
+    @NotNull
+    private final TcpChannelHub primary;
+    @NotNull
+    private final TcpChannelHub secondary;
+    private final double percentile;
+    private final long minDelayMs;
+
+    private final long[] samples = new long[SAMPLES];
+    private long sampleCount;
+    private volatile long hedgeDelayMs = INITIAL_DELAY_MS;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong secondaryWins = new AtomicLong();
+
+    /**
+     * @param primary    the connection each request is sent to first
+     * @param secondary  the connection to a replica, which the request is sent to if the primary
+     *                   is slow to reply
+     * @param percentile the percentile of the reply times to hedge after, for example 95.0
+     * @param minDelayMs the shortest hedge delay, this stops fast replies causing every request to
+     *                   be hedged
+     */
+    public HedgedRequests(@NotNull TcpChannelHub primary,
+                          @NotNull TcpChannelHub secondary,
+                          double percentile,
+                          long minDelayMs) {
+        if (percentile <= 0 || percentile >= 100)
+            throw new IllegalArgumentException("percentile=" + percentile);
+        this.primary = primary;
+        this.secondary = secondary;
+        this.percentile = percentile;
+        this.minDelayMs = minDelayMs;
+    }
+
+    /**
+     * sends the request, hedging it if there is no reply within {@link #hedgeDelayMs()}
+     *
+     * @param csp        the uri of the request
+     * @param eventId    the event of the request
+     * @param parameters writes the parameters of the request, or null if there are none
+     * @param reply      reads the result from the reply
+     * @param timeoutMs  how long to wait for a reply from either server
+     * @return the result from the first reply
+     * @throws ConnectionDroppedException if both connections are dropped before a reply
+     */
+    public <T> T request(@NotNull String csp,
+                         @NotNull WireKey eventId,
+                         @Nullable Consumer<ValueOut> parameters,
+                         @NotNull Function<ValueIn, T> reply,
+                         long timeoutMs) {
+        requests.incrementAndGet();
+        final long start = System.currentTimeMillis();
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        // there is no point waiting on a primary which is not connected
+        final TcpChannelHub first = primary.isOpen() ? primary : secondary;
+        final Leg<T> firstLeg = new Leg<>(first, csp, eventId, parameters, reply, result, start);
+        Leg<T> secondLeg = null;
+        first.subscribe(firstLeg);
+
+        try {
+            // hedge if the primary is slow, or as soon as its connection is dropped
+            final long hedgeDelayMs = Math.min(this.hedgeDelayMs, timeoutMs);
+            try {
+                CompletableFuture.anyOf(result, firstLeg.dropped)
+                        .get(hedgeDelayMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException ignore) {
+                // the result is checked below
+            }
+
+            CompletableFuture<?> allDropped = firstLeg.dropped;
+            if (!result.isDone() && first == primary) {
+                hedges.incrementAndGet();
+                secondLeg = new Leg<>(secondary, csp, eventId, parameters, reply, result,
+                        System.currentTimeMillis());
+                secondary.subscribe(secondLeg);
+                allDropped = CompletableFuture.allOf(firstLeg.dropped, secondLeg.dropped);
+            }
+
+            final long remaining = start + timeoutMs - System.currentTimeMillis();
+            try {
+                CompletableFuture.anyOf(result, allDropped)
+                        .get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ignore) {
+                // the result is checked below
+            }
+
+            if (!result.isDone())
+                throw new ConnectionDroppedException("Connection Closed : the connection to the " +
+                        "server has been dropped.");
+            return result.get();
+
+        } catch (TimeoutException e) {
+            throw Jvm.rethrow(new TimeoutException("timeoutMs=" + timeoutMs));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Jvm.rethrow(e);
+        } catch (ExecutionException e) {
+            throw Jvm.rethrow(e.getCause());
+
+        } finally {
+            // cancels the loser, the winner has already had its reply
+            firstLeg.cancel(timeoutMs);
+            if (secondLeg != null)
+                secondLeg.cancel(timeoutMs);
+        }
+    }
+
+    /**
+     * @return how long a request waits for the primary before it is hedged
+     */
+    public long hedgeDelayMs() {
+        return hedgeDelayMs;
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests which were also sent to the secondary
+     */
+    public long hedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return the number of hedged requests where the secondary replied first
+     */
+    public long secondaryWins() {
+        return secondaryWins.get();
+    }
+
+    private void onReply(@NotNull TcpChannelHub hub, long latencyMs) {
+        if (hub == secondary)
+            secondaryWins.incrementAndGet();
+
+        synchronized (samples) {
+            samples[(int) (sampleCount++ % SAMPLES)] = latencyMs;
+            if (sampleCount % RECALCULATE_EVERY != 0)
+                return;
+
+            final int count = (int) Math.min(sampleCount, SAMPLES);
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            hedgeDelayMs = Math.max(minDelayMs, sorted[Math.max(0, index)]);
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "HedgedRequests{" +
+                "hedgeDelayMs=" + hedgeDelayMs +
+                ", requests=" + requests +
+                ", hedges=" + hedges +
+                ", secondaryWins=" + secondaryWins +
+                '}';
+    }
+
+    /**
+     * the request sent to one of the servers
+     */
+    private class Leg<T> extends AbstractAsyncTemporarySubscription {
+
+        @NotNull
+        private final WireKey eventId;
+        @Nullable
+        private final Consumer<ValueOut> parameters;
+        @NotNull
+        private final Function<ValueIn, T> reply;
+        @NotNull
+        private final CompletableFuture<T> result;
+        @NotNull
+        private final TcpChannelHub hub;
+        private final long sentTimeMs;
+        // completed if the connection is dropped before the reply
+        final CompletableFuture<Void> dropped = new CompletableFuture<>();
+        // once the reply has arrived, the subscription has been removed
+        private volatile boolean replied;
+
+        Leg(@NotNull TcpChannelHub hub,
+            @NotNull String csp,
+            @NotNull WireKey eventId,
+            @Nullable Consumer<ValueOut> parameters,
+            @NotNull Function<ValueIn, T> reply,
+            @NotNull CompletableFuture<T> result,
+            long sentTimeMs) {
+            super(hub, csp, "HedgedRequest");
+            this.eventId = eventId;
+            this.parameters = parameters;
+            this.reply = reply;
+            this.result = result;
+            this.hub = hub;
+            this.sentTimeMs = sentTimeMs;
+        }
+
+        @Override
+        public void onSubscribe(@NotNull WireOut wireOut) {
+            final ValueOut valueOut = wireOut.writeEventName(eventId);
+            if (parameters == null)
+                valueOut.marshallable(WriteMarshallable.EMPTY);
+            else
+                parameters.accept(valueOut);
+        }
+
+        @Override
+        public void onConsumer(@NotNull WireIn inWire) {
+            replied = true;
+            if (result.isDone())
+                return;
+
+            inWire.readDocument(null, d -> {
+                final StringBuilder eventName = Wires.acquireStringBuilder();
+                final ValueIn valueIn = d.readEventName(eventName);
+
+                if (CoreFields.reply.contentEquals(eventName)) {
+                    final T value;
+                    try {
+                        value = reply.apply(valueIn);
+                    } catch (RuntimeException e) {
+                        result.completeExceptionally(e);
+                        return;
+                    }
+                    if (result.complete(value))
+                        onReply(hub, System.currentTimeMillis() - sentTimeMs);
+
+                } else if (CoreFields.exception.contentEquals(eventName)) {
+                    result.completeExceptionally(valueIn.throwable(true));
+
+                } else {
+                    result.completeExceptionally(new UnsupportedOperationException("unknown " +
+                            "event=" + eventName));
+                }
+            });
+        }
+
+        @Override
+        public void onClose() {
+            dropped.complete(null);
+        }
+
+        /**
+         * leaves the subscription to discard the reply, if it has not yet arrived, and removes
+         * it if the reply is still missing after {@code graceMs}
+         */
+        void cancel(long graceMs) {
+            if (replied || dropped.isDone())
+                return;
+            final long tid = tid();
+            HashedWheelTimer.shared().schedule(() -> hub.unsubscribe(tid), graceMs);
+        }
+    }
+}
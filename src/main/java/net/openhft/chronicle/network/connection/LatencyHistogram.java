@@ -0,0 +1,137 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free, allocation free, histogram of latencies in nanoseconds. The values are counted in
+ * buckets which are a power of 2 wide, each split into 8 sub buckets, so a percentile is accurate
+ * to within 12.5%, over the whole range of a long.
+ * <p>
+ * {@link #record(long)} can be called from any number of threads, and the percentiles read
+ * while values are being recorded.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    @NotNull
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    @NotNull
+    private final AtomicLong count = new AtomicLong();
+    @NotNull
+    private final AtomicLong total = new AtomicLong();
+    @NotNull
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the latency to record, a negative value is counted as zero
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        for (long m = max.get(); value > m; m = max.get()) {
+            if (max.compareAndSet(m, value))
+                break;
+        }
+    }
+
+    public static int index(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the highest value which falls in the bucket
+     */
+    public static long highestValue(int index) {
+        if (index < LINEAR)
+            return index;
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @param percentile for example 99.9
+     * @return the latency in nanoseconds which {@code percentile} of the values are at or below,
+     * or 0 if nothing has been recorded
+     */
+    public long percentile(double percentile) {
+        final long count = this.count.get();
+        if (count == 0)
+            return 0;
+
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public long mean() {
+        final long count = this.count.get();
+        return count == 0 ? 0 : total.get() / count;
+    }
+
+    /**
+     * clears the histogram, values recorded while this is running may be lost
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" +
+                "count=" + count() +
+                ", mean=" + mean() +
+                ", 50%=" + percentile(50) +
+                ", 99%=" + percentile(99) +
+                ", 99.9%=" + percentile(99.9) +
+                ", max=" + max() +
+                '}';
+    }
+}
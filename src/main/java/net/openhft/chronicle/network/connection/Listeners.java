@@ -0,0 +1,74 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * The listeners sharing a subscription to a csp, each update is handed to every listener, in the
+ * order they were added. A listener which throws is logged, and does not stop the others being
+ * called.
+ *
+ * @param <T> the type of the updates
+ */
+class Listeners<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Listeners.class);
+
+    @NotNull
+    private final String csp;
+    private final List<Consumer<? super T>> listeners = new CopyOnWriteArrayList<>();
+
+    Listeners(@NotNull String csp) {
+        this.csp = csp;
+    }
+
+    void add(@NotNull Consumer<? super T> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return false if the listener had already been removed
+     */
+    boolean remove(@NotNull Consumer<? super T> listener) {
+        return listeners.remove(listener);
+    }
+
+    boolean isEmpty() {
+        return listeners.isEmpty();
+    }
+
+    int size() {
+        return listeners.size();
+    }
+
+    void publish(T update) {
+        for (Consumer<? super T> listener : listeners) {
+            try {
+                listener.accept(update);
+            } catch (Exception e) {
+                LOG.error("listener failed for csp=" + csp, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.core.util.Time;
+import net.openhft.chronicle.wire.ValueIn;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.Wires;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A client side cache of the results of idempotent calls, keyed by the csp, the event and the
+ * arguments of the call. Entries are evicted, roughly least recently used first, once there are
+ * more than {@code maxEntries}, and entries expire after {@code ttlMs}.
+ * <p>
+ * Lookups take no lock and do not allocate, see {@link #get(String, String, Object...)}. Rather
+ * than keep the entries in access order, which makes every lookup a write to a shared list, each
+ * entry records when it was last used, and an eviction removes the least recently used of a
+ * small sample of the entries. Each sample carries on from where the last one stopped, sweeping
+ * round the table, so every entry is looked at in turn, rather than only those which happen to
+ * come first.
+ * <p>
+ * The cache is kept coherent by the server, which pushes invalidations on a subscription, see
+ * {@link #subscribeToInvalidations(TcpChannelHub, String)}. For each change the server sends
+ * either {@link EventId#invalidate} with the csp which changed, or {@link
+ * EventId#invalidateAll}. While disconnected invalidations may be missed, so the whole cache is
+ * cleared when the connection is dropped.
+ */
+public class NearCache {
+
+    // the entries looked at to choose the one to evict
+    private static final int EVICTION_SAMPLE = 8;
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    // the key each thread looks up with, so a lookup does not allocate
+    private final ThreadLocal<Lookup> lookup = ThreadLocal.withInitial(Lookup::new);
+    // where the next eviction sample starts, guarded by this
+    @NotNull
+    private Iterator<Entry> evictionCursor = Collections.emptyIterator();
+
+    // incremented on every invalidation, so a result fetched during an invalidation is not cached
+    private final AtomicLong version = new AtomicLong();
+    // incremented on every put, an entry records the value when it was last used
+    private final AtomicLong clock = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxEntries the most entries to hold
+     * @param ttlMs      how long an entry is held, or zero to hold it until it is evicted or
+     *                   invalidated
+     */
+    public NearCache(int maxEntries, long ttlMs) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * @param key the key of the call
+     * @return the cached result or null if there is none
+     */
+    @Nullable
+    public Object get(@NotNull Key key) {
+        return get0(key);
+    }
+
+    /**
+     * as {@link #get(Key)}, without allocating a key
+     *
+     * @return the cached result or null if there is none
+     */
+    @Nullable
+    public Object get(@NotNull String csp, @NotNull String event, @Nullable Object... args) {
+        final Lookup lookup = this.lookup.get();
+        lookup.set(csp, event, args);
+        try {
+            return get0(lookup);
+        } finally {
+            // don't hold on to the args
+            lookup.set(null, null, null);
+        }
+    }
+
+    @Nullable
+    private Object get0(@NotNull Object key) {
+        //noinspection SuspiciousMethodCalls
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (ttlMs > 0 && Time.currentTimeMillis() > entry.expiryTimeMs) {
+            if (entries.remove(entry.key, entry))
+                evictions.increment();
+            misses.increment();
+            return null;
+        }
+        // used after the latest put, only written when it changes, so repeated lookups only read
+        final long now = clock.get() + 1;
+        if (entry.lastUsed != now)
+            entry.lastUsed = now;
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * @return the version to pass to {@link #put(Key, Object, long)}, this should be read before
+     * the call is made to the server
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * caches the result, unless there has been an invalidation since the {@code version} was
+     * read, as the result may then already be stale
+     *
+     * @param key     the key of the call
+     * @param value   the result of the call
+     * @param version the {@link #version()} read before the call was made
+     */
+    public void put(@NotNull Key key, @Nullable Object value, long version) {
+        if (value == null || version != this.version.get())
+            return;
+        final Entry entry = new Entry(key, value, Time.currentTimeMillis() + ttlMs,
+                clock.incrementAndGet());
+        entries.put(key, entry);
+
+        // an invalidation may have run after the version was checked, and missed this entry
+        if (version != this.version.get()) {
+            entries.remove(key, entry);
+            return;
+        }
+
+        while (entries.size() > maxEntries)
+            evict();
+    }
+
+    /**
+     * removes the least recently used of the next few entries, starting over at the beginning of
+     * the table once the end has been reached
+     */
+    private synchronized void evict() {
+        Entry oldest = null;
+        final int sample = Math.min(EVICTION_SAMPLE, entries.size());
+        for (int sampled = 0; sampled < sample; sampled++) {
+            if (!evictionCursor.hasNext()) {
+                evictionCursor = entries.values().iterator();
+                if (!evictionCursor.hasNext())
+                    break;
+            }
+            final Entry entry = evictionCursor.next();
+            if (oldest == null || entry.lastUsed < oldest.lastUsed)
+                oldest = entry;
+        }
+        if (oldest != null && entries.remove(oldest.key, oldest))
+            evictions.increment();
+    }
+
+    /**
+     * removes all the entries for the {@code csp}
+     */
+    public void invalidate(@NotNull CharSequence csp) {
+        version.incrementAndGet();
+        invalidations.increment();
+        final String cspString = csp.toString();
+        entries.keySet().removeIf(key -> key.csp.equals(cspString));
+    }
+
+    public void invalidateAll() {
+        version.incrementAndGet();
+        invalidations.increment();
+        entries.clear();
+    }
+
+    /**
+     * subscribes to the invalidations pushed by the server
+     *
+     * @param hub the connection to the server
+     * @param csp the uri the server publishes the invalidations on
+     * @return the subscription, which can be passed to {@link TcpChannelHub#unsubscribe(long)}
+     */
+    @NotNull
+    public AsyncSubscription subscribeToInvalidations(@NotNull TcpChannelHub hub,
+                                                      @NotNull String csp) {
+        final AsyncSubscription subscription = new AbstractAsyncSubscription(hub, csp,
+                "NearCache") {
+            @Override
+            public void onSubscribe(@NotNull WireOut wireOut) {
+                wireOut.writeEventName(EventId.subscribeInvalidations).text("");
+            }
+
+            @Override
+            public void onConsumer(@NotNull WireIn inWire) {
+                inWire.readDocument(null, d -> {
+                    final StringBuilder eventName = Wires.acquireStringBuilder();
+                    final ValueIn valueIn = d.readEventName(eventName);
+                    if (EventId.invalidate.contentEquals(eventName)) {
+                        final String csp0 = valueIn.text();
+                        if (csp0 == null)
+                            invalidateAll();
+                        else
+                            invalidate(csp0);
+                    } else if (EventId.invalidateAll.contentEquals(eventName))
+                        invalidateAll();
+                });
+            }
+
+            @Override
+            public void onClose() {
+                // we may miss invalidations while disconnected
+                invalidateAll();
+            }
+        };
+        hub.subscribe(subscription);
+        return subscription;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "NearCache{" +
+                "size=" + entries.size() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", invalidations=" + invalidations +
+                '}';
+    }
+
+    /**
+     * the key of a call, made up of the csp, the event and the arguments
+     */
+    public static final class Key {
+        @NotNull
+        final String csp;
+        @NotNull
+        final String event;
+        @Nullable
+        final Object[] args;
+        private final int hashCode;
+
+        /**
+         * @param args copied, along with any arrays in them, so the caller may reuse the array
+         */
+        public Key(@NotNull String csp, @NotNull String event, @Nullable Object... args) {
+            this.csp = csp;
+            this.event = event;
+            this.args = args == null ? null : (Object[]) copyArray(args);
+            this.hashCode = hash(csp, event, this.args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o instanceof Lookup)
+                return o.equals(this);
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return hashCode == key.hashCode &&
+                    csp.equals(key.csp) &&
+                    event.equals(key.event) &&
+                    Arrays.deepEquals(args, key.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "Key{" +
+                    "csp='" + csp + '\'' +
+                    ", event='" + event + '\'' +
+                    ", args=" + Arrays.deepToString(args) +
+                    '}';
+        }
+    }
+
+    private static int hash(@NotNull String csp, @NotNull String event, @Nullable Object[] args) {
+        int hash = 31 * csp.hashCode() + event.hashCode();
+        if (args == null)
+            return 31 * hash;
+        int argsHash = 1;
+        for (Object arg : args) {
+            // only nested arrays need the deep hash
+            final int h = arg == null ? 0
+                    : arg.getClass().isArray() ? Arrays.deepHashCode(new Object[]{arg})
+                    : arg.hashCode();
+            argsHash = 31 * argsHash + h;
+        }
+        return 31 * hash + argsHash;
+    }
+
+    /**
+     * @return a copy of the array, and of any arrays it holds
+     */
+    @NotNull
+    private static Object copyArray(@NotNull Object array) {
+        final int length = Array.getLength(array);
+        final Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+        if (array instanceof Object[]) {
+            final Object[] from = (Object[]) array;
+            final Object[] to = (Object[]) copy;
+            for (int i = 0; i < length; i++)
+                to[i] = from[i] != null && from[i].getClass().isArray()
+                        ? copyArray(from[i])
+                        : from[i];
+        } else {
+            System.arraycopy(array, 0, copy, 0, length);
+        }
+        return copy;
+    }
+
+    /**
+     * a reusable key, only used to look up an entry
+     */
+    private static final class Lookup {
+        String csp;
+        String event;
+        Object[] args;
+        int hashCode;
+
+        void set(String csp, String event, Object[] args) {
+            this.csp = csp;
+            this.event = event;
+            this.args = args;
+            this.hashCode = csp == null ? 0 : hash(csp, event, args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return hashCode == key.hashCode &&
+                    key.csp.equals(csp) &&
+                    key.event.equals(event) &&
+                    Arrays.deepEquals(args, key.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Entry {
+        @NotNull
+        final Key key;
+        @NotNull
+        final Object value;
+        final long expiryTimeMs;
+        // the clock when this was last used, racy, as it is only a hint for eviction
+        volatile long lastUsed;
+
+        Entry(@NotNull Key key, @NotNull Object value, long expiryTimeMs, long lastUsed) {
+            this.key = key;
+            this.value = value;
+            this.expiryTimeMs = expiryTimeMs;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.core.util.Time;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Holds replies which arrive before their tid has been registered, this can occur if the server
+ * responds before the client thread has started to wait for the reply. The reply is parked here,
+ * so the reader thread can carry on, and is claimed when the tid is registered.
+ * <p>
+ * The store is bounded, both in the number of replies and how long they are held for, as a
+ * reply for a tid which is never registered, for example after an unsubscribe, is discarded.
+ * The tid of a sync request is reserved before the request is written, the replies for
+ * reserved tids are kept apart and not counted towards the capacity, so are only discarded if
+ * they are not claimed in time. A burst of replies for tids which were never reserved, such as
+ * the pushes for a subscription which has just been removed, can only push out each other.
+ * <p>
+ * When the connection is lost, the replies to the reserved tids can no longer arrive, so the
+ * reservations are marked as failed, see {@link #failReserved()}. A request whose frame was
+ * still queued to be written, and so was never sent, then fails as soon as its reply is waited
+ * for, rather than when it times out.
+ * <p>
+ * A reply in more than one part, where all but the last are not ready, has all of its parts
+ * parked, in order, and they are claimed one at a time.
+ * <p>
+ * This class is used as the lock which makes the check for a registration and the parking of a
+ * reply atomic.
+ */
+class PendingReplies {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PendingReplies.class);
+
+    private final int capacity;
+    private final long timeoutMs;
+    private final LinkedHashMap<Long, PendingReply> replies = new LinkedHashMap<>();
+    // the time each tid was reserved, by tid, and the replies which arrived for them
+    private final LinkedHashMap<Long, Long> reserved = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, PendingReply> reservedReplies = new LinkedHashMap<>();
+    // the time each tid was reserved, for the reservations made before the connection was lost
+    private final LinkedHashMap<Long, Long> failed = new LinkedHashMap<>();
+    private final ArrayDeque<Bytes> pool = new ArrayDeque<>();
+    private long discarded;
+
+    /**
+     * @param capacity  the most tids that replies are held for
+     * @param timeoutMs how long a reply is held waiting for its tid to be registered
+     */
+    PendingReplies(int capacity, long timeoutMs) {
+        this.capacity = capacity;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return bytes, backed by a ByteBuffer, to read a reply into
+     */
+    @NotNull
+    synchronized Bytes acquire() {
+        final Bytes bytes = pool.poll();
+        return bytes == null ? Bytes.elasticByteBuffer() : bytes;
+    }
+
+    synchronized void release(@NotNull Bytes bytes) {
+        if (pool.size() < capacity)
+            pool.add(bytes);
+    }
+
+    /**
+     * parks a reply, discarding any that have expired and the oldest if the store is full
+     *
+     * @param tid     the tid of the reply
+     * @param bytes   the header and the reply, from {@link #acquire()}
+     * @param isReady true if this is the last message for the tid
+     */
+    synchronized void put(long tid, @NotNull Bytes bytes, boolean isReady) {
+        final long now = Time.currentTimeMillis();
+        expireReserved(now);
+
+        final PendingReply reply = new PendingReply(bytes, isReady, now);
+        if (reserved.containsKey(tid)) {
+            if (isReady)
+                reserved.remove(tid);
+            append(reservedReplies, tid, reply);
+            return;
+        }
+
+        // a later part of a reply is kept with the earlier parts, rather than evicting them
+        final PendingReply parts = replies.get(tid);
+        if (parts != null) {
+            parts.append(reply);
+            return;
+        }
+
+        final Iterator<PendingReply> iterator = replies.values().iterator();
+        while (iterator.hasNext()) {
+            final PendingReply oldest = iterator.next();
+            if (now - oldest.timeMs <= timeoutMs && replies.size() < capacity)
+                break;
+
+            iterator.remove();
+            discard(oldest);
+        }
+
+        replies.put(tid, reply);
+    }
+
+    private static void append(@NotNull LinkedHashMap<Long, PendingReply> replies,
+                               long tid,
+                               @NotNull PendingReply reply) {
+        final PendingReply parts = replies.get(tid);
+        if (parts == null)
+            replies.put(tid, reply);
+        else
+            parts.append(reply);
+    }
+
+    /**
+     * @param tid the tid which is being registered
+     * @return the first part of the reply which was waiting for this tid or null if there was
+     * none, any later parts stay parked, see {@link #isParked(long)}
+     */
+    @Nullable
+    synchronized PendingReply remove(long tid) {
+        PendingReply reply = poll(reservedReplies, tid);
+        if (reply == null)
+            reply = poll(replies, tid);
+        if (!isParked(tid))
+            reserved.remove(tid);
+
+        if (reply != null && Time.currentTimeMillis() - reply.timeMs > timeoutMs) {
+            // the later parts are of no use without this one
+            discard(reply);
+            unreserve(tid);
+            final PendingReply rest = replies.remove(tid);
+            if (rest != null)
+                discard(rest);
+            return null;
+        }
+        return reply;
+    }
+
+    /**
+     * @return true if there is a part of a reply for this tid still parked
+     */
+    synchronized boolean isParked(long tid) {
+        return reservedReplies.containsKey(tid) || replies.containsKey(tid);
+    }
+
+    @Nullable
+    private static PendingReply poll(@NotNull LinkedHashMap<Long, PendingReply> replies, long tid) {
+        final PendingReply reply = replies.get(tid);
+        if (reply == null)
+            return null;
+        final PendingReply next = reply.next;
+        if (next == null) {
+            replies.remove(tid);
+        } else {
+            // replacing the value keeps the place of the tid in the map
+            next.last = reply.last;
+            replies.put(tid, next);
+        }
+        reply.next = null;
+        reply.last = reply;
+        return reply;
+    }
+
+    /**
+     * holds the reply for the {@code tid}, if it arrives before the tid is registered, until it
+     * is claimed or times out, rather than it being discarded to make room for other replies
+     *
+     * @param tid the tid of a request which has been written, or is about to be
+     */
+    synchronized void reserve(long tid) {
+        final long now = Time.currentTimeMillis();
+        expireReserved(now);
+        reserved.put(tid, now);
+    }
+
+    /**
+     * cancels a reservation, and discards any reply held for it
+     */
+    synchronized void unreserve(long tid) {
+        reserved.remove(tid);
+        final PendingReply reply = reservedReplies.remove(tid);
+        if (reply != null)
+            release(reply);
+    }
+
+    /**
+     * the connection has been lost, so the reserved tids whose replies have not arrived in full
+     * never will get them, see {@link #claimFailure(long)}
+     */
+    synchronized void failReserved() {
+        failed.putAll(reserved);
+        reserved.clear();
+    }
+
+    /**
+     * @param tid the tid which is being registered
+     * @return true if the reply for this tid can not arrive, as the connection was lost after it
+     * was reserved, any parts of the reply already held are discarded
+     */
+    synchronized boolean claimFailure(long tid) {
+        if (failed.remove(tid) == null)
+            return false;
+        final PendingReply parts = reservedReplies.remove(tid);
+        if (parts != null)
+            release(parts);
+        return true;
+    }
+
+    /**
+     * @return the number of tids reserved, or holding a reply for a reservation
+     */
+    synchronized int reserved() {
+        return reserved.size() + reservedReplies.size();
+    }
+
+    private void expireReserved(long now) {
+        final Iterator<Long> times = reserved.values().iterator();
+        while (times.hasNext() && now - times.next() > timeoutMs)
+            times.remove();
+
+        final Iterator<Long> failedTimes = failed.values().iterator();
+        while (failedTimes.hasNext() && now - failedTimes.next() > timeoutMs)
+            failedTimes.remove();
+
+        final Iterator<PendingReply> iterator = reservedReplies.values().iterator();
+        while (iterator.hasNext()) {
+            final PendingReply reply = iterator.next();
+            if (now - reply.timeMs <= timeoutMs)
+                break;
+            iterator.remove();
+            discard(reply);
+        }
+    }
+
+    synchronized void clear() {
+        replies.values().forEach(this::release);
+        replies.clear();
+        reservedReplies.values().forEach(this::release);
+        reservedReplies.clear();
+        reserved.clear();
+        failed.clear();
+    }
+
+    /**
+     * @return the number of replies discarded as their tid was not registered in time
+     */
+    synchronized long discarded() {
+        return discarded;
+    }
+
+    private void discard(@NotNull PendingReply reply) {
+        discarded++;
+        if (LOG.isDebugEnabled())
+            LOG.debug("discarding a reply, as its tid was not registered, this can occur " +
+                    "sometime if the subscription has just become unregistered ( an the server " +
+                    "has not yet processed the unregister event )");
+        release(reply);
+    }
+
+    /**
+     * releases the bytes of all the parts of the reply
+     */
+    private void release(@NotNull PendingReply reply) {
+        for (PendingReply part = reply; part != null; part = part.next)
+            release(part.bytes);
+    }
+
+    static class PendingReply {
+        @NotNull
+        final Bytes bytes;
+        final boolean isReady;
+        final long timeMs;
+        // the later parts of the reply, and the last of them, only used by the first part
+        @Nullable
+        private PendingReply next;
+        @NotNull
+        private PendingReply last = this;
+
+        PendingReply(@NotNull Bytes bytes, boolean isReady, long timeMs) {
+            this.bytes = bytes;
+            this.isReady = isReady;
+            this.timeMs = timeMs;
+        }
+
+        void append(@NotNull PendingReply part) {
+            last.next = part;
+            last = part;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The send times of the last few heartbeats, keyed by a sequence number which the server echoes
+ * back, so the round trip time of each reply is measured from its own heartbeat, even when a
+ * heartbeat is sent before the reply to the last one has arrived. A reply to a heartbeat older
+ * than the last {@code capacity}, or with a sequence number never sent, is not timed.
+ * <p>
+ * {@link #send(long)} is called by one thread at a time, and {@link #onReply(long, long)} may be
+ * called by another. Neither allocates.
+ */
+public class PingTimes {
+
+    private final int mask;
+    private final AtomicLongArray sentNanos;
+    // the last sequence number sent, the first is 1
+    private volatile long sequence;
+
+    /**
+     * @param capacity the number of heartbeats whose send time is kept, a power of 2
+     */
+    public PingTimes(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity=" + capacity + " must be a power of 2");
+        this.mask = capacity - 1;
+        this.sentNanos = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * @param nanos the time the heartbeat is sent, from {@link System#nanoTime()}
+     * @return the sequence number to send with the heartbeat
+     */
+    public long send(long nanos) {
+        final long next = sequence + 1;
+        sentNanos.set((int) (next & mask), nanos);
+        // publishes the send time to the reader
+        sequence = next;
+        return next;
+    }
+
+    /**
+     * @param sequence the sequence number echoed back by the server
+     * @param nanos    the time the reply was received, from {@link System#nanoTime()}
+     * @return the round trip time in nanoseconds, or -1 if the sequence number is unknown
+     */
+    public long onReply(long sequence, long nanos) {
+        final long last = this.sequence;
+        if (sequence <= 0 || sequence > last || sequence <= last - sentNanos.length())
+            return -1;
+        final long sent = sentNanos.get((int) (sequence & mask));
+        // the slot was reused while this was being read
+        if (this.sequence - sequence >= sentNanos.length())
+            return -1;
+        return nanos - sent;
+    }
+
+    /**
+     * @return the last sequence number sent
+     */
+    public long sequence() {
+        return sequence;
+    }
+}
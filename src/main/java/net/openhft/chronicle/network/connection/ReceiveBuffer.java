@@ -0,0 +1,100 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Buffers the reads from a socket, so that the reader, which asks for each header and each
+ * document body in turn, is served from bytes already received, and each read from the socket
+ * takes as much as is available. So a number of small messages are typically received with a
+ * single read(). A message at least as large as the buffer is read straight into its destination,
+ * to avoid a second copy. This is only used by the reader thread.
+ */
+class ReceiveBuffer {
+
+    @NotNull
+    private final ByteBuffer buffer;
+    private volatile long socketReads;
+
+    /**
+     * @param capacity the most bytes taken with each read()
+     */
+    ReceiveBuffer(int capacity) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * copies any bytes already received into the {@code destination}
+     *
+     * @return false if there were none
+     */
+    boolean drainTo(@NotNull ByteBuffer destination) {
+        if (buffer.remaining() == 0)
+            return false;
+        final int length = Math.min(destination.remaining(), buffer.remaining());
+        final int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        destination.put(buffer);
+        buffer.limit(limit);
+        return true;
+    }
+
+    /**
+     * reads once from the {@code channel}, into this buffer, or if the {@code destination} needs
+     * at least as many bytes as this buffer holds, straight into the {@code destination}. This
+     * should only be called once the bytes already received have been drained.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    int readFrom(@NotNull ReadableByteChannel channel, @NotNull ByteBuffer destination)
+            throws IOException {
+        final int read;
+        if (destination.remaining() >= buffer.capacity()) {
+            read = channel.read(destination);
+        } else {
+            buffer.clear();
+            try {
+                read = channel.read(buffer);
+            } finally {
+                buffer.flip();
+            }
+        }
+        socketReads++;
+        return read;
+    }
+
+    /**
+     * discards the bytes received, which are of no use once the connection is dropped
+     */
+    void clear() {
+        buffer.clear();
+        buffer.limit(0);
+    }
+
+    /**
+     * @return the number of read() calls made on the socket
+     */
+    long socketReads() {
+        return socketReads;
+    }
+}
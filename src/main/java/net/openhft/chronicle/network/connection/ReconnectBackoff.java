@@ -0,0 +1,65 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential back-off with jitter, between the attempts to reconnect. The delay doubles after
+ * each failed attempt, up to {@code maxDelayMs}, and is then drawn at random from the upper half
+ * of that range, so that many clients which lose the same server do not all reconnect in
+ * lock-step.
+ */
+class ReconnectBackoff {
+
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private int failures;
+
+    /**
+     * @param minDelayMs the delay after the first failed attempt
+     * @param maxDelayMs the longest delay
+     */
+    ReconnectBackoff(long minDelayMs, long maxDelayMs) {
+        if (minDelayMs <= 0 || maxDelayMs < minDelayMs)
+            throw new IllegalArgumentException("minDelayMs=" + minDelayMs +
+                    ", maxDelayMs=" + maxDelayMs);
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * @return how long to wait before the next attempt
+     */
+    long nextDelayMs() {
+        final long ceiling = Math.min(maxDelayMs, minDelayMs << Math.min(failures, 30));
+        failures++;
+        final long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    /**
+     * called once connected, so the next disconnection starts with a short delay again
+     */
+    void reset() {
+        failures = 0;
+    }
+
+    int failures() {
+        return failures;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.WriteMarshallable;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+import static net.openhft.chronicle.bytes.Bytes.elasticByteBuffer;
+
+/**
+ * A {@link WireOutPublisher} which serialises each message on the thread which adds it, straight
+ * into a slot of a ring held off heap, rather than queueing the {@link WriteMarshallable} for the
+ * event loop to serialise later. The event loop then only copies the bytes of each slot into its
+ * output buffer, and neither side allocates per message, so the {@code WriteMarshallable} passed
+ * to {@link #add(WriteMarshallable)} may be reused as soon as the call returns.
+ * <p>
+ * Any number of threads may add messages, the ring is a bounded multi producer, single consumer
+ * queue, where each slot has a sequence number which tells the producers when the slot is free
+ * and the consumer when it has been written. A message larger than a slot is written again into
+ * an elastic buffer kept for that slot, so it keeps its place in the ring, and the buffer is
+ * reused by the next large message in the same slot. The publisher is bounded to the number of
+ * slots, so when the ring is full the {@link OverflowPolicy} is applied, by default the producers
+ * wait for the event loop to catch up. The event loop itself never waits for the ring, if it
+ * finds the ring full an {@link IllegalStateException} is thrown, rather than spinning for ever.
+ * <p>
+ * As messages are serialised when they are added, {@link #addConflated(Object,
+ * WriteMarshallable)} does not conflate.
+ */
+public class RingWireOutPublisher extends WireOutPublisher {
+
+    private final int slots;
+    private final int mask;
+    private final int slotSize;
+    @NotNull
+    private final Function<Bytes, Wire> wire;
+    // the position each slot is free for, or that position + 1 once it has been written
+    @NotNull
+    private final AtomicLongArray sequences;
+    // a wire over each slot of the ring, only used by the producer which claimed the slot
+    @NotNull
+    private final Wire[] slotWires;
+    // a wire for the messages too large for each slot, created the first time one is added
+    @NotNull
+    private final Wire[] largeWires;
+    // the wire each message was written to, either its slot or its large wire
+    @NotNull
+    private final Wire[] written;
+    // when each message was added, for the latency of the NORMAL lane
+    @NotNull
+    private final long[] times;
+    // the bytes each message reserved in the bounds of the publisher
+    @NotNull
+    private final long[] reserved;
+    // the next position to be claimed by a producer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong ringFull = new AtomicLong();
+    private final AtomicLong largeMessages = new AtomicLong();
+    // the next position to be written by the event loop, only accessed by the event loop
+    private long head;
+
+    /**
+     * @param slots    the most messages held, a power of 2
+     * @param slotSize the largest message held off heap
+     * @param wire     converts bytes into wire, the same type of wire as the connection
+     */
+    public RingWireOutPublisher(int slots, int slotSize, @NotNull Function<Bytes, Wire> wire) {
+        this(slots, slotSize, wire, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param slots          the most messages held, a power of 2
+     * @param slotSize       the largest message held off heap
+     * @param wire           converts bytes into wire, the same type of wire as the connection
+     * @param overflowPolicy what happens to a message added when the ring is full
+     */
+    public RingWireOutPublisher(int slots,
+                                int slotSize,
+                                @NotNull Function<Bytes, Wire> wire,
+                                @NotNull OverflowPolicy overflowPolicy) {
+        super(slots, Long.MAX_VALUE, overflowPolicy);
+        if (Integer.bitCount(slots) != 1)
+            throw new IllegalArgumentException("slots=" + slots + " must be a power of 2");
+        if (slotSize <= 0 || (long) slots * slotSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("slotSize=" + slotSize);
+        this.slots = slots;
+        this.mask = slots - 1;
+        this.slotSize = slotSize;
+        this.wire = wire;
+        this.sequences = new AtomicLongArray(slots);
+        this.slotWires = new Wire[slots];
+        final ByteBuffer ring = ByteBuffer.allocateDirect(slots * slotSize);
+        for (int i = 0; i < slots; i++) {
+            sequences.set(i, i);
+            ring.limit((i + 1) * slotSize);
+            ring.position(i * slotSize);
+            slotWires[i] = wire.apply(Bytes.wrapForWrite(ring.slice()));
+        }
+        this.largeWires = new Wire[slots];
+        this.written = new Wire[slots];
+        this.times = new long[slots];
+        this.reserved = new long[slots];
+    }
+
+    @Override
+    protected void enqueue(@NotNull WriteMarshallable outConsumer) {
+        final long position = claim();
+        final int index = (int) (position & mask);
+
+        Wire wire = slotWires[index];
+        wire.bytes().clear();
+        try {
+            outConsumer.writeMarshallable(wire);
+        } catch (BufferOverflowException tooLarge) {
+            wire = largeWire(index);
+            wire.bytes().clear();
+            outConsumer.writeMarshallable(wire);
+            largeMessages.incrementAndGet();
+        }
+        written[index] = wire;
+        reserved[index] = sizeOf(outConsumer);
+        // a parallel array, so recording the latency does not allocate, zero if not recorded
+        times[index] = recordLaneLatency() ? System.nanoTime() : 0;
+
+        // publishes the slot to the event loop
+        sequences.lazySet(index, position + 1);
+    }
+
+    /**
+     * @return the wire for messages too large for a slot, only called by the producer which
+     * claimed the slot
+     */
+    @NotNull
+    private Wire largeWire(int index) {
+        Wire large = largeWires[index];
+        if (large == null)
+            largeWires[index] = large = wire.apply(elasticByteBuffer());
+        return large;
+    }
+
+    /**
+     * @return the position of a free slot, waiting for one if the ring is full
+     * @throws IllegalStateException if the ring is full and this is the event loop, which would
+     *                               be waiting for itself
+     */
+    private long claim() {
+        boolean waited = false;
+        for (; ; ) {
+            final long position = tail.get();
+            final long sequence = sequences.get((int) (position & mask));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1))
+                    return position;
+
+            } else if (sequence < position) {
+                // the slot has not been written by the event loop since the last time around
+                if (isClosed())
+                    throw new IllegalStateException("Closed");
+                if (isEventLoop())
+                    throw new IllegalStateException("The event loop cannot wait for space in a " +
+                            "full ring, slots=" + slots);
+                if (!waited) {
+                    ringFull.incrementAndGet();
+                    waited = true;
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    protected long writeNext(@NotNull WireOut out) {
+        final int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1)
+            return -1;
+
+        if (times[index] != 0)
+            laneLatency(Priority.NORMAL).record(System.nanoTime() - times[index]);
+        final Bytes bytes = written[index].bytes();
+        out.bytes().write(bytes, 0, bytes.writePosition());
+
+        // frees the slot for the producers
+        final long size = reserved[index];
+        sequences.lazySet(index, head + slots);
+        head++;
+        return size;
+    }
+
+    @Override
+    protected boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    public int slots() {
+        return slots;
+    }
+
+    public int slotSize() {
+        return slotSize;
+    }
+
+    /**
+     * @return the number of times a producer had to wait, as the ring was full
+     */
+    public long ringFull() {
+        return ringFull.get();
+    }
+
+    /**
+     * @return the number of messages which were larger than a slot
+     */
+    public long largeMessages() {
+        return largeMessages.get();
+    }
+}
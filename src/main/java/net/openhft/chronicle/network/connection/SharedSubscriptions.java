@@ -0,0 +1,158 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Shares one server subscription per csp between all the listeners in this process. The first
+ * listener to a csp subscribes with the server, later listeners are attached locally, each update
+ * is decoded once and handed to every listener. When the last listener to a csp is closed, the
+ * server subscription is ended.
+ * <p>
+ * The listeners are called on the reader thread of the hub, in the order they were added, so
+ * they should not block.
+ *
+ * @param <T> the type the updates are decoded to
+ */
+public class SharedSubscriptions<T> {
+
+    @NotNull
+    private final TcpChannelHub hub;
+    @NotNull
+    private final BiConsumer<String, WireOut> subscribeRequest;
+    @Nullable
+    private final BiConsumer<String, WireOut> unsubscribeRequest;
+    @NotNull
+    private final Function<WireIn, T> decoder;
+    // guarded by itself
+    private final Map<String, Shared> subscriptions = new HashMap<>();
+
+    /**
+     * @param hub                the connection to the server
+     * @param subscribeRequest   writes the subscription for a csp
+     * @param unsubscribeRequest writes the message which ends the subscription for a csp, or null
+     *                           if the server does not need to be told
+     * @param decoder            decodes an update
+     */
+    public SharedSubscriptions(@NotNull TcpChannelHub hub,
+                               @NotNull BiConsumer<String, WireOut> subscribeRequest,
+                               @Nullable BiConsumer<String, WireOut> unsubscribeRequest,
+                               @NotNull Function<WireIn, T> decoder) {
+        this.hub = hub;
+        this.subscribeRequest = subscribeRequest;
+        this.unsubscribeRequest = unsubscribeRequest;
+        this.decoder = decoder;
+    }
+
+    /**
+     * @param csp      the uri of the subscription
+     * @param listener called with each update
+     * @return closed to remove the listener
+     */
+    @NotNull
+    public Closeable subscribe(@NotNull String csp, @NotNull Consumer<? super T> listener) {
+        final Shared shared;
+        final boolean first;
+        synchronized (subscriptions) {
+            final Shared existing = subscriptions.get(csp);
+            first = existing == null;
+            shared = first ? new Shared(csp) : existing;
+            shared.listeners.add(listener);
+            if (first)
+                subscriptions.put(csp, shared);
+        }
+
+        if (first)
+            hub.subscribe(shared);
+
+        return () -> unsubscribe(shared, listener);
+    }
+
+    private void unsubscribe(@NotNull Shared shared, @NotNull Consumer<? super T> listener) {
+        synchronized (subscriptions) {
+            if (!shared.listeners.remove(listener) || !shared.listeners.isEmpty())
+                return;
+            subscriptions.remove(shared.csp);
+        }
+
+        // the last listener has gone
+        final long tid = shared.tid();
+        hub.preventSubscribeUponReconnect(tid);
+        if (unsubscribeRequest != null) {
+            hub.lock(() -> {
+                hub.writeMetaDataForKnownTID(tid, hub.outWire(), shared.csp, 0);
+                hub.outWire().writeDocument(false, w -> unsubscribeRequest.accept(shared.csp, w));
+            });
+        }
+        hub.unsubscribe(tid);
+    }
+
+    /**
+     * @return the number of subscriptions held with the server
+     */
+    public int subscriptions() {
+        synchronized (subscriptions) {
+            return subscriptions.size();
+        }
+    }
+
+    /**
+     * @return the number of listeners, to all the csps
+     */
+    public int listeners() {
+        synchronized (subscriptions) {
+            int listeners = 0;
+            for (Shared shared : subscriptions.values())
+                listeners += shared.listeners.size();
+            return listeners;
+        }
+    }
+
+    private class Shared extends AbstractAsyncSubscription {
+        @NotNull
+        final String csp;
+        final Listeners<T> listeners;
+
+        Shared(@NotNull String csp) {
+            super(hub, csp, "SharedSubscriptions");
+            this.csp = csp;
+            this.listeners = new Listeners<>(csp);
+        }
+
+        @Override
+        public void onSubscribe(@NotNull WireOut wireOut) {
+            subscribeRequest.accept(csp, wireOut);
+        }
+
+        @Override
+        public void onConsumer(@NotNull WireIn inWire) {
+            // decoded once for all the listeners
+            listeners.publish(decoder.apply(inWire));
+        }
+    }
+}
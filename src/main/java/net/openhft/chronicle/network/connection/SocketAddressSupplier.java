@@ -85,6 +85,17 @@ public class SocketAddressSupplier implements Supplier<SocketAddress> {
         next();
     }
 
+    /**
+     * makes the address at {@code index} in {@link #all()} the current address, for example
+     * after it has been connected to
+     *
+     * @param index the index of the address
+     */
+    public void select(int index) {
+        iterator = remoteAddresses.listIterator(index);
+        next();
+    }
+
     public long timeoutMS() {
         return failoverTimeout;
     }
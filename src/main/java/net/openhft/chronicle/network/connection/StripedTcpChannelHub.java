@@ -0,0 +1,146 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.core.io.Closeable;
+import net.openhft.chronicle.network.api.session.SessionProvider;
+import net.openhft.chronicle.threads.api.EventLoop;
+import net.openhft.chronicle.wire.Wire;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Opens a number of connections to the same server, each with its own {@link TcpChannelHub},
+ * so that a heavily threaded client is not limited to one socket, one reader thread and one
+ * {@code outBytesLock}.
+ * <p>
+ * Requests are striped by caller thread, each thread is assigned a hub on first use, so the
+ * request and the wait for its reply always go through the same connection. Subscriptions
+ * should be made on {@link #hubFor(String)}, which pins every subscription for a csp to one
+ * connection, so their ordering is preserved.
+ */
+public class StripedTcpChannelHub implements Closeable {
+
+    @NotNull
+    private final TcpChannelHub[] hubs;
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    @NotNull
+    private final ThreadLocal<TcpChannelHub> threadHub;
+
+    /**
+     * @param sessionProvider        the session details, used in the hand shaking
+     * @param eventLoop              the event loop used to monitor the heartbeats
+     * @param wire                   converts bytes into wire, ie TextWire or BinaryWire
+     * @param name                   the name of the connections
+     * @param connectURIs            the socket connections defined in order with the primary
+     *                               first
+     * @param connections            the number of connections to open
+     * @param shouldSendCloseMessage if true, each hub tells the server before it disconnects
+     */
+    public StripedTcpChannelHub(@Nullable final SessionProvider sessionProvider,
+                                @NotNull final EventLoop eventLoop,
+                                @NotNull final Function<Bytes, Wire> wire,
+                                @NotNull final String name,
+                                @NotNull final String[] connectURIs,
+                                int connections,
+                                boolean shouldSendCloseMessage) {
+        if (connections < 1)
+            throw new IllegalArgumentException("connections=" + connections);
+
+        this.hubs = new TcpChannelHub[connections];
+        for (int i = 0; i < connections; i++) {
+            // each hub fails over independently, so needs its own supplier
+            final SocketAddressSupplier socketAddressSupplier =
+                    new SocketAddressSupplier(connectURIs, name);
+            hubs[i] = new TcpChannelHub(sessionProvider, eventLoop, wire, name + "-" + i,
+                    socketAddressSupplier, shouldSendCloseMessage);
+        }
+
+        this.threadHub = ThreadLocal.withInitial(() ->
+                hubs[(nextStripe.getAndIncrement() & Integer.MAX_VALUE) % hubs.length]);
+    }
+
+    /**
+     * @return the hub assigned to the calling thread
+     */
+    @NotNull
+    public TcpChannelHub hub() {
+        return threadHub.get();
+    }
+
+    /**
+     * @param csp the uri of the subscription
+     * @return the hub that all the subscriptions for this {@code csp} should use
+     */
+    @NotNull
+    public TcpChannelHub hubFor(@Nullable String csp) {
+        return csp == null ? hubs[0] : hubFor(csp.hashCode());
+    }
+
+    /**
+     * @param key any key, for example a tid
+     * @return the hub for this key, the same key always maps to the same hub
+     */
+    @NotNull
+    public TcpChannelHub hubFor(long key) {
+        final int hash = (int) (key ^ (key >>> 32));
+        return hubs[(hash & Integer.MAX_VALUE) % hubs.length];
+    }
+
+    public int connections() {
+        return hubs.length;
+    }
+
+    /**
+     * @return true if all of the connections are open
+     */
+    public boolean isOpen() {
+        for (TcpChannelHub hub : hubs) {
+            if (!hub.isOpen())
+                return false;
+        }
+        return true;
+    }
+
+    public boolean isClosed() {
+        for (TcpChannelHub hub : hubs) {
+            if (!hub.isClosed())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        for (TcpChannelHub hub : hubs) {
+            hub.close();
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "StripedTcpChannelHub{" +
+                "hubs=" + Arrays.toString(hubs) +
+                '}';
+    }
+}
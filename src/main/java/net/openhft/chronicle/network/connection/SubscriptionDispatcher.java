@@ -0,0 +1,389 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.core.io.Closeable;
+import net.openhft.chronicle.threads.NamedThreadFactory;
+import net.openhft.chronicle.wire.Wire;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+import static net.openhft.chronicle.bytes.Bytes.elasticByteBuffer;
+
+/**
+ * Hands the messages for subscriptions to a pool of threads, so that a slow subscriber does not
+ * hold up the reader thread, and with it the replies to every other request on the connection.
+ * <p>
+ * Each subscription has its own single producer, single consumer ring of frames. The reader
+ * thread reads a frame from the socket straight into the next slot of the ring, and the ring is
+ * drained by at most one pooled thread at a time, so the messages for a subscription are
+ * delivered in the order they were received, while different subscriptions are delivered in
+ * parallel. The slots of a ring are allocated as they are first used, so a quiet subscription
+ * only holds the buffers it needed. If a ring is full, the reader thread does not wait for the
+ * subscriber to catch up, as that would hold up every other subscription, nor drop a message,
+ * instead the messages spill into a queue on the heap, until the subscriber has caught up. The
+ * spill is bounded, a subscriber which falls so far behind that it fills the spill as well is
+ * dropped, the messages not yet delivered to it are discarded, it is told by {@link
+ * AsyncSubscription#onClose()}, and the owner is told to forget the subscription, so the messages
+ * which follow are not for a known tid.
+ * <p>
+ * A {@link TcpChannelHub} creates one if {@code tcp.client.dispatch.threads} is set, and only its
+ * reader thread claims and publishes the frames.
+ */
+public class SubscriptionDispatcher implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionDispatcher.class);
+
+    private final int ringSize;
+    private final int spillLimit;
+    @NotNull
+    private final Function<Bytes, Wire> wire;
+    // called by the reader thread with the tid of a subscription which has been dropped
+    @NotNull
+    private final LongConsumer onDropped;
+    @NotNull
+    private final ExecutorService executor;
+    // only the reader thread adds rings
+    private final Map<Long, Ring> rings = new ConcurrentHashMap<>();
+    private final AtomicLong ringFull = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param name       the name of the threads
+     * @param threads    the number of threads that deliver the messages
+     * @param ringSize   the number of messages held for each subscription, a power of 2
+     * @param spillLimit the number of messages a subscription may hold on the heap, once its ring
+     *                   is full, before it is dropped
+     * @param wire       converts bytes into wire
+     * @param onDropped  called with the tid of a subscription which has been dropped, so that its
+     *                   owner forgets it
+     */
+    public SubscriptionDispatcher(@NotNull String name,
+                                  int threads,
+                                  int ringSize,
+                                  int spillLimit,
+                                  @NotNull Function<Bytes, Wire> wire,
+                                  @NotNull LongConsumer onDropped) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads=" + threads);
+        if (Integer.bitCount(ringSize) != 1)
+            throw new IllegalArgumentException("ringSize=" + ringSize + " must be a power of 2");
+        if (spillLimit < 0)
+            throw new IllegalArgumentException("spillLimit=" + spillLimit);
+        this.ringSize = ringSize;
+        this.spillLimit = spillLimit;
+        this.wire = wire;
+        this.onDropped = onDropped;
+        this.executor = Executors.newFixedThreadPool(threads,
+                new NamedThreadFactory("SubscriptionDispatcher-" + name, true));
+    }
+
+    /**
+     * claims the next slot in the ring of the subscription, or a buffer on the heap if the ring
+     * is full, only called by the reader thread
+     *
+     * @return the bytes to read the frame into, which is then passed to {@link #publish(long,
+     * boolean)}, or null if the dispatcher has been closed, or the subscription has been removed
+     * or dropped, in which case the frame is discarded
+     */
+    @Nullable
+    public Bytes claim(long tid, @NotNull AsyncSubscription subscription) {
+        final Ring ring = rings.computeIfAbsent(tid, k -> new Ring(tid, subscription));
+        return ring.claim();
+    }
+
+    /**
+     * makes the frame in the slot returned by {@link #claim(long, AsyncSubscription)} visible to
+     * the subscriber
+     *
+     * @param isLast true if this is the last message for the tid
+     */
+    public void publish(long tid, boolean isLast) {
+        final Ring ring = isLast ? rings.remove(tid) : rings.get(tid);
+        if (ring != null)
+            ring.publish();
+    }
+
+    /**
+     * calls {@link AsyncSubscription#onClose()} after the messages already received, this may be
+     * called by any thread
+     */
+    public void onClose(long tid, @NotNull AsyncSubscription subscription) {
+        final Ring ring = rings.get(tid);
+        if (ring == null)
+            subscription.onClose();
+        else
+            ring.onClose();
+    }
+
+    /**
+     * discards the messages not yet delivered to an unsubscribed subscription
+     */
+    public void remove(long tid) {
+        final Ring ring = rings.remove(tid);
+        if (ring != null)
+            ring.removed = true;
+    }
+
+    /**
+     * @return the number of messages waiting to be delivered to the subscription
+     */
+    public int occupancy(long tid) {
+        final Ring ring = rings.get(tid);
+        return ring == null ? 0 : ring.occupancy();
+    }
+
+    /**
+     * @return the most messages waiting for any one subscription
+     */
+    public int maxOccupancy() {
+        int max = 0;
+        for (Ring ring : rings.values())
+            max = Math.max(max, ring.occupancy());
+        return max;
+    }
+
+    /**
+     * @return the number of messages waiting to be delivered to all the subscriptions
+     */
+    public long queued() {
+        long queued = 0;
+        for (Ring ring : rings.values())
+            queued += ring.occupancy();
+        return queued;
+    }
+
+    public int ringSize() {
+        return ringSize;
+    }
+
+    public int spillLimit() {
+        return spillLimit;
+    }
+
+    /**
+     * @return the number of messages which spilled onto the heap, as their ring was full
+     */
+    public long ringFull() {
+        return ringFull.get();
+    }
+
+    /**
+     * @return the number of subscriptions which were dropped, as they had filled their spill
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(100, TimeUnit.MILLISECONDS))
+                executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "SubscriptionDispatcher{" +
+                "subscriptions=" + rings.size() +
+                ", queued=" + queued() +
+                ", ringFull=" + ringFull +
+                ", dropped=" + dropped +
+                '}';
+    }
+
+    private final class Ring {
+        private final long tid;
+        @NotNull
+        private final AsyncSubscription subscription;
+        // allocated as they are first used
+        @NotNull
+        private final Bytes[] slots;
+        @NotNull
+        private final Wire[] wires;
+        private final int mask;
+        // the next slot to be delivered, only written by the thread draining the ring
+        private final AtomicLong head = new AtomicLong();
+        // the next slot to be claimed, only written by the reader thread
+        private final AtomicLong tail = new AtomicLong();
+        // the messages received while the ring was full, these are delivered after the ring,
+        // and the ring is not used again until they have all been taken
+        private final Queue<Wire> spill = new ConcurrentLinkedQueue<>();
+        // the size of the spill, as the size of the queue is not kept
+        private final AtomicInteger spilled = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // onClose() is called once the slots before this have been delivered, or -1
+        private final AtomicLong closeAt = new AtomicLong(-1);
+        private volatile boolean removed;
+        // the message claimed on the heap, only used by the reader thread
+        @Nullable
+        private Wire spilling;
+
+        Ring(long tid, @NotNull AsyncSubscription subscription) {
+            this.tid = tid;
+            this.subscription = subscription;
+            this.slots = new Bytes[ringSize];
+            this.wires = new Wire[ringSize];
+            this.mask = ringSize - 1;
+        }
+
+        @Nullable
+        Bytes claim() {
+            if (closed || removed)
+                return null;
+
+            final long tail = this.tail.get();
+            if (tail - head.get() >= ringSize || spilled.get() > 0) {
+                if (spilled.get() >= spillLimit) {
+                    drop();
+                    return null;
+                }
+                ringFull.incrementAndGet();
+                final Bytes bytes = elasticByteBuffer();
+                spilling = wire.apply(bytes);
+                return bytes;
+            }
+
+            final int index = (int) (tail & mask);
+            Bytes bytes = slots[index];
+            if (bytes == null) {
+                // published to the draining thread by the write to tail
+                bytes = slots[index] = elasticByteBuffer();
+                wires[index] = wire.apply(bytes);
+            }
+            bytes.clear();
+            return bytes;
+        }
+
+        void publish() {
+            final Wire spilling = this.spilling;
+            if (spilling != null) {
+                this.spilling = null;
+                spilled.incrementAndGet();
+                spill.add(spilling);
+            } else {
+                tail.lazySet(tail.get() + 1);
+            }
+            schedule();
+        }
+
+        void onClose() {
+            closeAt.set(tail.get());
+            schedule();
+        }
+
+        /**
+         * the subscriber has fallen too far behind, its backlog is discarded by the draining
+         * thread, which then calls onClose()
+         */
+        private void drop() {
+            removed = true;
+            rings.remove(tid, this);
+            dropped.incrementAndGet();
+            LOG.warn("dropped the subscription tid=" + tid + ", as it fell " + occupancy() +
+                    " messages behind");
+            onDropped.accept(tid);
+            onClose();
+        }
+
+        int occupancy() {
+            return (int) (tail.get() - head.get()) + spilled.get();
+        }
+
+        private void schedule() {
+            if (closed || !scheduled.compareAndSet(false, true))
+                return;
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+        }
+
+        private void drain() {
+            for (; ; ) {
+                long head = this.head.get();
+                for (; ; ) {
+                    final long closeAt = this.closeAt.get();
+                    if (closeAt >= 0 && closeAt <= head && spilled.get() == 0 &&
+                            this.closeAt.compareAndSet(closeAt, -1))
+                        deliverClose();
+                    if (head < tail.get()) {
+                        deliver(wires[(int) (head & mask)]);
+                        this.head.lazySet(++head);
+                        continue;
+                    }
+                    // the reader only adds to the ring again once this is empty
+                    final Wire spilled = spill.poll();
+                    if (spilled == null)
+                        break;
+                    this.spilled.decrementAndGet();
+                    deliver(spilled);
+                    spilled.bytes().release();
+                }
+
+                scheduled.set(false);
+                // a message or a close may have arrived after the check
+                if ((head >= tail.get() && spilled.get() == 0 && closeAt.get() < 0) ||
+                        !scheduled.compareAndSet(false, true))
+                    return;
+            }
+        }
+
+        private void deliver(@NotNull Wire wire) {
+            if (removed)
+                return;
+            try {
+                subscription.onConsumer(wire);
+            } catch (Exception e) {
+                LOG.error("tid=" + subscription.tid(), e);
+            }
+        }
+
+        private void deliverClose() {
+            try {
+                subscription.onClose();
+            } catch (Exception e) {
+                LOG.error("tid=" + subscription.tid(), e);
+            }
+        }
+    }
+}
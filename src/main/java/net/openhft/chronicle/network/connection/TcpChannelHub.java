@@ -22,6 +22,7 @@ import net.openhft.chronicle.bytes.IORuntimeException;
 import net.openhft.chronicle.core.Jvm;
 import net.openhft.chronicle.core.io.Closeable;
 import net.openhft.chronicle.core.util.Time;
+import net.openhft.chronicle.network.HashedWheelTimer;
 import net.openhft.chronicle.network.WanSimulator;
 import net.openhft.chronicle.network.api.session.SessionDetails;
 import net.openhft.chronicle.network.api.session.SessionProvider;
@@ -36,18 +37,21 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
@@ -56,7 +60,6 @@ import static java.lang.ThreadLocal.withInitial;
 import static java.util.concurrent.Executors.newSingleThreadExecutor;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static net.openhft.chronicle.bytes.Bytes.elasticByteBuffer;
-import static net.openhft.chronicle.core.Jvm.pause;
 import static net.openhft.chronicle.core.Jvm.rethrow;
 import static net.openhft.chronicle.wire.Wires.*;
 
@@ -75,9 +78,42 @@ public class TcpChannelHub implements Closeable {
     public static final int HEATBEAT_TIMEOUT_PERIOD = getInteger("heartbeat.timeout", 20_000);
 
     public static final int SIZE_OF_SIZE = 4;
+    // when set, writes are handed to a single writer thread which batches them into one syscall
+    public static final boolean GROUP_COMMIT = Boolean.getBoolean("tcp.client.groupCommit");
     public static final Set<TcpChannelHub> hubs = new CopyOnWriteArraySet<>();
     private static final Logger LOG = LoggerFactory.getLogger(TcpChannelHub.class);
+    // how long the reader thread waits in a select() before re-checking the connection state
+    private static final int READ_SELECT_MS = 100;
+    // the reader pulls in as much as is available, up to this size, with each read()
+    private static final int RECEIVE_BUFFER_SIZE = getInteger("tcp.client.receive.buffer.size",
+            256 << 10);
+    // replies which arrive before their tid is registered are held, up to this number
+    private static final int PENDING_REPLIES = getInteger("tcp.client.pending.replies", 64);
+    private static final int PENDING_REPLY_TIMEOUT_MS = 3_000;
+    // the delay before racing a connection to the next server
+    private static final int CONNECT_STAGGER_MS = getInteger("tcp.client.connect.stagger", 50);
+    private static final int RECONNECT_BACKOFF_MIN_MS = getInteger("tcp.client.reconnect" +
+            ".backoff.min", 50);
+    private static final int RECONNECT_BACKOFF_MAX_MS = getInteger("tcp.client.reconnect" +
+            ".backoff.max", 5_000);
+    // a batch is sent early, if it grows beyond this size
+    private static final int BATCH_FLUSH_SIZE = getInteger("tcp.client.batch.flush.size", 1 << 20);
+    // when set, the messages for subscriptions are delivered by this many threads, rather than
+    // by the reader thread
+    private static final int DISPATCH_THREADS = getInteger("tcp.client.dispatch.threads", 0);
+    // the messages each subscription holds in its ring before they spill onto the heap
+    private static final int DISPATCH_RING_SIZE = getInteger("tcp.client.dispatch.ring.size",
+            1024);
+    // the messages a subscription may then hold on the heap, before the subscription is dropped
+    private static final int DISPATCH_SPILL_MAX = getInteger("tcp.client.dispatch.spill.max",
+            8 * DISPATCH_RING_SIZE);
+    // when set, the csps are replaced by cids assigned by the server, see CidCache
+    private static final boolean CSP_INTERNING = Boolean.getBoolean("tcp.client.csp.interning");
+    // when set, the client asks to use the compact meta data, see CompactFrames
+    private static final boolean COMPACT_FRAMES = Boolean.getBoolean("tcp.client.compact.frames");
     public final long timeoutMs;
+    // how long a single write may be held up by a slow server before the connection is dropped
+    public final long writeTimeoutMs;
     @NotNull
     protected final String name;
     protected final int tcpBufferSize;
@@ -87,22 +123,46 @@ public class TcpChannelHub implements Closeable {
     private final SocketAddressSupplier socketAddressSupplier;
     private final Set<Long> preventSubscribeUponReconnect = new ConcurrentSkipListSet<>();
     private final ReentrantLock outBytesLock = new ReentrantLock();
+    // notified when the connection is established or the hub is closed
+    private final Object connectionMonitor = new Object();
     @NotNull
-    private final AtomicLong transactionID = new AtomicLong(0);
+    private final TransactionIdGenerator transactionIds;
     @NotNull
     private final SessionProvider sessionProvider;
     @NotNull
     private final TcpSocketConsumer tcpSocketConsumer;
     @NotNull
+    private final Heartbeat heartbeat;
+    @NotNull
+    private final LatencyHistogram heartbeatRoundTripTimes = new LatencyHistogram();
+    @NotNull
     private final EventLoop eventLoop;
     @NotNull
     private final Function<Bytes, Wire> wire;
     private final Wire handShakingWire;
+    @Nullable
+    private final GroupCommitWriter groupCommitWriter;
+    @Nullable
+    private final SubscriptionDispatcher dispatcher;
+    @Nullable
+    private final CidCache cidCache;
+    @NotNull
+    private final DeadlineWriter deadlineWriter;
+    // used by the reader thread to wait for data
+    @NotNull
+    private final Selector readSelector;
+    private final ByteBuffer[] singleBuffer = new ByteBuffer[1];
+    // the batch state, guarded by the outBytesLock
+    private boolean batching;
+    private long[] batchTids = new long[64];
+    private int batchTidCount;
     // private final String description;
     private long largestChunkSoFar = 0;
     @Nullable
     private volatile SocketChannel clientChannel;
     private volatile boolean closed;
+    // set once the server has agreed to compact frames on this connection
+    private volatile boolean compactFrames;
     private CountDownLatch receivedClosedAcknowledgement = new CountDownLatch(1);
     // set up in the header
     private long limitOfLast = 0;
@@ -122,11 +182,35 @@ public class TcpChannelHub implements Closeable {
         this.inWire = wire.apply(elasticByteBuffer());
         this.name = name;
         this.timeoutMs = Integer.getInteger("tcp.client.timeout", 10_000);
+        this.cidCache = CSP_INTERNING ? new CidCache(timeoutMs) : null;
+        this.writeTimeoutMs = Integer.getInteger("tcp.client.write.timeout", 5_000);
+        this.transactionIds = new TransactionIdGenerator(Time.currentTimeMillis(),
+                Integer.getInteger("tcp.client.tid.blockSize", 0));
+        try {
+            this.deadlineWriter = new DeadlineWriter();
+            this.readSelector = Selector.open();
+        } catch (IOException e) {
+            throw rethrow(e);
+        }
         this.wire = wire;
         this.handShakingWire = wire.apply(Bytes.elasticByteBuffer());
         this.sessionProvider = sessionProvider;
+        this.heartbeat = new Heartbeat();
         this.tcpSocketConsumer = new TcpSocketConsumer(wire);
         this.shouldSendCloseMessage = shouldSendCloseMessage;
+        if (GROUP_COMMIT) {
+            this.groupCommitWriter = new GroupCommitWriter(socketAddressSupplier.toString(),
+                    tcpBufferSize, () -> clientChannel,
+                    (sc, buffers) -> writeFully(sc, buffers, Time.currentTimeMillis() + writeTimeoutMs),
+                    e -> closeSocket());
+            this.groupCommitWriter.start();
+        } else {
+            this.groupCommitWriter = null;
+        }
+        this.dispatcher = DISPATCH_THREADS > 0
+                ? new SubscriptionDispatcher(name, DISPATCH_THREADS, DISPATCH_RING_SIZE,
+                DISPATCH_SPILL_MAX, wire, this::unsubscribe)
+                : null;
         hubs.add(this);
     }
 
@@ -245,12 +329,42 @@ public class TcpChannelHub implements Closeable {
 
         if (LOG.isDebugEnabled())
             LOG.debug("disconnected to remoteAddress=" + socketAddressSupplier);
+        // the requests not yet waited for may never have been sent, such as those still queued
+        // for the group commit writer, which it discards, so they fail rather than time out
+        tcpSocketConsumer.pendingReplies.failReserved();
         tcpSocketConsumer.onConnectionClosed();
 
+        // the cids, and compact frames, are only valid for the connection
+        if (cidCache != null)
+            cidCache.clear();
+        compactFrames = false;
     }
 
     private void onConnected() {
+        synchronized (connectionMonitor) {
+            connectionMonitor.notifyAll();
+        }
+    }
 
+    /**
+     * waits for the connection to be established, or re-established, this returns as soon as the
+     * hand shaking and the subscriptions have been sent, so a request can be resent without a
+     * fixed pause
+     *
+     * @param timeoutMs the most time to wait
+     * @return true if connected, false if the time out was reached or the hub was closed
+     */
+    public boolean awaitConnected(long timeoutMs) throws InterruptedException {
+        final long end = Time.currentTimeMillis() + timeoutMs;
+        synchronized (connectionMonitor) {
+            while (clientChannel == null) {
+                final long remaining = end - Time.currentTimeMillis();
+                if (closed || remaining <= 0)
+                    return false;
+                connectionMonitor.wait(remaining);
+            }
+        }
+        return true;
     }
 
     /**
@@ -276,6 +390,43 @@ public class TcpChannelHub implements Closeable {
      */
     public void unsubscribe(final long tid) {
         tcpSocketConsumer.unsubscribe(tid);
+        if (dispatcher != null)
+            dispatcher.remove(tid);
+        if (cidCache != null)
+            cidCache.forget(tid);
+    }
+
+    /**
+     * @param tid the unique id of a subscription
+     * @return the number of messages received for the subscription, but not yet delivered, this
+     * is always zero unless {@code tcp.client.dispatch.threads} is set
+     */
+    public int subscriptionBacklog(long tid) {
+        return dispatcher == null ? 0 : dispatcher.occupancy(tid);
+    }
+
+    /**
+     * @return the most messages waiting to be delivered to any one subscription
+     */
+    public int maxSubscriptionBacklog() {
+        return dispatcher == null ? 0 : dispatcher.maxOccupancy();
+    }
+
+    /**
+     * @return the number of messages held on the heap, as the ring of their subscription was
+     * full, the reader thread never waits for a subscriber to catch up
+     */
+    public long subscriptionBacklogFull() {
+        return dispatcher == null ? 0 : dispatcher.ringFull();
+    }
+
+    /**
+     * @return the number of subscriptions which were unsubscribed, and told by {@link
+     * AsyncSubscription#onClose()}, as they fell more than {@code tcp.client.dispatch.spill.max}
+     * messages behind their full ring
+     */
+    public long subscriptionsDropped() {
+        return dispatcher == null ? 0 : dispatcher.dropped();
     }
 
 
@@ -286,14 +437,17 @@ public class TcpChannelHub implements Closeable {
 
     private synchronized void doHandShaking(@NotNull SocketChannel socketChannel) throws IOException {
         final SessionDetails sessionDetails = sessionDetails();
-        if (sessionDetails != null) {
+        if (sessionDetails != null || COMPACT_FRAMES) {
             handShakingWire.clear();
             handShakingWire.bytes().clear();
             handShakingWire.writeDocument(false, wireOut -> {
-                wireOut.writeEventName(EventId.userid).text(sessionDetails.userId());
+                if (sessionDetails != null)
+                    wireOut.writeEventName(EventId.userid).text(sessionDetails.userId());
+                if (COMPACT_FRAMES)
+                    wireOut.writeEventName(EventId.compactFrames).bool(true);
             });
 
-            writeSocket1(handShakingWire, timeoutMs, socketChannel);
+            writeSocket1(handShakingWire, writeTimeoutMs, socketChannel);
         }
 
 
@@ -336,6 +490,7 @@ public class TcpChannelHub implements Closeable {
 
 
             this.clientChannel = null;
+            readSelector.wakeup();
 
             clear(inWire);
             clear(outWire);
@@ -371,6 +526,20 @@ public class TcpChannelHub implements Closeable {
         closed = true;
         tcpSocketConsumer.stop();
 
+        // wakes any thread waiting to resend a request
+        synchronized (connectionMonitor) {
+            connectionMonitor.notifyAll();
+        }
+
+        if (groupCommitWriter != null)
+            groupCommitWriter.close();
+
+        if (dispatcher != null)
+            dispatcher.close();
+
+        closeQuietly(readSelector);
+        deadlineWriter.close();
+
         if (LOG.isDebugEnabled())
             LOG.debug("closing connection to " + socketAddressSupplier);
 
@@ -412,21 +581,34 @@ public class TcpChannelHub implements Closeable {
 
 
     /**
-     * the transaction id are generated as unique timestamps
+     * the transaction id are generated as unique timestamps, unless {@code
+     * -Dtcp.client.tid.blockSize} is set, in which case each thread takes blocks of ids so they
+     * can be generated without contention, see {@link TransactionIdGenerator}
+     * <p>
+     * A reply for this tid which arrives before it is waited for is parked for a few seconds,
+     * but along with other unregistered replies, so under a burst of them it may be discarded,
+     * see {@link #nextSyncTransaction(long)}.
      *
      * @param timeMs in milliseconds
      * @return a unique transactionId
      */
     public long nextUniqueTransaction(long timeMs) {
-        long id = timeMs;
-        for (; ; ) {
-            long old = transactionID.get();
-            if (old >= id)
-                id = old + 1;
-            if (transactionID.compareAndSet(old, id))
-                break;
-        }
-        return id;
+        return transactionIds.next(timeMs);
+    }
+
+    /**
+     * as {@link #nextUniqueTransaction(long)}, but the tid is registered as outstanding, so if
+     * its reply arrives before {@link #proxyReply(long, long)} is called, it is held until it is
+     * claimed or times out, and can not be pushed out by other unregistered replies. This must
+     * be called before the request is written.
+     *
+     * @param timeMs in milliseconds
+     * @return a unique transactionId, whose reply will be waited for
+     */
+    public long nextSyncTransaction(long timeMs) {
+        final long tid = nextUniqueTransaction(timeMs);
+        tcpSocketConsumer.pendingReplies.reserve(tid);
+        return tid;
     }
 
     /**
@@ -436,12 +618,20 @@ public class TcpChannelHub implements Closeable {
      */
     public void writeSocket(@NotNull final WireOut wire) {
         assert outBytesLock().isHeldByCurrentThread();
+
+        // in a batch, the outWire is sent once at the end, unless it is getting too large
+        if (batching && wire == outWire && outWire.bytes().writePosition() < BATCH_FLUSH_SIZE)
+            return;
+
         SocketChannel clientChannel = this.clientChannel;
         if (clientChannel == null)
             throw new ConnectionDroppedException("Not Connected " + socketAddressSupplier);
 
         try {
-            writeSocket1(wire, timeoutMs, clientChannel);
+            if (groupCommitWriter != null)
+                appendToGroupCommit(wire, groupCommitWriter);
+            else
+                writeSocket1(wire, writeTimeoutMs, clientChannel);
         } catch (ClosedChannelException e) {
             closeSocket();
             throw new ConnectionDroppedException(e);
@@ -452,18 +642,80 @@ public class TcpChannelHub implements Closeable {
         }
     }
 
+    /**
+     * hands the bytes to the group commit writer, which will send them along with any other
+     * pending writes
+     *
+     * @param outWire the data that you wish to write
+     */
+    private void appendToGroupCommit(@NotNull WireOut outWire,
+                                     @NotNull GroupCommitWriter groupCommitWriter) {
+        final Bytes<?> bytes = outWire.bytes();
+
+        final ByteBuffer outBuffer = (ByteBuffer) bytes.underlyingObject();
+        outBuffer.limit((int) bytes.writePosition());
+        outBuffer.position(0);
+
+        logToStandardOutMessageSent(outWire, outBuffer);
+        updateLargestChunkSoFarSize(outBuffer);
+
+        groupCommitWriter.append(outBuffer, Time.currentTimeMillis() + writeTimeoutMs);
+
+        outBuffer.clear();
+        bytes.clear();
+    }
+
     /**
      * blocks for a message with the appreciate {@code tid}
+     * <p>
+     * The {@code timeoutMs} is how long to wait from now, not a time of day. This parameter was
+     * called {@code timeoutTime}, and some callers passed {@code startTime + timeoutMs}, but it
+     * was always waited for as a duration, so such a caller waited for decades rather than
+     * timing out. Pass the time left, e.g. {@code startTime + timeoutMs - now}.
      *
-     * @param timeoutTime the amount of time to wait ( in MS ) before a time out exceptions
-     * @param tid         the {@code tid} of the message that we are waiting for
+     * @param timeoutMs how long to wait, in milliseconds, before a time out exception
+     * @param tid       the {@code tid} of the message that we are waiting for
      * @return the wire of the message with the {@code tid}
      * @throws ConnectionDroppedException
      */
-    public Wire proxyReply(long timeoutTime, final long tid) throws ConnectionDroppedException {
+    public Wire proxyReply(long timeoutMs, final long tid) throws ConnectionDroppedException {
+        return proxyReply(timeoutMs, tid, null);
+    }
+
+    /**
+     * blocks for a message with the appreciate {@code tid}, the reply is read into the wire
+     * provided, rather than into a buffer held per calling thread. This lets the caller reuse or
+     * pool its own buffers for large replies. The wire stays the caller's, the hub does not lend
+     * out its own buffers, so there is nothing to release once the reply has been read.
+     * <p>
+     * This is not zero copy, a reply as large as {@code tcp.client.receive.buffer.size} or more
+     * is read from the socket straight into the wire, but a smaller one is copied once from the
+     * reader's receive buffer, and a reply which arrived before this was called is copied once
+     * from where it was parked.
+     * <p>
+     * As for {@link #proxyReply(long, long)}, the {@code timeoutMs} is a duration, not a time of
+     * day.
+     *
+     * @param timeoutMs how long to wait, in milliseconds, before a time out exception
+     * @param tid       the {@code tid} of the message that we are waiting for
+     * @param using     the wire to read the reply into, its bytes must be backed by a {@code
+     *                  ByteBuffer}, if null a buffer held per calling thread is used
+     * @return the {@code using} wire, or the per thread wire, containing the reply
+     * @throws ConnectionDroppedException
+     * @throws IllegalArgumentException   if the bytes of {@code using} are not backed by a {@code
+     *                                    ByteBuffer}
+     */
+    public Wire proxyReply(long timeoutMs, final long tid, @Nullable Wire using)
+            throws ConnectionDroppedException {
+        if (using != null && !(using.bytes().underlyingObject() instanceof ByteBuffer))
+            throw new IllegalArgumentException("the reply must be read into bytes backed by a " +
+                    "ByteBuffer, not " + using.bytes().underlyingObject());
 
         try {
-            return tcpSocketConsumer.syncBlockingReadSocket(timeoutTime, tid);
+            return tcpSocketConsumer.syncBlockingReadSocket(timeoutMs, tid, using);
+        } catch (RequestFailedException e) {
+            // the connection has already been closed, and may have been re-established since
+            throw e;
         } catch (ConnectionDroppedException e) {
             closeSocket();
             throw e;
@@ -500,51 +752,120 @@ public class TcpChannelHub implements Closeable {
 
         updateLargestChunkSoFarSize(outBuffer);
 
-        long start = Time.currentTimeMillis();
+        try {
+            singleBuffer[0] = outBuffer;
+            writeFully(socketChannel, singleBuffer, Time.currentTimeMillis() + timeoutTime);
+        } catch (IOException e) {
+            closeSocket();
+            throw e;
+        } finally {
+            singleBuffer[0] = null;
+        }
 
+        outBuffer.clear();
+        bytes.clear();
+    }
 
+    /**
+     * writes all the remaining bytes to the non-blocking {@code socketChannel}, if the socket
+     * buffer is full this waits for it to become writable, rather than spinning, but only until
+     * the {@code deadlineMs}, after which the connection is dropped.
+     *
+     * @param socketChannel the channel to write to
+     * @param buffers       the data that you wish to write
+     * @param deadlineMs    the time by which the write must complete
+     * @throws IOException if the connection fails
+     */
+    private void writeFully(@NotNull SocketChannel socketChannel,
+                            @NotNull ByteBuffer[] buffers,
+                            long deadlineMs) throws IOException {
+        final boolean written;
         try {
+            written = deadlineWriter.writeFully(socketChannel, buffers, deadlineMs);
+        } catch (EOFException e) {
+            throw new IORuntimeException("Disconnection to server=" +
+                    socketAddressSupplier + ", name=" + name);
+        }
+        if (!written) {
+            closeSocket();
+            throw new IORuntimeException("Took more than " + writeTimeoutMs + " ms " +
+                    "to perform a write, server=" + socketAddressSupplier + ", name=" + name);
+        }
+    }
 
-            while (outBuffer.remaining() > 0) {
-                int prevRemaining = outBuffer.remaining();
-                int len = socketChannel.write(outBuffer);
+    private static void closeQuietly(@NotNull Selector selector) {
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
 
-                // reset the timer if we wrote something.
-                if (prevRemaining != outBuffer.remaining())
-                    start = Time.currentTimeMillis();
+    /**
+     * @return the total time in nanoseconds that writes have been held up waiting for a slow
+     * server to drain the socket buffer
+     */
+    public long writeBlockedNanos() {
+        return deadlineWriter.blockedNanos();
+    }
 
-                if (len == -1)
-                    throw new IORuntimeException("Disconnection to server=" +
-                            socketAddressSupplier + ", name=" + name);
+    /**
+     * @return the number of read() calls the reader thread has made on the socket
+     */
+    public long socketReads() {
+        return tcpSocketConsumer.receiveBuffer.socketReads();
+    }
 
-                long writeTime = Time.currentTimeMillis() - start;
+    /**
+     * @return the number of times the connection has been re-established, after it was dropped
+     */
+    public long reconnects() {
+        return tcpSocketConsumer.reconnects;
+    }
 
-                if (writeTime > 5000) {
+    /**
+     * @return how long it took to re-establish the connection the last time it was dropped, this
+     * includes the hand shaking
+     */
+    public long lastReconnectTimeMs() {
+        return tcpSocketConsumer.lastReconnectTimeMs;
+    }
 
-                    for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
-                        Thread thread = entry.getKey();
-                        if (thread.getThreadGroup().getName().equals("system"))
-                            continue;
-                        StringBuilder sb = new StringBuilder();
-                        sb.append(thread).append(" ").append(thread.getState());
-                        Jvm.trimStackTrace(sb, entry.getValue());
-                        sb.append("\n");
-                        LOG.error("\n========= THREAD DUMP =========\n", sb);
-                    }
+    public long maxReconnectTimeMs() {
+        return tcpSocketConsumer.maxReconnectTimeMs;
+    }
 
-                    closeSocket();
+    public long totalReconnectTimeMs() {
+        return tcpSocketConsumer.totalReconnectTimeMs;
+    }
 
-                    throw new IORuntimeException("Took " + writeTime + " ms " +
-                            "to perform a write, remaining= " + outBuffer.remaining());
-                }
-            }
-        } catch (IOException e) {
-            closeSocket();
-            throw e;
-        }
+    /**
+     * @return the number of subscriptions sent to the server the last time the connection was
+     * established
+     */
+    public int lastResubscribeCount() {
+        return tcpSocketConsumer.lastResubscribeCount;
+    }
 
-        outBuffer.clear();
-        bytes.clear();
+    /**
+     * @return how long it took to send the subscriptions to the server the last time the
+     * connection was established
+     */
+    public long lastResubscribeTimeNanos() {
+        return tcpSocketConsumer.lastResubscribeTimeNanos;
+    }
+
+    /**
+     * @return the number of connection attempts made, to any of the servers
+     */
+    public long connectAttempts() {
+        return tcpSocketConsumer.connectionRacer.attempts();
+    }
+
+    /**
+     * @return the number of writes that had to wait for the socket to become writable
+     */
+    public long writeBlockedCount() {
+        return deadlineWriter.blockedCount();
     }
 
     private void logToStandardOutMessageSent(@NotNull WireOut wire, @NotNull ByteBuffer outBuffer) {
@@ -607,27 +928,155 @@ public class TcpChannelHub implements Closeable {
     }
 
     public long writeMetaDataStartTime(long startTime, @NotNull Wire wire, String csp, long cid) {
+        return writeMetaDataStartTime(startTime, wire, csp, cid, 0);
+    }
+
+    private void addBatchTid(long tid) {
+        if (batchTidCount == batchTids.length)
+            batchTids = Arrays.copyOf(batchTids, batchTidCount * 2);
+        batchTids[batchTidCount++] = tid;
+    }
+
+    /**
+     * runs the {@code batch} holding the outBytesLock, any number of async events and requests
+     * written to the outWire by the batch, are accumulated and sent together at the end with a
+     * single write, rather than a write per message. If the batch grows beyond {@code
+     * -Dtcp.client.batch.flush.size} it is sent in more than one write.
+     * <p>
+     * The replies to the requests are harvested after the batch, using {@link #proxyReply(long,
+     * long)} with the tids returned. The tids are reserved as the requests are written, so a reply
+     * which arrives before its tid is harvested is held, but only for a few seconds, so the
+     * replies should be harvested promptly. As every reply may be held at once, a batch may make
+     * at most {@code -Dtcp.client.pending.replies} requests, a request beyond that fails the
+     * batch, which is then not sent.
+     *
+     * @param batch writes the messages to the outWire
+     * @return the tids of the requests made in the batch, in the order they were made
+     * @throws IllegalStateException if called within a batch, or the batch makes too many
+     *                               requests
+     */
+    @NotNull
+    public long[] batch(@NotNull Task batch) {
+        final ReentrantLock lock = outBytesLock();
+        lock.lock();
+        try {
+            if (batching)
+                throw new IllegalStateException("batches can not be nested");
+
+            batching = true;
+            batchTidCount = 0;
+            try {
+                batch.run();
+            } catch (RuntimeException e) {
+                // don't send a partly written batch
+                clear(outWire);
+                for (int i = 0; i < batchTidCount; i++)
+                    tcpSocketConsumer.pendingReplies.unreserve(batchTids[i]);
+                throw e;
+            } finally {
+                batching = false;
+            }
+
+            writeSocket(outWire);
+            return Arrays.copyOf(batchTids, batchTidCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the current thread is running a {@link #batch(Task)}
+     */
+    public boolean isBatching() {
+        return outBytesLock.isHeldByCurrentThread() && batching;
+    }
+
+    /**
+     * as {@link #writeMetaDataStartTime(long, Wire, String, long)} but the meta data also holds
+     * the {@code idempotencyKey}, the server uses this to recognise a request which is resent
+     * after a failover, and replies with the result of the first rather than processing it again
+     *
+     * @param idempotencyKey the same for every attempt to send a request, see {@link
+     *                       #nextIdempotencyKey()}
+     */
+    public long writeMetaDataStartTime(long startTime, @NotNull Wire wire, String csp, long cid,
+                                       long idempotencyKey) {
         assert outBytesLock().isHeldByCurrentThread();
 
-        long tid = nextUniqueTransaction(startTime);
+        if (batching && batchTidCount >= PENDING_REPLIES)
+            throw new IllegalStateException("a batch can not make more than " + PENDING_REPLIES +
+                    " requests, see tcp.client.pending.replies");
+
+        // reserved before the request is written, so a reply which beats proxyReply() is held
+        long tid = nextSyncTransaction(startTime);
 
-        writeMetaDataForKnownTID(tid, wire, csp, cid);
+        writeMetaDataForKnownTID(tid, wire, csp, cid, idempotencyKey);
+
+        if (batching)
+            addBatchTid(tid);
 
         return tid;
     }
 
+    /**
+     * @return a key which identifies a request across all of its attempts, the keys are random,
+     * so are unique across clients and servers
+     */
+    public long nextIdempotencyKey() {
+        long key;
+        do {
+            key = ThreadLocalRandom.current().nextLong();
+        } while (key == 0);
+        return key;
+    }
+
     public void writeMetaDataForKnownTID(long tid, @NotNull Wire wire, @Nullable String csp,
                                          long cid) {
+        writeMetaDataForKnownTID(tid, wire, csp, cid, 0);
+    }
+
+    /**
+     * @param idempotencyKey the key of the request, or 0 if it has none
+     */
+    public void writeMetaDataForKnownTID(long tid, @NotNull Wire wire, @Nullable String csp,
+                                         long cid, long idempotencyKey) {
         assert outBytesLock().isHeldByCurrentThread();
+
+        long cid0 = cid;
+        boolean internCsp = false;
+        if (cid == 0 && csp != null && cidCache != null) {
+            cid0 = cidCache.cid(csp);
+            internCsp = cid0 == 0 && cidCache.request(tid, csp);
+        }
+
+        if (compactFrames && cid0 != 0 && idempotencyKey == 0 && !internCsp) {
+            CompactFrames.writeMetaData(wire.bytes(), tid, cid0);
+            return;
+        }
+
+        final long cid1 = cid0;
+        final boolean internCsp1 = internCsp;
         wire.writeDocument(true, wireOut -> {
-            if (cid == 0)
+            if (cid1 == 0)
                 wireOut.writeEventName(CoreFields.csp).text(csp);
             else
-                wireOut.writeEventName(CoreFields.cid).int64(cid);
+                wireOut.writeEventName(CoreFields.cid).int64(cid1);
             wireOut.writeEventName(CoreFields.tid).int64(tid);
+            if (idempotencyKey != 0)
+                wireOut.writeEventName(CoreFields.idempotencyKey).int64(idempotencyKey);
+            if (internCsp1)
+                wireOut.writeEventName(CoreFields.internCsp).bool(true);
         });
     }
 
+    /**
+     * @return the number of csps which are sent as a cid assigned by the server, this is always
+     * zero unless {@code tcp.client.csp.interning} is set
+     */
+    public int internedCsps() {
+        return cidCache == null ? 0 : cidCache.size();
+    }
+
     /**
      * The writes the meta data to wire - the async version does not contain the tid
      *
@@ -693,6 +1142,94 @@ public class TcpChannelHub implements Closeable {
         void run();
     }
 
+    /**
+     * @return the round trip times of the heartbeats sent by the client, in nanoseconds
+     */
+    @NotNull
+    public LatencyHistogram heartbeatRoundTripTimes() {
+        return heartbeatRoundTripTimes;
+    }
+
+    /**
+     * the heartbeat sent from the client to the server, there is one per hub with a fixed tid,
+     * which is reused for every heartbeat, so that sending a heartbeat and recording its round
+     * trip time does not allocate. Each heartbeat carries a sequence number, which the server
+     * echoes back in its {@code heartbeatReply}, so a reply is timed from its own heartbeat even
+     * if heartbeats overlap.
+     */
+    private class Heartbeat implements AsyncSubscription {
+        private final long tid = nextUniqueTransaction(Time.currentTimeMillis());
+        private final WriteMarshallable metaData = this::writeMetaData;
+        private final WriteMarshallable data = this::writeData;
+        private final ReadMarshallable reply = this::readReply;
+        private final Task write = this::write;
+        private final PingTimes pingTimes = new PingTimes(16);
+        // the sequence number of the heartbeat being written, guarded by the outBytesLock
+        private long sequence;
+
+        @Override
+        public long tid() {
+            return tid;
+        }
+
+        void send() {
+            // if the lock is busy, there is traffic so a heartbeat is not needed
+            lock(write, true);
+        }
+
+        private void write() {
+            sequence = pingTimes.send(System.nanoTime());
+            outWire.writeDocument(true, metaData);
+            outWire.writeDocument(false, data);
+        }
+
+        private void writeMetaData(@NotNull WireOut wireOut) {
+            // a null csp denotes a system message
+            wireOut.writeEventName(CoreFields.csp).text((String) null);
+            wireOut.writeEventName(CoreFields.tid).int64(tid);
+        }
+
+        private void writeData(@NotNull WireOut wireOut) {
+            wireOut.writeEventName(EventId.heartbeat).int64(sequence);
+        }
+
+        /**
+         * sends a heartbeat as soon as the connection is re-established
+         */
+        @Override
+        public void applySubscribe() {
+            assert outBytesLock().isHeldByCurrentThread();
+            write();
+            writeSocket(outWire);
+        }
+
+        @Override
+        public void onConsumer(@NotNull WireIn inWire) {
+            inWire.readDocument(null, reply);
+            inWire.clear();
+        }
+
+        private void readReply(@NotNull WireIn wireIn) {
+            final long receivedNanos = System.nanoTime();
+            final StringBuilder eventName = acquireStringBuilder();
+            final ValueIn valueIn = wireIn.readEventName(eventName);
+            if (!EventId.heartbeatReply.contentEquals(eventName))
+                return;
+
+            final long roundTripTimeNanos = pingTimes.onReply(valueIn.int64(), receivedNanos);
+            if (roundTripTimeNanos < 0)
+                return;
+            heartbeatRoundTripTimes.record(roundTripTimeNanos);
+            if (LOG.isDebugEnabled())
+                LOG.debug("heartbeat round trip time=" + NANOSECONDS.toMicros
+                        (roundTripTimeNanos) + " server=" + socketAddressSupplier);
+        }
+
+        @Override
+        public void onClose() {
+        }
+    }
+
     /**
      * uses a single read thread, to process messages to waiting threads based on their {@code tid}
      */
@@ -703,13 +1240,52 @@ public class TcpChannelHub implements Closeable {
         @NotNull
         private final Map<Long, Object> map = new ConcurrentHashMap<>();
         private final Map<Long, Object> omap = new ConcurrentHashMap<>();
-        long lastheartbeatSentTime = 0;
+        volatile long lastheartbeatSentTime = 0;
+        // this stays on the event loop, the timer sets heartbeatCheckDue when a check is due
+        private volatile boolean heartbeatCheckDue;
+        private final Runnable heartbeatCheck = () -> heartbeatCheckDue = true;
+        private final AtomicBoolean heartbeatCheckScheduled = new AtomicBoolean();
+        // only used by the reader thread
+        private boolean addedToEventLoop;
+        // wakes a thread waiting for a reply at its deadline, one per thread, so a request
+        // allocates only its Timeout
+        @NotNull
+        private final ThreadLocal<ReplyWaiter> replyWaiter = withInitial(ReplyWaiter::new);
+        // reads from the socket, submitted again by the timer after a reconnect back-off
+        private final Runnable read = this::read;
+        private final Runnable resumeReading = this::resumeReading;
+        // when the connection was lost, or zero while connected, only used by the reader thread
+        private long disconnectedAtMs;
         private Function<Bytes, Wire> wireFunction;
+        @NotNull
+        private final Wire readerWire;
         private long tid;
         @NotNull
         private ThreadLocal<Wire> syncInWireThreadLocal = withInitial(() -> wire.apply(
                 elasticByteBuffer()));
         private Bytes serverHeartBeatHandler = Bytes.elasticByteBuffer();
+        // bytes read from the socket but not yet consumed, only used by the reader thread
+        @NotNull
+        private final ReceiveBuffer receiveBuffer = new ReceiveBuffer(RECEIVE_BUFFER_SIZE);
+        // a reply read by parkReply() whose tid was registered in the meantime
+        @Nullable
+        private Bytes parkedReply;
+        @NotNull
+        private final PendingReplies pendingReplies = new PendingReplies(PENDING_REPLIES,
+                PENDING_REPLY_TIMEOUT_MS);
+
+        private final ConnectionRacer connectionRacer = new ConnectionRacer(
+                TcpChannelHub.this::openSocketChannel, CONNECT_STAGGER_MS);
+        private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff(
+                RECONNECT_BACKOFF_MIN_MS, RECONNECT_BACKOFF_MAX_MS);
+        private boolean connectedBefore;
+        private volatile long reconnects;
+        private volatile long lastReconnectTimeMs;
+        private volatile long maxReconnectTimeMs;
+        private volatile long totalReconnectTimeMs;
+
+        private volatile int lastResubscribeCount;
+        private volatile long lastResubscribeTimeNanos;
 
         private volatile long lastTimeMessageReceived = Time.currentTimeMillis();
         private volatile boolean isShutdown;
@@ -723,6 +1299,9 @@ public class TcpChannelHub implements Closeable {
         private TcpSocketConsumer(
                 @NotNull final Function<Bytes, Wire> wireFunction) {
             this.wireFunction = wireFunction;
+            this.readerWire = wireFunction.apply(elasticByteBuffer());
+            // the heartbeat is registered for the life of the hub, like a subscription
+            this.map.put(heartbeat.tid(), heartbeat);
             if (LOG.isDebugEnabled())
                 LOG.debug("constructor remoteAddress=" + socketAddressSupplier);
 
@@ -737,23 +1316,43 @@ public class TcpChannelHub implements Closeable {
         private void reconnect() {
 
             preventSubscribeUponReconnect.forEach(this::unsubscribe);
-            map.values().forEach(v -> {
+
+            final long start = System.nanoTime();
+            final int[] count = {0};
+
+            // the subscriptions are written in a batch, so they are sent in a few large writes
+            // rather than one write each, which keeps the outBytesLock held for less time
+            batch(() -> map.values().forEach(v -> {
                 if (v instanceof AsyncSubscription) {
-                    if (!(v instanceof AsyncTemporarySubscription))
+                    if (!(v instanceof AsyncTemporarySubscription)) {
                         ((AsyncSubscription) v).applySubscribe();
+                        // the heartbeat is sent on every connection, it is not a subscription
+                        if (v != heartbeat)
+                            count[0]++;
+                    }
                 }
-            });
+            }));
+
+            lastResubscribeCount = count[0];
+            lastResubscribeTimeNanos = System.nanoTime() - start;
+            if (LOG.isDebugEnabled())
+                LOG.debug("resubscribed " + lastResubscribeCount + " subscriptions in " +
+                        lastResubscribeTimeNanos / 1000 + "us, name=" + name);
         }
 
         @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
         public void onConnectionClosed() {
-            map.values().forEach(v -> {
+            map.forEach((tid, v) -> {
                 if (v instanceof Bytes)
                     synchronized (v) {
                         v.notifyAll();
                     }
                 if (v instanceof AsyncSubscription) {
-                    ((AsyncSubscription) v).onClose();
+                    if (dispatcher == null)
+                        ((AsyncSubscription) v).onClose();
+                    else
+                        // after the messages which have already been received
+                        dispatcher.onClose(tid, (AsyncSubscription) v);
                 } else if (v instanceof Bytes) {
                     synchronized (v) {
                         v.notifyAll();
@@ -771,47 +1370,67 @@ public class TcpChannelHub implements Closeable {
         /**
          * blocks this thread until a response is received from the socket
          *
-         * @param timeoutTimeMs the amount of time to wait before a time out exceptions
-         * @param tid           the {@code tid} of the message that we are waiting for
+         * @param timeoutMs how long to wait, in milliseconds, before a time out exception
+         * @param tid       the {@code tid} of the message that we are waiting for
+         * @param using     the wire to read the reply into, or null to use a wire held per
+         *                  thread
          * @throws InterruptedException
          */
-        Wire syncBlockingReadSocket(final long timeoutTimeMs, long tid) throws
+        Wire syncBlockingReadSocket(final long timeoutMs, final long tid, @Nullable Wire using) throws
                 InterruptedException, TimeoutException, ConnectionDroppedException {
-            long start = Time.currentTimeMillis();
-
-            final Wire wire = syncInWireThreadLocal.get();
+            final Wire wire = using == null ? syncInWireThreadLocal.get() : using;
             wire.clear();
 
-            Bytes<?> bytes = wire.bytes();
+            final Bytes<?> bytes = wire.bytes();
             ((ByteBuffer) bytes.underlyingObject()).clear();
 
-            //noinspection SynchronizationOnLocalVariableOrMethodParameter
-            synchronized (bytes) {
+            final ReplyWaiter waiter = replyWaiter.get();
+            HashedWheelTimer.Timeout timeout = null;
+            boolean received = false;
+            try {
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (bytes) {
 
-                if (LOG.isDebugEnabled())
-                    LOG.debug("tid=" + tid + " of client request");
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("tid=" + tid + " of client request");
 
-                bytes.clear();
+                    bytes.clear();
 
-                registerSubscribe(tid, bytes);
+                    registerOrClaimReply(tid, bytes);
 
+                    while (bytes.readLimit() == 0 && !isShutdown) {
+                        if (timeout == null) {
+                            // the shared timer wakes this thread at the deadline, the notify
+                            // can not be missed, as this thread holds the monitor until it waits
+                            waiter.bytes = bytes;
+                            timeout = HashedWheelTimer.shared().schedule(waiter, timeoutMs);
 
-                do {
-                    bytes.wait(timeoutTimeMs);
+                        } else if (timeout.isExpired()) {
+                            throw new TimeoutException("timeoutMs=" + timeoutMs);
+                        }
+
+                        bytes.wait();
 
-                    if (clientChannel == null)
-                        throw new ConnectionDroppedException("Connection Closed : the connection to the " +
-                                "server has been dropped.");
+                        if (clientChannel == null)
+                            throw new ConnectionDroppedException("Connection Closed : the connection to the " +
+                                    "server has been dropped.");
 
-                } while (bytes.readLimit() == 0 && !isShutdown);
+                    }
+                    received = true;
+                }
+            } finally {
+                if (timeout != null)
+                    timeout.cancel();
+                // frees the registration of a request which did not get its reply
+                if (!received) {
+                    map.remove(tid, bytes);
+                    if (cidCache != null)
+                        cidCache.forget(tid);
+                }
             }
 
             logToStandardOutMessageReceived(wire);
 
-            if (Time.currentTimeMillis() - start >= timeoutTimeMs) {
-                throw new TimeoutException("timeoutTimeMs=" + timeoutTimeMs);
-            }
-
             return wire;
 
         }
@@ -824,6 +1443,56 @@ public class TcpChannelHub implements Closeable {
             assert prev == null;
         }
 
+        /**
+         * registers the {@code bytes} to receive the reply for the {@code tid}, unless the reply
+         * has already arrived, in which case it is copied into the {@code bytes} straight away
+         *
+         * @param tid   the tid of the request
+         * @param bytes the bytes the reply is read into
+         * @throws RequestFailedException if the connection was lost after the tid was reserved
+         */
+        private void registerOrClaimReply(long tid, @NotNull Bytes bytes) {
+            final PendingReplies.PendingReply reply;
+            synchronized (pendingReplies) {
+                if (pendingReplies.claimFailure(tid))
+                    throw new RequestFailedException("the connection to the server was lost " +
+                            "before the reply to tid=" + tid + " arrived, the request may not " +
+                            "have been sent");
+                reply = pendingReplies.remove(tid);
+                if (reply == null) {
+                    registerSubscribe(tid, bytes);
+                    return;
+                }
+                // the later parts are read straight into the bytes, unless some have already
+                // been parked, those are claimed first, in order, by the next calls
+                if (!reply.isReady && !pendingReplies.isParked(tid))
+                    registerSubscribe(tid, bytes);
+            }
+
+            if (reply.isReady)
+                omap.put(tid, bytes);
+
+            copyReply(reply.bytes, bytes);
+            pendingReplies.release(reply.bytes);
+        }
+
+        /**
+         * @param from bytes holding a header followed by the message
+         * @param to   bytes, backed by a ByteBuffer, to copy the header and message into
+         */
+        private void copyReply(@NotNull Bytes from, @NotNull Bytes to) {
+            final ByteBuffer source = (ByteBuffer) from.underlyingObject();
+            source.limit((int) from.readLimit());
+            source.position(0);
+
+            to.clear();
+            to.ensureCapacity(source.remaining());
+            final ByteBuffer byteBuffer = (ByteBuffer) to.underlyingObject();
+            byteBuffer.clear();
+            byteBuffer.put(source);
+            to.readLimit(byteBuffer.position());
+        }
+
         void subscribe(@NotNull final AsyncSubscription asyncSubscription, boolean tryLock) {
             // we add a synchronize to ensure that the asyncSubscription is added before map before
             // the clientChannel is assigned
@@ -884,20 +1553,36 @@ public class TcpChannelHub implements Closeable {
                     new NamedThreadFactory("TcpChannelHub-" + socketAddressSupplier, true));
             assert shutdownHere == null;
             assert !isShutdown;
-            executorService.submit(() -> {
-                try {
-                    running();
-                } catch (IORuntimeException e) {
-                    LOG.debug("", e);
-                } catch (Throwable e) {
-                    if (!isShutdown())
-                        LOG.error("", e);
-                }
-            });
+            executorService.submit(read);
 
             return executorService;
         }
 
+        private void read() {
+            try {
+                running();
+            } catch (IORuntimeException e) {
+                LOG.debug("", e);
+            } catch (Throwable e) {
+                if (!isShutdown())
+                    LOG.error("", e);
+            }
+        }
+
+        /**
+         * run on the timer once the reconnect back-off is over, the reader thread is idle in the
+         * meantime, rather than sleeping
+         */
+        private void resumeReading() {
+            if (isShutdown)
+                return;
+            try {
+                executorService.execute(read);
+            } catch (RejectedExecutionException e) {
+                // the hub has been closed
+            }
+        }
+
         public void checkNotShutdown() {
             if (isShutdown)
                 throw new IORuntimeException("Called after shutdown", shutdownHere);
@@ -905,12 +1590,13 @@ public class TcpChannelHub implements Closeable {
 
         private void running() {
             try {
-                final Wire inWire = wireFunction.apply(elasticByteBuffer());
-                assert inWire != null;
+                final Wire inWire = readerWire;
 
                 while (!isShutdown()) {
 
-                    checkConnectionState();
+                    // if not connected, the next attempt is made after a back-off on the timer
+                    if (!checkConnectionState())
+                        return;
 
                     try {
                         // if we have processed all the bytes that we have read in
@@ -933,10 +1619,22 @@ public class TcpChannelHub implements Closeable {
                         } else {
                             // read  meta data - get the tid
                             blockingRead(inWire, messageSize);
-                            logToStandardOutMessageReceived(inWire);
-                            // ensure the tid is reset
-                            this.tid = -1;
-                            inWire.readDocument((WireIn w) -> this.tid = CoreFields.tid(w), null);
+                            final long offset = bytes.readPosition() + SIZE_OF_SIZE;
+                            if (compactFrames && CompactFrames.isCompact(bytes, offset, messageSize)) {
+                                // routed without parsing the meta data
+                                this.tid = CompactFrames.tid(bytes, offset);
+                                if (cidCache != null && cidCache.isPending())
+                                    cidCache.onReply(tid, CompactFrames.cid(bytes, offset));
+                            } else {
+                                logToStandardOutMessageReceived(inWire);
+                                // ensure the tid is reset
+                                this.tid = -1;
+                                inWire.readDocument((WireIn w) -> {
+                                    this.tid = CoreFields.tid(w);
+                                    if (cidCache != null && cidCache.isPending())
+                                        readAssignedCid(w);
+                                }, null);
+                            }
                         }
 
                     } catch (IOException e) {
@@ -968,6 +1666,26 @@ public class TcpChannelHub implements Closeable {
             return isShutdown;
         }
 
+        /**
+         * reads the cid the server may have assigned, after the tid in the meta data of a reply,
+         * and any cids the server has evicted to make room for it
+         */
+        private void readAssignedCid(@NotNull WireIn w) {
+            assert cidCache != null;
+            long cid = 0;
+            final StringBuilder eventName = acquireStringBuilder();
+            while (w.bytes().readRemaining() > 0) {
+                final ValueIn valueIn = w.readEventName(eventName);
+                if (CoreFields.cid.contentEquals(eventName))
+                    cid = valueIn.int64();
+                else if (CoreFields.evictedCid.contentEquals(eventName))
+                    cidCache.evict(valueIn.int64());
+                else
+                    break;
+            }
+            cidCache.onReply(tid, cid);
+        }
+
 
         /**
          * @param header message size in header form
@@ -993,10 +1711,9 @@ public class TcpChannelHub implements Closeable {
                                     final boolean isReady,
                                     final int header,
                                     final int messageSize,
-                                    @NotNull Wire inWire) throws IOException, InterruptedException {
+                                    @NotNull Wire inWire) throws IOException {
             assert tid != -1;
             boolean isLastMessageForThisTid = false;
-            long startTime = 0;
             Object o = null;
 
             // tid == 0 for system messages
@@ -1008,57 +1725,41 @@ public class TcpChannelHub implements Closeable {
                 if (c == null)
                     return false;
 
-                // this loop if to handle the rare case where we receive the tid before its been registered by this class
-                for (; !isShutdown() && c.isOpen(); ) {
-
-                    o = map.get(tid);
+                o = map.get(tid);
 
-                    // we only remove the subscription so they are AsyncTemporarySubscription, as the AsyncSubscription
-                    // can not be remove from the map as they are required when you resubscribe when we loose connectivity
-                    if (o == null) {
-                        o = omap.get(tid);
-                        if (o != null) {
-                            blockingRead(inWire, messageSize);
+                if (o == null) {
+                    o = omap.get(tid);
+                    if (o != null) {
+                        blockingRead(inWire, messageSize);
 
-                            logToStandardOutMessageReceivedInERROR(inWire);
-                            throw new AssertionError("Found tid=" + tid + " in the old map.");
-                        }
-                    } else {
-                        if (isReady && (o instanceof Bytes || o instanceof
-                                AsyncTemporarySubscription)) {
-                            omap.put(tid, map.remove(tid));
-                            isLastMessageForThisTid = true;
-                        }
-                        break;
+                        logToStandardOutMessageReceivedInERROR(inWire);
+                        throw new AssertionError("Found tid=" + tid + " in the old map.");
                     }
 
-                    // this can occur if the server returns the response before we have started to
-                    // listen to it
-
-                    if (startTime == 0)
-                        startTime = Time.currentTimeMillis();
-                    else
-                        Thread.sleep(1);
-
-                    if (Time.currentTimeMillis() - startTime > 3_000) {
-
-                        blockingRead(inWire, messageSize);
-                        logToStandardOutMessageReceived(inWire);
-
-                        LOG.debug("unable to respond to tid=" + tid + ", given that we have " +
-                                "received a message we a tid which is unknown, this can occur " +
-                                "sometime if " +
-                                "the subscription has just become unregistered ( an the server " +
-                                "has not yet processed the unregister event ) ");
-                        return isLastMessageForThisTid;
+                    // this can occur if the server returns the response before we have started
+                    // to listen to it, rather than wait we hold on to the reply, so it can be
+                    // claimed when the tid is registered
+                    o = parkReply(tid, isReady, header, messageSize);
+                    if (o == null)
+                        return false;
 
+                    if (isReady && (o instanceof Bytes || o instanceof AsyncTemporarySubscription)) {
+                        omap.put(tid, map.remove(tid));
+                        isLastMessageForThisTid = true;
                     }
-                }
 
-                // this can occur if we received a shutdown
-                if (o == null)
+                    // the tid was registered while we were reading the reply
+                    deliverParkedReply(tid, o, isLastMessageForThisTid);
                     return isLastMessageForThisTid;
+                }
 
+                // we only remove the subscription so they are AsyncTemporarySubscription, as the AsyncSubscription
+                // can not be remove from the map as they are required when you resubscribe when we loose connectivity
+                if (isReady && (o instanceof Bytes || o instanceof
+                        AsyncTemporarySubscription)) {
+                    omap.put(tid, map.remove(tid));
+                    isLastMessageForThisTid = true;
+                }
             }
 
 
@@ -1069,8 +1770,11 @@ public class TcpChannelHub implements Closeable {
                 return isLastMessageForThisTid;
             }
 
-            // for async
-            if (o instanceof AsyncSubscription) {
+            // for async, handed to the dispatcher so a slow subscriber does not hold up this thread
+            if (o instanceof AsyncSubscription && dispatcher != null && !(o instanceof Heartbeat)) {
+                dispatch(tid, (AsyncSubscription) o, isLastMessageForThisTid, header, messageSize);
+
+            } else if (o instanceof AsyncSubscription) {
 
                 blockingRead(inWire, messageSize);
                 logToStandardOutMessageReceived(inWire);
@@ -1103,6 +1807,113 @@ public class TcpChannelHub implements Closeable {
             return isLastMessageForThisTid;
         }
 
+        /**
+         * reads a message straight into the ring of the subscription, for it to be delivered by
+         * the dispatcher
+         */
+        private void dispatch(final long tid,
+                              @NotNull final AsyncSubscription subscription,
+                              final boolean isLast,
+                              final int header,
+                              final int messageSize) throws IOException {
+            assert dispatcher != null;
+            final Bytes bytes = dispatcher.claim(tid, subscription);
+            if (bytes != null) {
+                readFrame(bytes, header, messageSize);
+                dispatcher.publish(tid, isLast);
+                return;
+            }
+
+            // the subscription has gone, but the message still has to be read off the socket
+            final Bytes discard = pendingReplies.acquire();
+            try {
+                readFrame(discard, header, messageSize);
+            } finally {
+                pendingReplies.release(discard);
+            }
+        }
+
+        /**
+         * reads a message, and writes the header back in front of it, so it can be read as a
+         * document
+         */
+        private void readFrame(@NotNull final Bytes bytes,
+                               final int header,
+                               final int messageSize) throws IOException {
+            bytes.clear();
+            bytes.ensureCapacity(SIZE_OF_SIZE + messageSize);
+            final ByteBuffer byteBuffer = (ByteBuffer) bytes.underlyingObject();
+            byteBuffer.clear();
+            bytes.writeInt(0, header);
+            byteBuffer.position(SIZE_OF_SIZE);
+            byteBuffer.limit(SIZE_OF_SIZE + messageSize);
+            readBuffer(byteBuffer);
+            bytes.readLimit(byteBuffer.position());
+        }
+
+        /**
+         * reads a reply whose tid is not registered, and holds on to it
+         *
+         * @return null if the reply has been parked, otherwise what was registered for the tid
+         * while the reply was being read, the reply is then left in {@code parkedReply}
+         */
+        @Nullable
+        private Object parkReply(final long tid,
+                                 final boolean isReady,
+                                 final int header,
+                                 final int messageSize) throws IOException {
+            final Bytes bytes = pendingReplies.acquire();
+            bytes.clear();
+            bytes.ensureCapacity(SIZE_OF_SIZE + messageSize);
+            final ByteBuffer byteBuffer = (ByteBuffer) bytes.underlyingObject();
+            byteBuffer.clear();
+            bytes.writeInt(0, header);
+            byteBuffer.position(SIZE_OF_SIZE);
+            byteBuffer.limit(SIZE_OF_SIZE + messageSize);
+            readBuffer(byteBuffer);
+            bytes.readLimit(byteBuffer.position());
+
+            synchronized (pendingReplies) {
+                final Object o = map.get(tid);
+                if (o == null) {
+                    pendingReplies.put(tid, bytes, isReady);
+                    return null;
+                }
+                parkedReply = bytes;
+                return o;
+            }
+        }
+
+        private void deliverParkedReply(long tid, @NotNull Object o, boolean isLast) {
+            final Bytes parkedReply = this.parkedReply;
+            this.parkedReply = null;
+            assert parkedReply != null;
+            try {
+                if (o instanceof AsyncSubscription && dispatcher != null && !(o instanceof Heartbeat)) {
+                    final Bytes bytes = dispatcher.claim(tid, (AsyncSubscription) o);
+                    if (bytes != null) {
+                        copyReply(parkedReply, bytes);
+                        dispatcher.publish(tid, isLast);
+                    }
+
+                } else if (o instanceof AsyncSubscription) {
+                    final Wire wire = TcpChannelHub.this.wire.apply(parkedReply);
+                    logToStandardOutMessageReceived(wire);
+                    ((AsyncSubscription) o).onConsumer(wire);
+
+                } else if (o instanceof Bytes) {
+                    final Bytes bytes = (Bytes) o;
+                    //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                    synchronized (bytes) {
+                        copyReply(parkedReply, bytes);
+                        bytes.notifyAll();
+                    }
+                }
+            } finally {
+                pendingReplies.release(parkedReply);
+            }
+        }
+
         /**
          * process system messages which originate from the server
          *
@@ -1137,6 +1948,8 @@ public class TcpChannelHub implements Closeable {
                             reflectServerHeartbeatMessage(valueIn);
                         else if (EventId.onClosingReply.contentEquals(eventName))
                             receivedClosedAcknowledgement.countDown();
+                        else if (EventId.compactFrames.contentEquals(eventName))
+                            compactFrames = valueIn.bool();
 
                     }
             );
@@ -1165,13 +1978,26 @@ public class TcpChannelHub implements Closeable {
             bytes.readLimit(buffer.position());
         }
 
+        /**
+         * fills the {@code buffer}, first from any bytes already received, then from the socket.
+         * Each read from the socket takes as much as is available, so a number of small
+         * messages are typically received with a single read()
+         *
+         * @param buffer the buffer to fill
+         * @throws IOException if anything bad happens to the socket connection
+         */
         private void readBuffer(@NotNull final ByteBuffer buffer) throws IOException {
             while (buffer.remaining() > 0) {
+
+                if (receiveBuffer.drainTo(buffer))
+                    continue;
+
                 final SocketChannel clientChannel = TcpChannelHub.this.clientChannel;
                 if (clientChannel == null)
                     throw new IOException("Disconnection to server=" + socketAddressSupplier +
                             " channel is closed, name=" + name);
-                int numberOfBytesRead = clientChannel.read(buffer);
+
+                final int numberOfBytesRead = receiveBuffer.readFrom(clientChannel, buffer);
                 WanSimulator.dataRead(numberOfBytesRead);
                 if (numberOfBytesRead == -1)
                     throw new IOException("Disconnection to server=" + socketAddressSupplier +
@@ -1180,6 +2006,8 @@ public class TcpChannelHub implements Closeable {
 
                 if (numberOfBytesRead > 0)
                     onMessageReceived();
+                else
+                    awaitReadable(clientChannel);
 
                 if (isShutdown)
                     throw new IOException("The server" + socketAddressSupplier + " was shutdown, " +
@@ -1187,6 +2015,17 @@ public class TcpChannelHub implements Closeable {
             }
         }
 
+        /**
+         * waits for data to arrive on the non-blocking {@code clientChannel}, this is bounded so
+         * that the connection state is checked periodically
+         */
+        private void awaitReadable(@NotNull SocketChannel clientChannel) throws IOException {
+            if (clientChannel.keyFor(readSelector) == null)
+                clientChannel.register(readSelector, SelectionKey.OP_READ);
+            readSelector.select(READ_SELECT_MS);
+            readSelector.selectedKeys().clear();
+        }
+
         private void onMessageReceived() {
             lastTimeMessageReceived = Time.currentTimeMillis();
         }
@@ -1195,27 +2034,7 @@ public class TcpChannelHub implements Closeable {
          * sends a heartbeat from the client to the server and logs the round trip time
          */
         private void sendHeartbeat() {
-
-            long l = System.nanoTime();
-
-            // this denotes that the next message is a system message as it has a null csp
-
-            subscribe(new AbstractAsyncTemporarySubscription(TcpChannelHub.this, null, name) {
-                @Override
-                public void onSubscribe(@NotNull WireOut wireOut) {
-                    wireOut.writeEventName(EventId.heartbeat).int64(Time.currentTimeMillis());
-                }
-
-                @Override
-                public void onConsumer(@NotNull WireIn inWire) {
-                    long roundTipTimeMicros = NANOSECONDS.toMicros(System.nanoTime() - l);
-                    if (LOG.isDebugEnabled())
-                        LOG.debug("heartbeat round trip time=" + roundTipTimeMicros + "" +
-                                " server=" + socketAddressSupplier);
-
-                    inWire.clear();
-                }
-            }, true);
+            heartbeat.send();
         }
 
         /**
@@ -1241,17 +2060,49 @@ public class TcpChannelHub implements Closeable {
         }
 
         /**
-         * gets called periodically to monitor the heartbeat
+         * schedules the next check of the heartbeat, unless one is already scheduled
+         */
+        private void scheduleHeartbeatCheck() {
+            if (heartbeatCheckScheduled.compareAndSet(false, true))
+                scheduleNextHeartbeatCheck();
+        }
+
+        private void scheduleNextHeartbeatCheck() {
+            // the next time either a heartbeat is due or the connection has timed out
+            final long nextPing = Math.max(lastTimeMessageReceived, lastheartbeatSentTime) +
+                    HEATBEAT_PING_PERIOD;
+            final long timeout = lastTimeMessageReceived + HEATBEAT_TIMEOUT_PERIOD + 1;
+            final long delayMs = Math.min(nextPing, timeout) - Time.currentTimeMillis();
+            HashedWheelTimer.shared().schedule(heartbeatCheck, Math.max(1, delayMs));
+        }
+
+        /**
+         * called by the event loop, this does nothing until the timer says a heartbeat check is
+         * due, once the check has been made the next is scheduled on the timer. This stays on the
+         * event loop for the life of the hub, rather than being added for each check.
          *
-         * @return true, if processing was performed
-         * @throws InvalidEventHandlerException
+         * @return true, if a heartbeat check was made
+         * @throws InvalidEventHandlerException once the hub is closed
          */
         @Override
         public boolean action() throws InvalidEventHandlerException {
 
-            if (clientChannel == null)
+            if (isShutdown)
                 throw new InvalidEventHandlerException();
 
+            if (!heartbeatCheckDue)
+                return false;
+            heartbeatCheckDue = false;
+
+            if (clientChannel == null) {
+                // cleared before the channel is checked again, so a reconnect in between, whose
+                // scheduleHeartbeatCheck() saw the flag still set, is not left without a check
+                heartbeatCheckScheduled.set(false);
+                if (clientChannel != null)
+                    scheduleHeartbeatCheck();
+                return false;
+            }
+
             // a heartbeat only gets sent out if we have not received any data in the last
             // HEATBEAT_PING_PERIOD milliseconds
             long currentTime = Time.currentTimeMillis();
@@ -1268,133 +2119,152 @@ public class TcpChannelHub implements Closeable {
             long x = millisecondsSinceLastMessageReceived - HEATBEAT_TIMEOUT_PERIOD;
             if (x > 0) {
                 LOG.warn("reconnecting due to heartbeat failure, millisecondsSinceLastMessageReceived=" + millisecondsSinceLastMessageReceived);
+                heartbeatCheckScheduled.set(false);
                 closeSocket();
-                throw new InvalidEventHandlerException();
+                return true;
             }
+
+            scheduleNextHeartbeatCheck();
             return true;
         }
 
-        private void checkConnectionState() throws IOException {
+        /**
+         * @return true if connected, otherwise the next attempt to connect has been scheduled
+         */
+        private boolean checkConnectionState() throws IOException {
             if (clientChannel != null)
-                return;
+                return true;
 
-            attemptConnect();
+            return attemptConnect();
         }
 
-        private void attemptConnect() throws IOException {
+        /**
+         * makes one attempt to connect, racing all the servers. If none can be connected to, the
+         * next attempt is scheduled on the timer after a back-off, so the reader thread is not
+         * held sleeping in the meantime
+         *
+         * @return true if connected
+         */
+        private boolean attemptConnect() throws IOException {
 
-            keepSubscriptionsClearEverythingElse();
+            if (disconnectedAtMs == 0) {
+                // the first attempt since the connection was lost
+                disconnectedAtMs = System.currentTimeMillis();
+                keepSubscriptionsClearEverythingElse();
+                socketAddressSupplier.startAtFirstAddress();
+            }
 
-            long start = System.currentTimeMillis();
-            socketAddressSupplier.startAtFirstAddress();
+            checkNotShutdown();
 
-            OUTER:
-            for (; ; ) {
-                checkNotShutdown();
+            try {
+                final SocketChannel socketChannel = raceConnect();
+                if (socketChannel == null) {
+                    if (isShutdown())
+                        return false;
+
+                    final long delayMs = reconnectBackoff.nextDelayMs();
+                    LOG.warn("failed to establish a socket connection of any of the " +
+                            "following servers=" + socketAddressSupplier.all() + " so will " +
+                            "re-attempt in " + delayMs + "ms, name=" + name);
+                    scheduleReconnect(delayMs);
+                    return false;
+                }
 
-                if (LOG.isDebugEnabled())
-                    LOG.debug("attemptConnect remoteAddress=" + socketAddressSupplier);
-                SocketChannel socketChannel;
+                // this lock prevents the clients attempt to send data before we have
+                // finished the handshaking
+                outBytesLock().lock();
                 try {
 
-                    for (; ; ) {
-
-                        if (isShutdown())
-                            continue OUTER;
+                    clear(outWire);
 
-                        if (start + socketAddressSupplier.timeoutMS() < System.currentTimeMillis()) {
+                    // anything still pending was for the old connection
+                    if (groupCommitWriter != null)
+                        groupCommitWriter.discardPending();
 
-                            String oldAddress = socketAddressSupplier.toString();
+                    // the connect was raced without blocking, as are the reads and writes
+                    socketChannel.configureBlocking(false);
 
-                            socketAddressSupplier.failoverToNextAddress();
-                            LOG.info("Connection Dropped to address=" +
-                                    oldAddress + ", so will fail over to" +
-                                    socketAddressSupplier + ", name=" + name);
-
-                            if (socketAddressSupplier.get() == null) {
-                                LOG.warn("failed to establish a socket " +
-                                        "connection of any of the following servers=" +
-                                        socketAddressSupplier.all() + " so will re-attempt");
-                                socketAddressSupplier.startAtFirstAddress();
-                            }
-
-                            // reset the timer, so that we can try this new address for a while
-                            start = System.currentTimeMillis();
-                        }
-
-                        socketChannel = openSocketChannel();
-
-                        try {
-                            if (socketChannel == null) {
-                                LOG.error("Unable to open socketChannel to remoteAddress=" +
-                                        socketAddressSupplier);
-                                pause(250);
-                                continue;
-                            } else {
-
-                                final SocketAddress socketAddress = socketAddressSupplier.get();
-                                if (socketAddress == null)
-                                    throw new IORuntimeException("failed to connect as " +
-                                            "socketAddress=null");
-
-                                final SocketAddress remote = socketAddressSupplier.get();
-                                if (LOG.isDebugEnabled())
-                                    LOG.debug("attempting to connect to address=" + remote);
-
-                                if (socketChannel.connect(remote))
-                                    // successfully connected
-                                    break;
-                            }
+                    // resets the heartbeat timer
+                    onMessageReceived();
 
-                            LOG.error("Unable to connect to remoteAddress=" +
-                                    socketAddressSupplier);
-                            pause(250);
+                    // the hand-shaking is assigned before setting the clientChannel, so that it can
+                    // be assured to go first
+                    doHandShaking(socketChannel);
 
-                        } catch (ConnectException e) {
-                            LOG.info("Server is unavailable, ConnectException to " +
-                                    "remoteAddress=" + socketAddressSupplier);
-                            pause(250);
-                        }
+                    synchronized (this) {
+                        clientChannel = socketChannel;
                     }
 
-                    // this lock prevents the clients attempt to send data before we have
-                    // finished the handshaking
-                    outBytesLock().lock();
-                    try {
-
-                        clear(outWire);
+                    if (!addedToEventLoop) {
+                        addedToEventLoop = true;
+                        eventLoop.addHandler(this);
+                    }
+                    scheduleHeartbeatCheck();
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("successfully connected to remoteAddress=" +
+                                socketAddressSupplier);
 
-                        // resets the heartbeat timer
-                        onMessageReceived();
+                    reconnect();
+                    onConnected();
+                } finally {
+                    outBytesLock().unlock();
+                }
 
-                        // the hand-shaking is assigned before setting the clientChannel, so that it can
-                        // be assured to go first
-                        doHandShaking(socketChannel);
+                reconnectBackoff.reset();
+                onReconnected(System.currentTimeMillis() - disconnectedAtMs);
+                disconnectedAtMs = 0;
+                return true;
 
-                        synchronized (this) {
-                            clientChannel = socketChannel;
-                        }
+            } catch (Exception e) {
+                if (!isShutdown) {
+                    LOG.error("failed to connect remoteAddress=" + socketAddressSupplier
+                            + " so will reconnect ", e);
+                    closeSocket();
+                    scheduleReconnect(reconnectBackoff.nextDelayMs());
+                }
+                return false;
+            }
+        }
 
-                        eventLoop.addHandler(this);
-                        if (LOG.isDebugEnabled())
-                            LOG.debug("successfully connected to remoteAddress=" +
-                                    socketAddressSupplier);
+        private void scheduleReconnect(long delayMs) {
+            HashedWheelTimer.shared().schedule(resumeReading, delayMs);
+        }
 
-                        reconnect();
-                        onConnected();
-                    } finally {
-                        outBytesLock().unlock();
-                    }
+        /**
+         * races a connection to each of the servers, the primary first
+         *
+         * @return the connected socket channel or null if none of the servers could be
+         * connected to
+         */
+        @Nullable
+        private SocketChannel raceConnect() throws IOException {
+            if (LOG.isDebugEnabled())
+                LOG.debug("attemptConnect remoteAddresses=" + socketAddressSupplier.all());
+
+            final SocketChannel socketChannel = connectionRacer.connect(socketAddressSupplier.all(),
+                    socketAddressSupplier.timeoutMS(), this::isShutdown);
+            if (socketChannel == null)
+                return null;
+
+            final int winner = connectionRacer.winner();
+            if (winner > 0)
+                LOG.info("Connection failed over to " + socketAddressSupplier.all().get(winner) +
+                        ", name=" + name);
+            socketAddressSupplier.select(winner);
+            return socketChannel;
+        }
 
-                    break;
-                } catch (Exception e) {
-                    if (!isShutdown) {
-                        LOG.error("failed to connect remoteAddress=" + socketAddressSupplier
-                                + " so will reconnect ", e);
-                        closeSocket();
-                    }
-                }
+        private void onReconnected(long timeMs) {
+            if (!connectedBefore) {
+                // the first connection is not a reconnect
+                connectedBefore = true;
+                return;
             }
+            reconnects++;
+            lastReconnectTimeMs = timeMs;
+            totalReconnectTimeMs += timeMs;
+            if (timeMs > maxReconnectTimeMs)
+                maxReconnectTimeMs = timeMs;
         }
 
         private void keepSubscriptionsClearEverythingElse() {
@@ -1402,6 +2272,10 @@ public class TcpChannelHub implements Closeable {
             tid = 0;
             omap.clear();
 
+            // anything left over was from the old connection
+            receiveBuffer.clear();
+            pendingReplies.clear();
+
             final HashSet keys = new HashSet(map.keySet());
 
             keys.forEach(k -> {
@@ -1413,4 +2287,36 @@ public class TcpChannelHub implements Closeable {
             });
         }
     }
+
+    /**
+     * run by the timer at the deadline of a request, to wake the thread waiting for its reply.
+     * A late run, for an earlier request of the same thread, only causes a spurious wake up, as
+     * the waiting thread checks whether its own timeout has expired.
+     */
+    private static final class ReplyWaiter implements Runnable {
+        @Nullable
+        volatile Object bytes;
+
+        @Override
+        public void run() {
+            final Object bytes = this.bytes;
+            if (bytes == null)
+                return;
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (bytes) {
+                bytes.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * the connection was lost after the tid of a request was reserved, and before its reply was
+     * waited for, so the reply will never arrive, this is thrown without closing the connection
+     * again, as it may have been re-established since
+     */
+    private static final class RequestFailedException extends ConnectionDroppedException {
+        RequestFailedException(@NotNull String message) {
+            super(message);
+        }
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the transaction ids ( tids ) for a connection, each tid is unique for the life of
+ * the generator.
+ * <p>
+ * With a {@code blockSize} of zero, the tids are unique timestamps, every call performs a CAS on
+ * a single shared counter. Otherwise each thread takes a block of {@code blockSize} tids from the
+ * shared counter and hands them out without any contention, so the shared counter is only
+ * touched once every {@code blockSize} calls. The tids from different threads then interleave,
+ * but remain unique.
+ */
+public class TransactionIdGenerator {
+
+    private final AtomicLong transactionID;
+    private final int blockSize;
+    @NotNull
+    private final ThreadLocal<long[]> block = ThreadLocal.withInitial(() -> new long[2]);
+
+    /**
+     * @param seed      the tids are greater than this, typically the current time in
+     *                  milliseconds
+     * @param blockSize the number of tids taken by a thread at a time, or zero for timestamp
+     *                  based tids
+     */
+    public TransactionIdGenerator(long seed, int blockSize) {
+        if (blockSize < 0)
+            throw new IllegalArgumentException("blockSize=" + blockSize);
+        this.transactionID = new AtomicLong(seed);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param timeMs the current time in milliseconds, only used if there is no {@code blockSize}
+     * @return a unique transactionId
+     */
+    public long next(long timeMs) {
+        if (blockSize == 0)
+            return nextTimestamp(timeMs);
+
+        // [0] is the next tid, [1] is the end of the block
+        final long[] block = this.block.get();
+        if (block[0] == block[1]) {
+            block[0] = transactionID.getAndAdd(blockSize) + 1;
+            block[1] = block[0] + blockSize;
+        }
+        return block[0]++;
+    }
+
+    private long nextTimestamp(long timeMs) {
+        long id = timeMs;
+        for (; ; ) {
+            long old = transactionID.get();
+            if (old >= id)
+                id = old + 1;
+            if (transactionID.compareAndSet(old, id))
+                break;
+        }
+        return id;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+}
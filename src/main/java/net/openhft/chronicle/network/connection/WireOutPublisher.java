@@ -7,20 +7,142 @@ import net.openhft.chronicle.wire.Wires;
 import net.openhft.chronicle.wire.WriteMarshallable;
 import net.openhft.chronicle.wire.YamlLogging;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by peter.lawrey on 09/07/2015.
+ * <p>
+ * The queue may be bounded, in messages and in bytes, so a client which has stopped reading
+ * cannot run the server out of memory. What happens when the bound is reached is set by the
+ * {@link OverflowPolicy}. By default the bounds are taken from the system properties {@code
+ * WireOutPublisher.maxMessages}, {@code WireOutPublisher.maxBytes} and {@code
+ * WireOutPublisher.overflowPolicy}, and the queue is unbounded. The messages held for a
+ * subscription without credit, see {@link #add(long, WriteMarshallable)}, count towards the
+ * bounds.
+ * <p>
+ * A message is only serialised when it is written, so the bytes it will take are estimated as it
+ * is added, as {@code WireOutPublisher.messageSize} bytes, unless the message knows its size.
+ * Each message reserves its place and its bytes with a compare and set before it is queued, so
+ * any number of threads adding at once cannot take the queue past either bound.
+ * <p>
+ * Messages are queued in one of three lanes, see {@link Priority}, so that small urgent messages
+ * are not held up behind a large backlog of bulk data. By default the lanes are drained in
+ * strict priority, or they can be given weights, see {@link #laneWeights(int, int, int)}, so the
+ * lower lanes are not starved. The time each message waits can be recorded for each lane, see
+ * {@link #recordLaneLatency(boolean)}, this is off by default, as the base queues then wrap each
+ * message with its time.
  */
 public class WireOutPublisher implements Closeable {
     private static final int WARN_QUEUE_LENGTH = 50;
     private static final Logger LOG = LoggerFactory.getLogger(WireOutPublisher.class);
-    private final Queue<WriteMarshallable> publisher = new LinkedTransferQueue<>();
+    private static final int MAX_MESSAGES = Integer.getInteger("WireOutPublisher.maxMessages",
+            Integer.MAX_VALUE);
+    private static final long MAX_BYTES = Long.getLong("WireOutPublisher.maxBytes",
+            Long.MAX_VALUE);
+    private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.valueOf(
+            System.getProperty("WireOutPublisher.overflowPolicy", OverflowPolicy.BLOCK.name()));
+    private static final long MESSAGE_SIZE = Long.getLong("WireOutPublisher.messageSize", 256);
+    private static final boolean RECORD_LANE_LATENCY = Boolean.getBoolean(
+            "WireOutPublisher.laneLatency");
+    // the lanes, by Priority.ordinal(), the NORMAL lane may be replaced by a sub class
+    @NotNull
+    private final Queue<WriteMarshallable>[] lanes;
+    private static final Priority[] PRIORITIES = Priority.values();
+    @NotNull
+    private final LatencyHistogram[] laneLatencies;
+    private volatile boolean recordLaneLatency = RECORD_LANE_LATENCY;
+    // null for strict priority
+    @Nullable
+    private volatile int[] laneWeights;
+    // the weighted lane being drained, and the messages it has left this turn, event loop only
+    private int lane;
+    private int laneCredit;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long messageSize;
+    @NotNull
+    private final OverflowPolicy overflowPolicy;
+    @Nullable
+    private volatile OverflowListener overflowListener;
+    // the messages queued or held, each is reserved before it is queued, so the bounds are
+    // never passed. Maintained here, as size() on the queue is O(n)
+    private final AtomicInteger reserved = new AtomicInteger();
+    // the bytes reserved by those messages, see sizeOf()
+    private final AtomicLong reservedBytes = new AtomicLong();
+    // producers blocked by the BLOCK policy wait on this
+    private final Object space = new Object();
+    private volatile int waiting;
+    // the thread which last wrote messages out, this must never wait for space
+    @Nullable
+    private volatile Thread eventLoop;
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private volatile boolean disconnectRequested;
+    // the subscriptions which are flow controlled, by tid, guarded by itself
+    private final Map<Long, Credit> credits = new HashMap<>();
+    // the conflated messages which are queued but not yet sent, by key, guarded by itself
+    private final Map<Object, Conflated> conflated = new HashMap<>();
     private volatile boolean closed;
+    private long creditsGranted;
+    private long creditExhaustions;
+    private long byteExhaustions;
+    // the messages held in all the credits, written under credits
+    private volatile int held;
+    private long conflatableAdded;
+    private long conflatedCount;
+
+    public WireOutPublisher() {
+        this(MAX_MESSAGES, MAX_BYTES, OVERFLOW_POLICY);
+    }
+
+    /**
+     * @param maxMessages    the most messages queued
+     * @param maxBytes       the most bytes queued, as estimated when the messages are added
+     * @param overflowPolicy what happens to a message added when the queue is full
+     */
+    public WireOutPublisher(int maxMessages, long maxBytes, @NotNull OverflowPolicy overflowPolicy) {
+        this(maxMessages, maxBytes, overflowPolicy, MESSAGE_SIZE);
+    }
+
+    /**
+     * @param maxMessages    the most messages queued
+     * @param maxBytes       the most bytes queued, as estimated when the messages are added, a
+     *                       single message larger than this is still queued if the queue is
+     *                       empty
+     * @param overflowPolicy what happens to a message added when the queue is full
+     * @param messageSize    the bytes a message is expected to take, unless it knows its size
+     */
+    public WireOutPublisher(int maxMessages,
+                            long maxBytes,
+                            @NotNull OverflowPolicy overflowPolicy,
+                            long messageSize) {
+        if (maxMessages <= 0 || maxBytes <= 0 || messageSize <= 0)
+            throw new IllegalArgumentException("maxMessages=" + maxMessages + ", maxBytes=" +
+                    maxBytes + ", messageSize=" + messageSize);
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.messageSize = messageSize;
+
+        //noinspection unchecked
+        this.lanes = new Queue[PRIORITIES.length];
+        this.laneLatencies = new LatencyHistogram[PRIORITIES.length];
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            lanes[i] = new LinkedTransferQueue<>();
+            laneLatencies[i] = new LatencyHistogram();
+        }
+    }
 
     /**
      * Apply waiting messages and return false if there was none.
@@ -28,17 +150,22 @@ public class WireOutPublisher implements Closeable {
      * @param out buffer to write to.
      */
     public void applyAction(@NotNull WireOut out, @NotNull Runnable runnable) {
-        if (publisher.isEmpty()) {
+        final Thread thread = Thread.currentThread();
+        if (eventLoop != thread)
+            eventLoop = thread;
+
+        if (isEmpty() && lanes[Priority.HIGH.ordinal()].isEmpty() &&
+                lanes[Priority.LOW.ordinal()].isEmpty()) {
             synchronized (this) {
                 runnable.run();
             }
         }
         while (out.bytes().writePosition() < out.bytes().realCapacity() / 4) {
-            WriteMarshallable wireConsumer = publisher.poll();
-            if (wireConsumer == null)
+            final int[] laneWeights = this.laneWeights;
+            final long size = laneWeights == null ? writeStrict(out) : writeWeighted(out, laneWeights);
+            if (size < 0)
                 break;
-            wireConsumer.writeMarshallable(out);
-
+            release(size);
 
             if (Jvm.isDebug() && YamlLogging.showServerWrites)
                 try {
@@ -51,22 +178,687 @@ public class WireOutPublisher implements Closeable {
                     LOG.error("", e);
                 }
         }
+
+        if (waiting > 0) {
+            synchronized (space) {
+                space.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the bytes reserved by the message written, or -1 if there was none
+     */
+    private long writeStrict(@NotNull WireOut out) {
+        long size = writeLane(Priority.HIGH, out);
+        if (size < 0)
+            size = writeNext(out);
+        if (size < 0)
+            size = writeLane(Priority.LOW, out);
+        return size;
+    }
+
+    /**
+     * takes up to the weight of messages from each lane in turn, skipping empty lanes
+     *
+     * @return the bytes reserved by the message written, or -1 if there was none
+     */
+    private long writeWeighted(@NotNull WireOut out, @NotNull int[] laneWeights) {
+        for (int tried = 0; tried <= laneWeights.length; tried++) {
+            if (laneCredit <= 0) {
+                lane = (lane + 1) % laneWeights.length;
+                laneCredit = laneWeights[lane];
+            }
+            final long size = lane == Priority.NORMAL.ordinal()
+                    ? writeNext(out)
+                    : writeLane(PRIORITIES[lane], out);
+            if (size >= 0) {
+                laneCredit--;
+                return size;
+            }
+            laneCredit = 0;
+        }
+        return -1;
+    }
+
+    private long writeLane(@NotNull Priority priority, @NotNull WireOut out) {
+        WriteMarshallable outConsumer = lanes[priority.ordinal()].poll();
+        if (outConsumer == null)
+            return -1;
+        if (outConsumer instanceof Timed) {
+            final Timed timed = (Timed) outConsumer;
+            laneLatencies[priority.ordinal()].record(System.nanoTime() - timed.timeNanos);
+            outConsumer = timed.outConsumer;
+        }
+        // taken before the write, as a message may be reused once written
+        final long size = sizeOf(outConsumer);
+        outConsumer.writeMarshallable(out);
+        return size;
     }
 
     public void add(WriteMarshallable outConsumer) {
+        offer(outConsumer, Priority.NORMAL, true);
+    }
+
+    /**
+     * adds a message to the NORMAL lane without ever waiting, so the BLOCK policy drops the
+     * message, rather than waiting for space, the other policies are applied as usual
+     *
+     * @param outConsumer writes the message
+     * @return false if the message was dropped, as the queue is full
+     */
+    public boolean tryAdd(@NotNull WriteMarshallable outConsumer) {
+        return offer(outConsumer, Priority.NORMAL, false);
+    }
+
+    /**
+     * adds a message to a lane, messages in a higher lane are written before those in a lower
+     * lane, and the order is kept within each lane
+     *
+     * @param priority    the lane of the message
+     * @param outConsumer writes the message
+     */
+    public void add(@NotNull Priority priority, @NotNull WriteMarshallable outConsumer) {
+        offer(outConsumer, priority, true);
+    }
+
+    /**
+     * drains the lanes in a weighted round robin, rather than in strict priority, so a busy
+     * higher lane cannot starve the lower lanes
+     *
+     * @param high   the messages taken from the HIGH lane in each turn
+     * @param normal the messages taken from the NORMAL lane in each turn
+     * @param low    the messages taken from the LOW lane in each turn
+     */
+    public void laneWeights(int high, int normal, int low) {
+        if (high <= 0 || normal <= 0 || low <= 0)
+            throw new IllegalArgumentException("weights must be positive");
+        this.laneWeights = new int[]{high, normal, low};
+    }
+
+    /**
+     * drains the lanes in strict priority, which is the default
+     */
+    public void strictPriority() {
+        this.laneWeights = null;
+    }
+
+    /**
+     * @return the time, in nanoseconds, messages in this lane wait to be written, this is only
+     * recorded while {@link #recordLaneLatency(boolean)} is on
+     */
+    @NotNull
+    public LatencyHistogram laneLatency(@NotNull Priority priority) {
+        return laneLatencies[priority.ordinal()];
+    }
+
+    /**
+     * records the time each message waits in its lane, see {@link #laneLatency(Priority)}. This
+     * is off by default, or set by {@code -DWireOutPublisher.laneLatency}, as the base queues
+     * wrap each message with the time it was added, which is an allocation per message.
+     *
+     * @param recordLaneLatency true to record the time messages wait
+     */
+    public void recordLaneLatency(boolean recordLaneLatency) {
+        this.recordLaneLatency = recordLaneLatency;
+    }
+
+    protected boolean recordLaneLatency() {
+        return recordLaneLatency;
+    }
+
+    /**
+     * @param block true if the BLOCK policy may wait for space
+     * @return false if the message was dropped, as the queue is full
+     */
+    private boolean offer(@NotNull WriteMarshallable outConsumer,
+                          @NotNull Priority priority,
+                          boolean block) {
 
         if (closed) {
             throw new IllegalStateException("Closed");
 
         } else {
-            int size = publisher.size();
+            int size = size();
             if (size > WARN_QUEUE_LENGTH)
                 LOG.debug("publish length: " + size);
 
-            publisher.add(outConsumer);
+            if (!reserve(sizeOf(outConsumer), block))
+                return false;
+
+            if (priority == Priority.NORMAL)
+                enqueue(outConsumer);
+            else
+                lanes[priority.ordinal()].add(timed(outConsumer));
+            return true;
+        }
+    }
+
+    /**
+     * @return the bytes the message is expected to take, this must not change while the message
+     * is queued, as the same bytes are released once it is written or dropped
+     */
+    protected long sizeOf(@NotNull WriteMarshallable outConsumer) {
+        return outConsumer instanceof Sized ? ((Sized) outConsumer).size() : messageSize;
+    }
+
+    /**
+     * reserves a place in the queue for a message, applying the overflow policy until there is
+     * one, or the message is dropped
+     *
+     * @param bytes the bytes the message is expected to take
+     * @param block false if the BLOCK policy should drop the message, rather than wait
+     * @return false if the message was dropped
+     */
+    private boolean reserve(long bytes, boolean block) {
+        boolean overflowed = false;
+        while (!tryReserve(bytes)) {
+            if (!onOverflow(bytes, block, !overflowed))
+                return false;
+            overflowed = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if there was space for the message, which has now been taken
+     */
+    private boolean tryReserve(long bytes) {
+        for (; ; ) {
+            final int messages = reserved.get();
+            if (messages >= maxMessages)
+                return false;
+            if (reserved.compareAndSet(messages, messages + 1))
+                break;
+        }
+        for (; ; ) {
+            final long total = reservedBytes.get();
+            // a message larger than maxBytes is let into an empty queue, else it is never sent
+            if (total > 0 && total + bytes > maxBytes) {
+                reserved.decrementAndGet();
+                return false;
+            }
+            if (reservedBytes.compareAndSet(total, total + bytes))
+                return true;
+        }
+    }
+
+    /**
+     * frees the place of a message which has been written or dropped
+     */
+    private void release(long bytes) {
+        reservedBytes.addAndGet(-bytes);
+        reserved.decrementAndGet();
+    }
+
+    private boolean hasSpace(long bytes) {
+        if (reserved.get() >= maxMessages)
+            return false;
+        final long total = reservedBytes.get();
+        return total == 0 || total + bytes <= maxBytes;
+    }
+
+    /**
+     * applies the overflow policy
+     *
+     * @param bytes  the bytes of the message being added
+     * @param block  false if the BLOCK policy should drop the message, rather than wait
+     * @param notify true the first time the message finds the queue full, so the listener and
+     *               the blocked count are told once per message
+     * @return true if the message should try again to reserve its place
+     */
+    private boolean onOverflow(long bytes, boolean block, boolean notify) {
+        final OverflowListener listener = overflowListener;
+        if (notify && listener != null) {
+            try {
+                listener.onOverflow(this, overflowPolicy);
+            } catch (Exception e) {
+                LOG.error("", e);
+            }
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                if (!block) {
+                    droppedNewest.incrementAndGet();
+                    return false;
+                }
+                if (notify)
+                    blocked.incrementAndGet();
+                awaitSpace(bytes);
+                return true;
+
+            case DROP_OLDEST:
+                if (dropOldest()) {
+                    droppedOldest.incrementAndGet();
+                    return true;
+                }
+                // only the event loop can take from the ring of a RingWireOutPublisher
+                droppedNewest.incrementAndGet();
+                return false;
+
+            case DROP_NEWEST:
+                droppedNewest.incrementAndGet();
+                return false;
+
+            case DISCONNECT:
+                if (!disconnectRequested) {
+                    disconnectRequested = true;
+                    LOG.warn("disconnecting a slow client " + this);
+                }
+                droppedNewest.incrementAndGet();
+                close();
+                return false;
+
+            default:
+                throw new AssertionError(overflowPolicy);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if called on the event loop, which is the only thread that
+     *                               can make space, rather than waiting for ever
+     */
+    private void awaitSpace(long bytes) {
+        if (isEventLoop())
+            throw new IllegalStateException("The event loop cannot wait for space in a full " +
+                    "queue with the BLOCK policy, use another policy or add from another thread");
+        synchronized (space) {
+            waiting++;
+            try {
+                while (!hasSpace(bytes)) {
+                    if (closed)
+                        throw new IllegalStateException("Closed");
+                    // timed, as the event loop only notifies if it sees a waiter
+                    space.wait(10);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            } finally {
+                waiting--;
+            }
+        }
+    }
+
+    /**
+     * drops the oldest message waiting in the LOW lane, or failing that the NORMAL lane, or
+     * failing that one held for a subscription without credit, the HIGH lane is never dropped
+     * from. This is called by the thread adding a message
+     *
+     * @return false if no message could be dropped
+     */
+    private boolean dropOldest() {
+        WriteMarshallable oldest = lanes[Priority.LOW.ordinal()].poll();
+        if (oldest == null)
+            oldest = lanes[Priority.NORMAL.ordinal()].poll();
+        if (oldest == null)
+            return dropOldestHeld();
+
+        if (oldest instanceof Timed)
+            oldest = ((Timed) oldest).outConsumer;
+        release(sizeOf(oldest));
+        if (oldest instanceof Conflated) {
+            final Conflated c = (Conflated) oldest;
+            synchronized (conflated) {
+                conflated.remove(c.key, c);
+            }
+        }
+        dropped(oldest);
+        return true;
+    }
+
+    private boolean dropOldestHeld() {
+        WriteMarshallable oldest = null;
+        synchronized (credits) {
+            for (Credit credit : credits.values()) {
+                oldest = credit.held.poll();
+                if (oldest != null) {
+                    held--;
+                    break;
+                }
+            }
+        }
+        if (oldest == null)
+            return false;
+        release(sizeOf(oldest));
+        dropped(oldest);
+        return true;
+    }
+
+    private static void dropped(@NotNull WriteMarshallable outConsumer) {
+        if (outConsumer instanceof Droppable)
+            ((Droppable) outConsumer).onDropped();
+    }
+
+    /**
+     * @return true if called on the thread which writes the messages out, which must never wait
+     * for space
+     */
+    protected boolean isEventLoop() {
+        return Thread.currentThread() == eventLoop;
+    }
+
+    /**
+     * @return true if there are no messages waiting to be written in the NORMAL lane
+     */
+    protected boolean isEmpty() {
+        return lanes[Priority.NORMAL.ordinal()].isEmpty();
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    protected int size() {
+        return Math.max(0, reserved.get() - held);
+    }
+
+    /**
+     * @return the bytes reserved by the messages queued or held, as estimated when they were
+     * added
+     */
+    public long queuedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * @param overflowListener called each time a message is added to a full queue, before the
+     *                         overflow policy is applied, or null for none
+     */
+    public void overflowListener(@Nullable OverflowListener overflowListener) {
+        this.overflowListener = overflowListener;
+    }
+
+    @NotNull
+    public OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return the number of times a producer was blocked, as the queue was full
+     */
+    public long blocked() {
+        return blocked.get();
+    }
+
+    /**
+     * @return the number of messages dropped as they were added to a full queue
+     */
+    public long droppedNewest() {
+        return droppedNewest.get();
+    }
+
+    /**
+     * @return the number of queued messages dropped to make room for a newer message
+     */
+    public long droppedOldest() {
+        return droppedOldest.get();
+    }
+
+    /**
+     * @return true if the {@link OverflowPolicy#DISCONNECT} policy has closed this publisher,
+     * and the connection should be dropped
+     */
+    public boolean disconnectRequested() {
+        return disconnectRequested;
+    }
+
+    /**
+     * queues a message to be written by {@link #writeNext(WireOut)}, may be called by any thread
+     */
+    protected void enqueue(@NotNull WriteMarshallable outConsumer) {
+        lanes[Priority.NORMAL.ordinal()].add(timed(outConsumer));
+    }
+
+    /**
+     * @return the message, wrapped with the time it was added, if the lane latency is recorded
+     */
+    @NotNull
+    private WriteMarshallable timed(@NotNull WriteMarshallable outConsumer) {
+        return recordLaneLatency ? new Timed(outConsumer) : outConsumer;
+    }
+
+    /**
+     * writes the next message, this is only called by the event loop
+     *
+     * @return the bytes reserved by the message, see {@link #sizeOf(WriteMarshallable)}, or -1
+     * if there were no messages waiting
+     */
+    protected long writeNext(@NotNull WireOut out) {
+        return writeLane(Priority.NORMAL, out);
+    }
+
+    /**
+     * adds a message which is conflated with the other messages with the same {@code key}, for
+     * streams where only the latest value matters, such as prices. If a message with this key is
+     * queued and not yet sent, it is replaced by this message, which takes its place in the queue,
+     * otherwise this message is queued at the end. So a slow client is sent the latest value for
+     * each key, rather than every intermediate update, and the queue holds at most one message
+     * per key.
+     *
+     * @param key         the key the messages are conflated on, which must implement equals
+     *                    and hashCode
+     * @param outConsumer writes the message
+     */
+    public void addConflated(@NotNull Object key, @NotNull WriteMarshallable outConsumer) {
+        if (closed)
+            throw new IllegalStateException("Closed");
+
+        synchronized (conflated) {
+            conflatableAdded++;
+            if (conflate(key, outConsumer))
+                return;
+        }
+
+        // the place is reserved before the message can be conflated with, so a later message for
+        // this key is never folded into one which is then dropped by the overflow policy
+        final Conflated c = new Conflated(key, outConsumer);
+        final long size = sizeOf(c);
+        if (!reserve(size, true))
+            return;
+        synchronized (conflated) {
+            // another message for this key may have been queued while this waited for space
+            if (conflate(key, outConsumer)) {
+                release(size);
+                return;
+            }
+            conflated.put(key, c);
+        }
+        enqueue(c);
+    }
+
+    /**
+     * replaces the message queued for this key, called holding the lock on conflated
+     *
+     * @return false if there is no message queued for this key
+     */
+    private boolean conflate(@NotNull Object key, @NotNull WriteMarshallable outConsumer) {
+        final Conflated queued = conflated.get(key);
+        if (queued == null)
+            return false;
+        conflatedCount++;
+        queued.outConsumer = outConsumer;
+        return true;
+    }
+
+    /**
+     * @return the number of conflated messages added, see {@link #addConflated(Object,
+     * WriteMarshallable)}
+     */
+    public long conflatableAdded() {
+        synchronized (conflated) {
+            return conflatableAdded;
+        }
+    }
+
+    /**
+     * @return the number of messages which were replaced by a later message before they were sent
+     */
+    public long conflated() {
+        synchronized (conflated) {
+            return conflatedCount;
+        }
+    }
+
+    /**
+     * @return the fraction of the conflated messages which were never sent, zero if the client
+     * keeps up and approaching one if it is much slower than the updates
+     */
+    public double conflationRatio() {
+        synchronized (conflated) {
+            return conflatableAdded == 0 ? 0 : (double) conflatedCount / conflatableAdded;
+        }
+    }
+
+    /**
+     * adds a message for a subscription which may be flow controlled. Once the client has
+     * granted credit for the {@code tid}, see {@link #grant(long, long)}, each message uses one
+     * credit, and when there is no credit left, or the client has asked for fewer bytes to be
+     * sent ahead of it than are already, see {@link #creditBytes(long, long)}, the messages are
+     * held until more is granted. Until the first grant, the subscription is not flow
+     * controlled.
+     *
+     * @param tid         the tid of the subscription
+     * @param outConsumer writes the message
+     */
+    public void add(long tid, WriteMarshallable outConsumer) {
+        if (closed)
+            throw new IllegalStateException("Closed");
+
+        // a held message counts towards the bounds, like a queued one. This is reserved outside
+        // the lock, as the BLOCK policy waits for the event loop, which may need the lock to
+        // grant more credit
+        if (!reserve(sizeOf(outConsumer), true))
+            return;
+
+        synchronized (credits) {
+            final Credit credit = credits.get(tid);
+            if (credit != null && (!credit.allows() || !credit.held.isEmpty())) {
+                if (credit.held.isEmpty()) {
+                    if (credit.available > 0)
+                        byteExhaustions++;
+                    else
+                        creditExhaustions++;
+                }
+                credit.held.add(outConsumer);
+                held++;
+                return;
+            }
+            if (credit != null)
+                credit.send(sizeOf(outConsumer));
+        }
+        enqueue(outConsumer);
+    }
+
+    /**
+     * grants more credit to a subscription, this is sent by the client as it consumes the
+     * messages, and makes the subscription flow controlled if it was not
+     *
+     * @param tid      the tid of the subscription
+     * @param messages the number of messages the client is ready to receive
+     */
+    public void grant(long tid, long messages) {
+        synchronized (credits) {
+            creditsGranted += messages;
+            final Credit credit = credits.computeIfAbsent(tid, k -> new Credit());
+            credit.grant(messages);
+            releaseHeld(credit);
+        }
+    }
+
+    /**
+     * limits the bytes sent to a flow controlled subscription, which the client has not yet
+     * granted credit back for, as well as the number of messages. The bytes of each message are
+     * as estimated when it is added, see {@link #sizeOf(WriteMarshallable)}, and are given back
+     * as the client grants credit for the messages, in the order they were sent, so the client
+     * need not know how large the server thinks each message is. A message is sent if there are
+     * fewer bytes than this in flight, so a single message larger than the limit is still sent.
+     * This is ignored if the subscription has had no credit granted.
+     *
+     * @param tid      the tid of the subscription
+     * @param maxBytes the most bytes in flight, or 0 for no limit
+     */
+    public void creditBytes(long tid, long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("maxBytes=" + maxBytes);
+        synchronized (credits) {
+            final Credit credit = credits.get(tid);
+            if (credit == null)
+                return;
+            credit.maxBytes = maxBytes;
+            releaseHeld(credit);
+        }
+    }
+
+    /**
+     * queues the held messages, in order, that the credit now allows. These were counted towards
+     * the bounds when they were held, so are not checked again
+     */
+    private void releaseHeld(@NotNull Credit credit) {
+        assert Thread.holdsLock(credits);
+        while (credit.allows() && !credit.held.isEmpty()) {
+            final WriteMarshallable outConsumer = credit.held.poll();
+            credit.send(sizeOf(outConsumer));
+            enqueue(outConsumer);
+            held--;
+        }
+    }
+
+    /**
+     * stops the flow control of a subscription, and drops any messages held for it, this should
+     * be called when the subscription ends
+     *
+     * @param tid the tid of the subscription
+     */
+    public void removeCredit(long tid) {
+        final Credit credit;
+        synchronized (credits) {
+            credit = credits.remove(tid);
+            if (credit == null)
+                return;
+            held -= credit.held.size();
+        }
+        for (WriteMarshallable outConsumer : credit.held) {
+            release(sizeOf(outConsumer));
+            dropped(outConsumer);
+        }
+    }
+
+    /**
+     * @return the total credit granted by the clients
+     */
+    public long creditsGranted() {
+        synchronized (credits) {
+            return creditsGranted;
+        }
+    }
+
+    /**
+     * @return the number of times a subscription ran out of credit, so its messages were held
+     */
+    public long creditExhaustions() {
+        synchronized (credits) {
+            return creditExhaustions;
+        }
+    }
+
+    /**
+     * @return the number of times a subscription had credit, but as many bytes in flight as it
+     * allows, see {@link #creditBytes(long, long)}, so its messages were held
+     */
+    public long byteExhaustions() {
+        synchronized (credits) {
+            return byteExhaustions;
         }
     }
 
+    /**
+     * @return the number of messages held, as their subscriptions have no credit
+     */
+    public int held() {
+        return held;
+    }
+
     public boolean isClosed() {
         return closed;
     }
@@ -74,5 +866,187 @@ public class WireOutPublisher implements Closeable {
     @Override
     public void close() {
         closed = true;
+        synchronized (space) {
+            space.notifyAll();
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "queued=" + size() +
+                ", queuedBytes=" + queuedBytes() +
+                ", overflowPolicy=" + overflowPolicy +
+                ", blocked=" + blocked +
+                ", droppedNewest=" + droppedNewest +
+                ", droppedOldest=" + droppedOldest +
+                ", closed=" + closed +
+                '}';
+    }
+
+    /**
+     * the lanes messages are queued in
+     */
+    public enum Priority {
+        /**
+         * small urgent messages, for example acknowledgements and order updates
+         */
+        HIGH,
+        /**
+         * the lane used by {@link #add(WriteMarshallable)}
+         */
+        NORMAL,
+        /**
+         * bulk data, for example snapshots and catch up transfers
+         */
+        LOW
+    }
+
+    /**
+     * what happens when a message is added to a full queue
+     */
+    public enum OverflowPolicy {
+        /**
+         * the thread adding the message waits for space, the event loop cannot wait for itself,
+         * so an {@link IllegalStateException} is thrown if it adds to a full queue
+         */
+        BLOCK,
+        /**
+         * the message being added is dropped
+         */
+        DROP_NEWEST,
+        /**
+         * the oldest message waiting is dropped to make room
+         */
+        DROP_OLDEST,
+        /**
+         * the message is dropped, the publisher is closed, and the connection to the slow client
+         * is dropped
+         */
+        DISCONNECT
+    }
+
+    @FunctionalInterface
+    public interface OverflowListener {
+        /**
+         * called each time a message is added to a full queue, this should not block
+         *
+         * @param publisher the publisher of the connection which is not keeping up
+         * @param policy    the policy about to be applied
+         */
+        void onOverflow(@NotNull WireOutPublisher publisher, @NotNull OverflowPolicy policy);
+    }
+
+    /**
+     * the place in the queue of the latest message for a key
+     */
+    private final class Conflated implements WriteMarshallable {
+        @NotNull
+        final Object key;
+        // guarded by conflated
+        @NotNull
+        WriteMarshallable outConsumer;
+
+        Conflated(@NotNull Object key, @NotNull WriteMarshallable outConsumer) {
+            this.key = key;
+            this.outConsumer = outConsumer;
+        }
+
+        @Override
+        public void writeMarshallable(@NotNull WireOut wire) {
+            final WriteMarshallable outConsumer;
+            synchronized (conflated) {
+                // from now on, a message for this key is queued again
+                conflated.remove(key);
+                outConsumer = this.outConsumer;
+            }
+            outConsumer.writeMarshallable(wire);
+        }
+    }
+
+    /**
+     * a message which is told when it is dropped from the queue, rather than written, so it can
+     * release what it holds
+     */
+    interface Droppable extends WriteMarshallable {
+        void onDropped();
+    }
+
+    /**
+     * a message which knows how many bytes it will write, so it is counted towards the byte
+     * bound exactly, rather than as {@code WireOutPublisher.messageSize}
+     */
+    interface Sized extends WriteMarshallable {
+        /**
+         * @return the bytes written, this must not change while the message is queued
+         */
+        long size();
+    }
+
+    /**
+     * a message with the time it was added, only used while the lane latency is recorded
+     */
+    private static final class Timed implements WriteMarshallable {
+        @NotNull
+        final WriteMarshallable outConsumer;
+        final long timeNanos = System.nanoTime();
+
+        Timed(@NotNull WriteMarshallable outConsumer) {
+            this.outConsumer = outConsumer;
+        }
+
+        @Override
+        public void writeMarshallable(@NotNull WireOut wire) {
+            outConsumer.writeMarshallable(wire);
+        }
+    }
+
+    /**
+     * the credit of a subscription, guarded by credits
+     */
+    private static final class Credit {
+        final Queue<WriteMarshallable> held = new ArrayDeque<>();
+        long available;
+        // the most bytes in flight, or 0 if not limited
+        long maxBytes;
+        long bytesInFlight;
+        // the bytes of each message in flight, oldest first, kept in a ring so a message does
+        // not box its size. Only kept while the bytes are limited
+        long[] sizes = new long[16];
+        int first;
+        int count;
+
+        boolean allows() {
+            return available > 0 && (maxBytes == 0 || bytesInFlight < maxBytes);
+        }
+
+        void send(long size) {
+            available--;
+            if (maxBytes == 0)
+                return;
+            if (count == sizes.length) {
+                final long[] grown = new long[sizes.length * 2];
+                for (int i = 0; i < count; i++)
+                    grown[i] = sizes[(first + i) & (sizes.length - 1)];
+                sizes = grown;
+                first = 0;
+            }
+            sizes[(first + count++) & (sizes.length - 1)] = size;
+            bytesInFlight += size;
+        }
+
+        /**
+         * the client has consumed this many more messages, so the bytes of the oldest messages
+         * in flight are given back
+         */
+        void grant(long messages) {
+            available += messages;
+            for (long i = 0; i < messages && count > 0; i++) {
+                bytesInFlight -= sizes[first];
+                first = (first + 1) & (sizes.length - 1);
+                count--;
+            }
+        }
     }
 }
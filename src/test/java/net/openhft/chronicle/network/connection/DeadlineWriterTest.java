@@ -0,0 +1,101 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class DeadlineWriterTest {
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel accepted;
+    private DeadlineWriter writer;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("localhost", 0));
+        client = SocketChannel.open(server.getLocalAddress());
+        client.configureBlocking(false);
+        accepted = server.accept();
+        writer = new DeadlineWriter();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        writer.close();
+        accepted.close();
+        client.close();
+        server.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void testWritesEverything() throws Exception {
+        final int size = 8 << 20;
+        final Thread reader = new Thread(() -> {
+            final ByteBuffer in = ByteBuffer.allocate(64 << 10);
+            long read = 0;
+            try {
+                while (read < size) {
+                    in.clear();
+                    read += accepted.read(in);
+                }
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        reader.start();
+
+        final ByteBuffer[] buffers = {ByteBuffer.allocate(size / 2), ByteBuffer.allocate(size / 2)};
+        Assert.assertTrue(writer.writeFully(client, buffers,
+                System.currentTimeMillis() + 5_000));
+        Assert.assertEquals(0, buffers[0].remaining() + buffers[1].remaining());
+        reader.join();
+    }
+
+    @Test(timeout = 10_000)
+    public void testGivesUpAtTheDeadline() throws IOException {
+        // the server never reads, so the socket buffers fill up
+        final ByteBuffer[] buffers = {ByteBuffer.allocate(64 << 20)};
+
+        final long start = System.currentTimeMillis();
+        Assert.assertFalse(writer.writeFully(client, buffers, start + 200));
+        final long tookMs = System.currentTimeMillis() - start;
+
+        Assert.assertTrue("took " + tookMs + " ms", tookMs >= 200 && tookMs < 5_000);
+        Assert.assertTrue(buffers[0].remaining() > 0);
+        Assert.assertEquals(1, writer.blockedCount());
+        Assert.assertTrue(writer.blockedNanos() > 0);
+    }
+
+    @Test(timeout = 10_000)
+    public void testDeadlineAlreadyPassed() throws IOException {
+        final ByteBuffer[] buffers = {ByteBuffer.allocate(64 << 20)};
+        // whatever fits in the socket buffer is still written, then it gives up at once
+        Assert.assertFalse(writer.writeFully(client, buffers, System.currentTimeMillis() - 1));
+        Assert.assertTrue(buffers[0].position() > 0);
+    }
+}
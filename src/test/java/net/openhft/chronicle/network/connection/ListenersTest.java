@@ -0,0 +1,107 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class ListenersTest {
+
+    @Test
+    public void testEachUpdateIsHandedToEveryListenerInOrder() {
+        final Listeners<String> listeners = new Listeners<>("/map");
+        final List<String> calls = new ArrayList<>();
+        listeners.add(u -> calls.add("a:" + u));
+        listeners.add(u -> calls.add("b:" + u));
+
+        listeners.publish("1");
+        listeners.publish("2");
+
+        Assert.assertEquals(Arrays.asList("a:1", "b:1", "a:2", "b:2"), calls);
+    }
+
+    @Test
+    public void testTheSameUpdateInstanceIsShared() {
+        final Listeners<Object> listeners = new Listeners<>("/map");
+        final Object[] seen = new Object[2];
+        listeners.add(u -> seen[0] = u);
+        listeners.add(u -> seen[1] = u);
+
+        final Object update = new Object();
+        listeners.publish(update);
+
+        Assert.assertSame(update, seen[0]);
+        Assert.assertSame(update, seen[1]);
+    }
+
+    @Test
+    public void testAFailingListenerDoesNotStopTheOthers() {
+        final Listeners<String> listeners = new Listeners<>("/map");
+        final List<String> calls = new ArrayList<>();
+        listeners.add(u -> {
+            throw new IllegalStateException("failed");
+        });
+        listeners.add(calls::add);
+
+        listeners.publish("1");
+
+        Assert.assertEquals(Arrays.asList("1"), calls);
+    }
+
+    @Test
+    public void testRemove() {
+        final Listeners<String> listeners = new Listeners<>("/map");
+        final List<String> calls = new ArrayList<>();
+        final Consumer<String> a = u -> calls.add("a:" + u);
+        final Consumer<String> b = u -> calls.add("b:" + u);
+        listeners.add(a);
+        listeners.add(b);
+
+        Assert.assertTrue(listeners.remove(a));
+        Assert.assertFalse(listeners.remove(a));
+        Assert.assertEquals(1, listeners.size());
+
+        listeners.publish("1");
+        Assert.assertEquals(Arrays.asList("b:1"), calls);
+
+        Assert.assertTrue(listeners.remove(b));
+        Assert.assertTrue(listeners.isEmpty());
+    }
+
+    @Test
+    public void testAListenerMayRemoveItselfWhileBeingCalled() {
+        final Listeners<String> listeners = new Listeners<>("/map");
+        final List<String> calls = new ArrayList<>();
+        final List<Consumer<String>> self = new ArrayList<>();
+        self.add(u -> {
+            calls.add("once:" + u);
+            listeners.remove(self.get(0));
+        });
+        listeners.add(self.get(0));
+        listeners.add(u -> calls.add("always:" + u));
+
+        listeners.publish("1");
+        listeners.publish("2");
+
+        Assert.assertEquals(Arrays.asList("once:1", "always:1", "always:2"), calls);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.network.connection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+public class ReceiveBufferTest {
+
+    private static byte[] data(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) i;
+        return data;
+    }
+
+    /**
+     * fills the destination, as the reader thread does
+     */
+    private static void fill(ReceiveBuffer receiveBuffer,
+                             ReadableByteChannel channel,
+                             ByteBuffer destination) throws IOException {
+        while (destination.remaining() > 0) {
+            if (receiveBuffer.drainTo(destination))
+                continue;
+            Assert.assertTrue(receiveBuffer.readFrom(channel, destination) > 0);
+        }
+    }
+
+    @Test
+    public void testSmallFramesFromOneRead() throws IOException {
+        final byte[] data = data(800);
+        final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(data));
+        final ReceiveBuffer receiveBuffer = new ReceiveBuffer(1024);
+
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer frame = ByteBuffer.allocate(8);
+            fill(receiveBuffer, channel, frame);
+            for (int j = 0; j < 8; j++)
+                Assert.assertEquals(data[i * 8 + j], frame.get(j));
+        }
+        Assert.assertEquals(1, receiveBuffer.socketReads());
+    }
+
+    @Test
+    public void testFramesSpanningReads() throws IOException {
+        final byte[] data = data(30);
+        final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(data));
+        final ReceiveBuffer receiveBuffer = new ReceiveBuffer(8);
+
+        final ByteBuffer all = ByteBuffer.allocate(30);
+        for (int i = 0; i < 6; i++) {
+            final ByteBuffer frame = ByteBuffer.allocate(5);
+            fill(receiveBuffer, channel, frame);
+            frame.flip();
+            all.put(frame);
+        }
+        Assert.assertArrayEquals(data, all.array());
+        Assert.assertEquals(4, receiveBuffer.socketReads());
+    }
+
+    @Test
+    public void testLargeMessageIsReadStraightIntoItsDestination() throws IOException {
+        final byte[] data = data(64);
+        final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(data));
+        final ReceiveBuffer receiveBuffer = new ReceiveBuffer(16);
+
+        final ByteBuffer message = ByteBuffer.allocate(64);
+        Assert.assertEquals(64, receiveBuffer.readFrom(channel, message));
+        Assert.assertArrayEquals(data, message.array());
+        // nothing was buffered
+        Assert.assertFalse(receiveBuffer.drainTo(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    public void testClearDiscardsTheBytesReceived() throws IOException {
+        final ReadableByteChannel channel = Channels.newChannel(
+                new ByteArrayInputStream(data(10)));
+        final ReceiveBuffer receiveBuffer = new ReceiveBuffer(16);
+
+        fill(receiveBuffer, channel, ByteBuffer.allocate(4));
+        receiveBuffer.clear();
+        Assert.assertFalse(receiveBuffer.drainTo(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    public void testEndOfStream() throws IOException {
+        final ReadableByteChannel channel = Channels.newChannel(
+                new ByteArrayInputStream(new byte[0]));
+        final ReceiveBuffer receiveBuffer = new ReceiveBuffer(16);
+
+        Assert.assertEquals(-1, receiveBuffer.readFrom(channel, ByteBuffer.allocate(4)));
+        Assert.assertFalse(receiveBuffer.drainTo(ByteBuffer.allocate(1)));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.openhft.chronicle.network.connection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void testDelayDoublesUpToTheMax() {
+        final ReconnectBackoff backoff = new ReconnectBackoff(50, 1_000);
+        long ceiling = 50;
+        for (int i = 0; i < 20; i++) {
+            final long delay = backoff.nextDelayMs();
+            // drawn from the upper half of the ceiling
+            Assert.assertTrue("delay=" + delay + ", ceiling=" + ceiling,
+                    delay >= ceiling / 2 && delay <= ceiling);
+            ceiling = Math.min(1_000, ceiling * 2);
+        }
+        Assert.assertEquals(20, backoff.failures());
+    }
+
+    @Test
+    public void testManyFailuresDoNotOverflow() {
+        final ReconnectBackoff backoff = new ReconnectBackoff(1, 5_000);
+        for (int i = 0; i < 100; i++) {
+            final long delay = backoff.nextDelayMs();
+            Assert.assertTrue("delay=" + delay, delay >= 0 && delay <= 5_000);
+        }
+        Assert.assertTrue(backoff.nextDelayMs() >= 2_500);
+    }
+
+    @Test
+    public void testReset() {
+        final ReconnectBackoff backoff = new ReconnectBackoff(50, 5_000);
+        for (int i = 0; i < 10; i++)
+            backoff.nextDelayMs();
+
+        backoff.reset();
+        Assert.assertEquals(0, backoff.failures());
+        Assert.assertTrue(backoff.nextDelayMs() <= 50);
+    }
+
+    @Test
+    public void testMinEqualToMax() {
+        final ReconnectBackoff backoff = new ReconnectBackoff(100, 100);
+        for (int i = 0; i < 10; i++) {
+            final long delay = backoff.nextDelayMs();
+            Assert.assertTrue("delay=" + delay, delay >= 50 && delay <= 100);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxBelowMin() {
+        new ReconnectBackoff(100, 50);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMinMustBePositive() {
+        new ReconnectBackoff(0, 50);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.connection.BroadcastGroup;
+import net.openhft.chronicle.network.connection.WireOutPublisher;
+import net.openhft.chronicle.network.connection.WireOutPublisher.OverflowPolicy;
+import net.openhft.chronicle.wire.BinaryWire;
+import net.openhft.chronicle.wire.TextWire;
+import net.openhft.chronicle.wire.Wire;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.function.Function;
+
+public class BroadcastGroupTest {
+
+    private static void writeAll(WireOutPublisher publisher, Wire out) {
+        publisher.applyAction(out, () -> {
+        });
+    }
+
+    /**
+     * @return the tid of the next message, checking its data
+     */
+    private static long readTid(Wire in, String expected) {
+        final long[] tid = {Long.MIN_VALUE};
+        final String[] text = {null};
+        // the meta data and the data are two documents
+        in.readDocument(m -> tid[0] = m.read(() -> "tid").int64(),
+                d -> text[0] = d.read(() -> "text").text());
+        in.readDocument(m -> tid[0] = m.read(() -> "tid").int64(),
+                d -> text[0] = d.read(() -> "text").text());
+        Assert.assertEquals(expected, text[0]);
+        return tid[0];
+    }
+
+    private static void testEachMemberGetsItsOwnTid(Function<Bytes, Wire> wire) {
+        final BroadcastGroup group = new BroadcastGroup(wire);
+        final WireOutPublisher a = new WireOutPublisher();
+        final WireOutPublisher b = new WireOutPublisher();
+        group.join(a, 5);
+        group.join(b, 1234567890123L);
+
+        group.broadcast(w -> w.write(() -> "text").text("hello"));
+
+        final Wire outA = wire.apply(Bytes.elasticByteBuffer());
+        final Wire outB = wire.apply(Bytes.elasticByteBuffer());
+        writeAll(a, outA);
+        writeAll(b, outB);
+
+        Assert.assertEquals(5, readTid(outA, "hello"));
+        Assert.assertEquals(1234567890123L, readTid(outB, "hello"));
+        Assert.assertEquals(1, group.broadcasts());
+        Assert.assertEquals(2, group.sends());
+    }
+
+    @Test
+    public void testEachMemberGetsItsOwnTidText() {
+        testEachMemberGetsItsOwnTid(TextWire::new);
+    }
+
+    @Test
+    public void testEachMemberGetsItsOwnTidBinary() {
+        testEachMemberGetsItsOwnTid(BinaryWire::new);
+    }
+
+    @Test
+    public void testTheBufferIsReusedOnceEveryMemberHasWrittenIt() {
+        final BroadcastGroup group = new BroadcastGroup(TextWire::new);
+        final WireOutPublisher a = new WireOutPublisher();
+        final WireOutPublisher b = new WireOutPublisher();
+        group.join(a, 1);
+        group.join(b, 2);
+
+        group.broadcast(w -> w.write(() -> "text").text("hello"));
+        Assert.assertEquals(0, group.pooled());
+
+        writeAll(a, new TextWire(Bytes.elasticByteBuffer()));
+        Assert.assertEquals(0, group.pooled());
+
+        writeAll(b, new TextWire(Bytes.elasticByteBuffer()));
+        Assert.assertEquals(1, group.pooled());
+
+        // the pooled buffer is used by the next broadcast
+        group.broadcast(w -> w.write(() -> "text").text("again"));
+        Assert.assertEquals(0, group.pooled());
+    }
+
+    @Test
+    public void testAFullMemberIsSkippedAndReleasesTheBuffer() {
+        final BroadcastGroup group = new BroadcastGroup(TextWire::new);
+        // the BLOCK policy is not applied, a full member is never waited for
+        final WireOutPublisher full = new WireOutPublisher(1, Long.MAX_VALUE, OverflowPolicy.BLOCK);
+        final WireOutPublisher ok = new WireOutPublisher();
+        group.join(full, 1);
+        group.join(ok, 2);
+        full.add(w -> w.writeDocument(false, d -> d.write(() -> "text").text("filler")));
+
+        group.broadcast(w -> w.write(() -> "text").text("hello"));
+
+        Assert.assertEquals(1, group.dropped());
+        Assert.assertEquals(1, group.sends());
+
+        final Wire out = new TextWire(Bytes.elasticByteBuffer());
+        writeAll(ok, out);
+        Assert.assertEquals(2, readTid(out, "hello"));
+        // released by the member which dropped it, and the member which wrote it
+        Assert.assertEquals(1, group.pooled());
+    }
+
+    @Test
+    public void testAMemberWhichIsClosedIsRemoved() {
+        final BroadcastGroup group = new BroadcastGroup(TextWire::new);
+        final WireOutPublisher closed = new WireOutPublisher();
+        final WireOutPublisher ok = new WireOutPublisher();
+        group.join(closed, 1);
+        group.join(ok, 2);
+        closed.close();
+
+        group.broadcast(w -> w.write(() -> "text").text("hello"));
+
+        Assert.assertEquals(1, group.members());
+        writeAll(ok, new TextWire(Bytes.elasticByteBuffer()));
+        Assert.assertEquals(1, group.pooled());
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.AcceptorEventHandler;
+import net.openhft.chronicle.network.TCPRegistry;
+import net.openhft.chronicle.network.VanillaSessionDetails;
+import net.openhft.chronicle.network.WireTcpHandler;
+import net.openhft.chronicle.network.api.session.SessionDetailsProvider;
+import net.openhft.chronicle.network.connection.CoreFields;
+import net.openhft.chronicle.network.connection.TcpChannelHub;
+import net.openhft.chronicle.threads.EventGroup;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.WireType;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static net.openhft.chronicle.network.connection.SocketAddressSupplier.uri;
+
+public class ClientBatchTest {
+
+    private static final String DESC = "host.port";
+    private static final String CSP = "/batch";
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private EventGroup eg;
+    private TcpChannelHub hub;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        TCPRegistry.createServerSocketChannelFor(DESC);
+        eg = new EventGroup(true);
+        eg.start();
+
+        AcceptorEventHandler eah = new AcceptorEventHandler(DESC,
+                () -> new CountingEchoHandler(WireType.TEXT, requests), VanillaSessionDetails::new, 0, 0);
+        eg.addHandler(eah);
+        SocketChannel sc = TCPRegistry.createSocketChannel(DESC);
+        sc.configureBlocking(false);
+
+        hub = new TcpChannelHub(null, eg, WireType.TEXT, "", uri(DESC), false);
+        Assert.assertTrue(hub.awaitConnected(hub.timeoutMs));
+    }
+
+    @After
+    public void tearDown() {
+        eg.stop();
+        hub.close();
+        TcpChannelHub.closeAllHubs();
+        TCPRegistry.reset();
+    }
+
+    private void request(String payload) {
+        hub.writeMetaDataStartTime(System.currentTimeMillis(), hub.outWire(), CSP, 0);
+        hub.outWire().writeDocument(false, w -> w.write(() -> "payload").text(payload));
+        hub.writeSocket(hub.outWire());
+    }
+
+    private String reply(long tid) {
+        final Wire reply = hub.proxyReply(TimeUnit.SECONDS.toMillis(1), tid);
+        final String[] text = {null};
+        reply.readDocument(null, data -> text[0] = data.read(() -> "payloadResponse").text());
+        return text[0];
+    }
+
+    @Test
+    public void testTheRepliesAreHarvestedAfterTheBatch() throws InterruptedException {
+        final long[] tids = hub.batch(() -> {
+            Assert.assertTrue(hub.isBatching());
+            for (int i = 0; i < 10; i++)
+                request("m" + i);
+        });
+        Assert.assertFalse(hub.isBatching());
+        Assert.assertEquals(10, tids.length);
+
+        // the replies arrive before they are harvested, and are held for their tids
+        Thread.sleep(100);
+        for (int i = tids.length - 1; i >= 0; i--)
+            Assert.assertEquals("m" + i, reply(tids[i]));
+        Assert.assertEquals(10, requests.get());
+    }
+
+    @Test
+    public void testBatchesCanNotBeNested() {
+        try {
+            hub.batch(() -> hub.batch(() -> request("nested")));
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        Assert.assertFalse(hub.isBatching());
+    }
+
+    @Test
+    public void testAFailedBatchIsNotSent() {
+        try {
+            hub.batch(() -> {
+                request("failed");
+                throw new IllegalArgumentException();
+            });
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        // the requests are in order, so the failed one would have been processed first
+        final long[] tids = hub.batch(() -> request("sent"));
+        Assert.assertEquals("sent", reply(tids[0]));
+        Assert.assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testABatchCanNotMakeMoreRequestsThanCanBeHeld() {
+        // as read by the hub
+        final int maxRequests = Integer.getInteger("tcp.client.pending.replies", 64);
+        try {
+            hub.batch(() -> {
+                for (int i = 0; i <= maxRequests; i++)
+                    request("m" + i);
+            });
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        // the batch was not sent, and the next one is
+        final long[] tids = hub.batch(() -> request("sent"));
+        Assert.assertEquals("sent", reply(tids[0]));
+        Assert.assertEquals(1, requests.get());
+    }
+
+    /**
+     * echoes the payload of each request, and counts the requests
+     */
+    static class CountingEchoHandler extends WireTcpHandler {
+        private final AtomicInteger requests;
+        private long tid;
+
+        CountingEchoHandler(@NotNull Function<Bytes, Wire> bytesToWire,
+                            @NotNull AtomicInteger requests) {
+            super(bytesToWire);
+            this.requests = requests;
+        }
+
+        @Override
+        protected void process(@NotNull WireIn in,
+                               @NotNull WireOut out,
+                               @NotNull SessionDetailsProvider sd) {
+            in.readDocument(m -> {
+                CoreFields.csp(m);
+                tid = CoreFields.tid(m);
+            }, d -> {
+                requests.incrementAndGet();
+                out.writeDocument(true, meta -> meta.write(CoreFields.tid).int64(tid));
+                out.writeDocument(false, data -> data.write(() -> "payloadResponse")
+                        .text(d.read(() -> "payload").text()));
+            });
+        }
+    }
+}
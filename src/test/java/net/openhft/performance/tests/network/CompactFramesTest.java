@@ -0,0 +1,142 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.WireTcpHandler;
+import net.openhft.chronicle.network.api.session.SessionDetailsProvider;
+import net.openhft.chronicle.network.connection.CompactFrames;
+import net.openhft.chronicle.network.connection.CoreFields;
+import net.openhft.chronicle.network.connection.EventId;
+import net.openhft.chronicle.wire.TextWire;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.Wires;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class CompactFramesTest {
+
+    @Test
+    public void testRoundTrip() {
+        final Bytes bytes = Bytes.elasticByteBuffer();
+        CompactFrames.writeMetaData(bytes, 123456789L, 42L);
+
+        final int header = bytes.readInt();
+        Assert.assertFalse(Wires.isData(header));
+        Assert.assertEquals(CompactFrames.LENGTH, Wires.lengthOf(header));
+
+        final long offset = bytes.readPosition();
+        Assert.assertTrue(CompactFrames.isCompact(bytes, offset, Wires.lengthOf(header)));
+        Assert.assertEquals(123456789L, CompactFrames.tid(bytes, offset));
+        Assert.assertEquals(42L, CompactFrames.cid(bytes, offset));
+    }
+
+    @Test
+    public void testWireMetaDataOfTheSameLengthIsNotCompact() {
+        final Bytes bytes = Bytes.elasticByteBuffer();
+        // a text wire meta data which happens to be as long as a compact one
+        final String metaData = "tid: 123456789012";
+        Assert.assertEquals(CompactFrames.LENGTH, metaData.length());
+        bytes.writeInt(Wires.META_DATA | metaData.length());
+        bytes.write(metaData.getBytes(StandardCharsets.ISO_8859_1));
+
+        final int header = bytes.readInt();
+        Assert.assertFalse(Wires.isData(header));
+        Assert.assertFalse(CompactFrames.isCompact(bytes, bytes.readPosition(),
+                Wires.lengthOf(header)));
+    }
+
+    @Test
+    public void testTheHandlerReadsCompactMetaDataOnceAccepted() {
+        final CompactHandler handler = new CompactHandler();
+        final Wire in = new TextWire(Bytes.elasticByteBuffer());
+        CompactFrames.writeMetaData(in.bytes(), 123L, 42L);
+
+        // not read until the handler has agreed to compact frames
+        Assert.assertFalse(handler.readCompactMetaData(in));
+        Assert.assertEquals(0, in.bytes().readPosition());
+
+        final Wire out = new TextWire(Bytes.elasticByteBuffer());
+        handler.acceptCompactFrames(out);
+        final long[] tid = {-1};
+        final boolean[] accepted = {false};
+        out.readDocument(m -> tid[0] = m.read(() -> "tid").int64(), null);
+        out.readDocument(null, d -> accepted[0] = d.read(() -> "compactFrames").bool());
+        Assert.assertEquals(0, tid[0]);
+        Assert.assertTrue(accepted[0]);
+
+        Assert.assertTrue(handler.readCompactMetaData(in));
+        Assert.assertEquals(123L, handler.compactTid());
+        Assert.assertEquals(42L, handler.compactCid());
+        Assert.assertEquals(0, in.bytes().readRemaining());
+    }
+
+    @Test
+    public void testTheHandlerLeavesWireMetaDataToBeRead() {
+        final CompactHandler handler = new CompactHandler();
+        handler.acceptCompactFrames(new TextWire(Bytes.elasticByteBuffer()));
+
+        final Wire in = new TextWire(Bytes.elasticByteBuffer());
+        in.writeDocument(true, w -> w.writeEventName(CoreFields.tid).int64(123L));
+        in.writeDocument(false, w -> w.writeEventName(EventId.heartbeat).int64(1));
+
+        Assert.assertFalse(handler.readCompactMetaData(in));
+        final long[] tid = {-1};
+        in.readDocument(m -> tid[0] = m.read(() -> "tid").int64(), null);
+        Assert.assertEquals(123L, tid[0]);
+
+        // nor is a data document read
+        Assert.assertFalse(handler.readCompactMetaData(in));
+    }
+
+    static class CompactHandler extends WireTcpHandler {
+        CompactHandler() {
+            super(TextWire::new);
+        }
+
+        @Override
+        public void acceptCompactFrames(@NotNull WireOut out) {
+            super.acceptCompactFrames(out);
+        }
+
+        @Override
+        public boolean readCompactMetaData(@NotNull WireIn in) {
+            return super.readCompactMetaData(in);
+        }
+
+        @Override
+        public long compactTid() {
+            return super.compactTid();
+        }
+
+        @Override
+        public long compactCid() {
+            return super.compactCid();
+        }
+
+        @Override
+        protected void process(@NotNull WireIn in,
+                               @NotNull WireOut out,
+                               @NotNull SessionDetailsProvider sessionDetails) {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.connection.WireOutPublisher;
+import net.openhft.chronicle.wire.TextWire;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WriteMarshallable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ConflationTest {
+
+    private final List<String> written = new ArrayList<>();
+    private final Wire wire = new TextWire(Bytes.elasticByteBuffer());
+
+    /**
+     * a message which records that it was written, rather than writing to the wire
+     */
+    private WriteMarshallable message(String name) {
+        return w -> written.add(name);
+    }
+
+    private void writeAll(WireOutPublisher publisher) {
+        publisher.applyAction(wire, () -> {
+        });
+    }
+
+    @Test
+    public void testLatestValueTakesThePlaceOfTheQueuedMessage() {
+        final WireOutPublisher publisher = new WireOutPublisher();
+        publisher.addConflated("EURUSD", message("EURUSD=1"));
+        publisher.addConflated("GBPUSD", message("GBPUSD=1"));
+        publisher.addConflated("EURUSD", message("EURUSD=2"));
+        publisher.addConflated("EURUSD", message("EURUSD=3"));
+
+        writeAll(publisher);
+
+        Assert.assertEquals(Arrays.asList("EURUSD=3", "GBPUSD=1"), written);
+        Assert.assertEquals(4, publisher.conflatableAdded());
+        Assert.assertEquals(2, publisher.conflated());
+        Assert.assertEquals(0.5, publisher.conflationRatio(), 0.0);
+    }
+
+    @Test
+    public void testOrderWithOtherMessagesIsKept() {
+        final WireOutPublisher publisher = new WireOutPublisher();
+        publisher.add(message("a"));
+        publisher.addConflated("EURUSD", message("EURUSD=1"));
+        publisher.add(message("b"));
+        publisher.addConflated("EURUSD", message("EURUSD=2"));
+
+        writeAll(publisher);
+
+        Assert.assertEquals(Arrays.asList("a", "EURUSD=2", "b"), written);
+    }
+
+    @Test
+    public void testAMessageAddedAfterTheQueuedOneIsWrittenIsQueuedAgain() {
+        final WireOutPublisher publisher = new WireOutPublisher();
+        publisher.addConflated("EURUSD", message("EURUSD=1"));
+        writeAll(publisher);
+        publisher.addConflated("EURUSD", message("EURUSD=2"));
+        writeAll(publisher);
+
+        Assert.assertEquals(Arrays.asList("EURUSD=1", "EURUSD=2"), written);
+        Assert.assertEquals(0, publisher.conflated());
+    }
+
+    @Test
+    public void testAMessageDroppedByTheOverflowPolicyIsNotConflatedWith() {
+        final WireOutPublisher publisher = new WireOutPublisher(1, Long.MAX_VALUE,
+                WireOutPublisher.OverflowPolicy.DROP_NEWEST);
+        publisher.add(message("a"));
+        publisher.addConflated("EURUSD", message("EURUSD=1"));
+        publisher.addConflated("EURUSD", message("EURUSD=2"));
+
+        // neither found a place, so the second was not folded into the first
+        Assert.assertEquals(2, publisher.droppedNewest());
+        Assert.assertEquals(0, publisher.conflated());
+
+        writeAll(publisher);
+        publisher.addConflated("EURUSD", message("EURUSD=3"));
+        writeAll(publisher);
+
+        Assert.assertEquals(Arrays.asList("a", "EURUSD=3"), written);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.CspInterner;
+import net.openhft.chronicle.network.WireTcpHandler;
+import net.openhft.chronicle.network.api.session.SessionDetailsProvider;
+import net.openhft.chronicle.wire.TextWire;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CspInternerTest {
+
+    @Test
+    public void testRoundTrip() {
+        final CspInterner interner = new CspInterner(1);
+        final long mapCid = interner.intern("/map");
+        final long queueCid = interner.intern("/queue");
+
+        Assert.assertNotEquals(mapCid, queueCid);
+        Assert.assertEquals("/map", interner.csp(mapCid));
+        Assert.assertEquals("/queue", interner.csp(queueCid));
+        Assert.assertEquals(2, interner.size());
+    }
+
+    @Test
+    public void testInternIsIdempotent() {
+        final CspInterner interner = new CspInterner(1);
+        final long cid = interner.intern("/map");
+
+        // an equal csp, in a different CharSequence, is given the same cid
+        Assert.assertEquals(cid, interner.intern(new StringBuilder("/map")));
+        Assert.assertEquals(1, interner.size());
+    }
+
+    @Test
+    public void testFirstCidOffset() {
+        final CspInterner interner = new CspInterner(1000);
+
+        Assert.assertEquals(1000, interner.intern("/map"));
+        Assert.assertEquals(1001, interner.intern("/queue"));
+
+        // cids outside the range this interner assigned are not found
+        Assert.assertNull(interner.csp(999));
+        Assert.assertNull(interner.csp(1002));
+        Assert.assertNull(interner.csp(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFirstCidMustBePositive() {
+        new CspInterner(0);
+    }
+
+    @Test
+    public void testTheLeastRecentlyUsedCspIsEvicted() {
+        final CspInterner interner = new CspInterner(1, 2);
+        final long mapCid = interner.intern("/map");
+        final long queueCid = interner.intern("/queue");
+        // a request by cid is a use of the csp
+        Assert.assertEquals("/map", interner.csp(mapCid));
+
+        final long setCid = interner.intern("/set");
+        Assert.assertEquals(2, interner.size());
+        Assert.assertEquals(queueCid, interner.pollEvicted());
+        Assert.assertEquals(0, interner.pollEvicted());
+
+        // the evicted cid is still resolved for the requests already sent with it
+        Assert.assertEquals("/queue", interner.csp(queueCid));
+
+        // interning it again gives it a new cid, a cid is never reused
+        final long queueCid2 = interner.intern("/queue");
+        Assert.assertNotEquals(queueCid, queueCid2);
+        Assert.assertNotEquals(setCid, queueCid2);
+        Assert.assertEquals(mapCid, interner.pollEvicted());
+    }
+
+    @Test
+    public void testAnEvictedCidIsForgottenEventually() {
+        final CspInterner interner = new CspInterner(1, 2);
+        final long first = interner.intern("/a");
+        for (int i = 0; i < 10; i++)
+            interner.intern("/b" + i);
+
+        Assert.assertEquals(2, interner.size());
+        Assert.assertNull(interner.csp(first));
+    }
+
+    @Test
+    public void testTheHandlerWritesTheCidAndTheEvictions() {
+        final InterningHandler handler = new InterningHandler();
+        final Wire out = new TextWire(Bytes.elasticByteBuffer());
+
+        // not supported until the handler has an interner
+        handler.writeInternedCid(out, "/map");
+        Assert.assertEquals(0, out.bytes().readRemaining());
+
+        handler.cspInterner(new CspInterner(100, 1));
+        handler.writeInternedCid(out, "/map");
+        Assert.assertEquals(100, out.read(() -> "cid").int64());
+        Assert.assertEquals("/map", handler.internedCsp(100));
+
+        out.bytes().clear();
+        handler.writeInternedCid(out, "/queue");
+        Assert.assertEquals(101, out.read(() -> "cid").int64());
+        Assert.assertEquals(100, out.read(() -> "evictedCid").int64());
+    }
+
+    static class InterningHandler extends WireTcpHandler {
+        InterningHandler() {
+            super(TextWire::new);
+        }
+
+        @Override
+        public void writeInternedCid(@NotNull WireOut metaData, @NotNull CharSequence csp) {
+            super.writeInternedCid(metaData, csp);
+        }
+
+        @Override
+        public String internedCsp(long cid) {
+            return super.internedCsp(cid);
+        }
+
+        @Override
+        protected void process(@NotNull WireIn in,
+                               @NotNull WireOut out,
+                               @NotNull SessionDetailsProvider sessionDetails) {
+        }
+    }
+}
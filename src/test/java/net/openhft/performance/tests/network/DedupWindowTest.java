@@ -0,0 +1,185 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.DedupWindow;
+import net.openhft.chronicle.network.WireTcpHandler;
+import net.openhft.chronicle.network.api.session.SessionDetailsProvider;
+import net.openhft.chronicle.wire.TextWire;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DedupWindowTest {
+
+    private static Bytes reply(String text) {
+        final Bytes bytes = Bytes.elasticByteBuffer();
+        bytes.append(text);
+        return bytes;
+    }
+
+    @Test
+    public void testARecordedReplyIsReplayed() {
+        final DedupWindow window = new DedupWindow(10, 60_000);
+        final Bytes out = Bytes.elasticByteBuffer();
+        Assert.assertFalse(window.replay(1, out));
+
+        final Bytes written = reply("meta-reply");
+        window.record(1, written, 5);
+
+        Assert.assertTrue(window.replay(1, out));
+        Assert.assertEquals("reply", out.toString());
+        Assert.assertEquals(1, window.replays());
+    }
+
+    @Test
+    public void testAnAbandonedKeyIsProcessedAgain() {
+        final DedupWindow window = new DedupWindow(10, 60_000);
+        final Bytes out = Bytes.elasticByteBuffer();
+        Assert.assertFalse(window.replay(1, out));
+        window.abandon(1);
+        Assert.assertFalse(window.replay(1, out));
+        Assert.assertEquals(0, window.replays());
+    }
+
+    @Test
+    public void testTheOldestReplyIsEvictedWhenFull() {
+        final DedupWindow window = new DedupWindow(2, 60_000);
+        final Bytes out = Bytes.elasticByteBuffer();
+        for (long key = 1; key <= 3; key++) {
+            Assert.assertFalse(window.replay(key, out));
+            window.record(key, reply("r" + key), 0);
+        }
+        Assert.assertEquals(2, window.size());
+
+        Assert.assertFalse(window.replay(1, out));
+        window.abandon(1);
+        Assert.assertTrue(window.replay(3, out));
+        Assert.assertEquals("r3", out.toString());
+    }
+
+    @Test
+    public void testAReplyIsEvictedAfterTheWindow() throws InterruptedException {
+        final DedupWindow window = new DedupWindow(10, 20);
+        final Bytes out = Bytes.elasticByteBuffer();
+        Assert.assertFalse(window.replay(1, out));
+        window.record(1, reply("r1"), 0);
+
+        Thread.sleep(50);
+        Assert.assertFalse(window.replay(1, out));
+        Assert.assertEquals(1, window.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTheSameThreadCannotWaitForItself() {
+        final DedupWindow window = new DedupWindow(10, 60_000);
+        final Bytes out = Bytes.elasticByteBuffer();
+        window.replay(1, out);
+        window.replay(1, out);
+    }
+
+    @Test
+    public void testASecondAttemptWaitsForTheFirst() throws InterruptedException {
+        final DedupWindow window = new DedupWindow(10, 60_000);
+        Assert.assertFalse(window.replay(1, Bytes.elasticByteBuffer()));
+
+        final Bytes out = Bytes.elasticByteBuffer();
+        final CountDownLatch replayed = new CountDownLatch(1);
+        final Thread second = new Thread(() -> {
+            if (window.replay(1, out))
+                replayed.countDown();
+        });
+        second.start();
+
+        Assert.assertFalse(replayed.await(50, TimeUnit.MILLISECONDS));
+        window.record(1, reply("r1"), 0);
+        Assert.assertTrue(replayed.await(5, TimeUnit.SECONDS));
+        second.join();
+        Assert.assertEquals("r1", out.toString());
+    }
+
+    @Test
+    public void testTheHandlerProcessesARequestOnce() {
+        final OnceHandler handler = new OnceHandler();
+        handler.dedupWindow(new DedupWindow(10, 60_000));
+        final AtomicInteger processed = new AtomicInteger();
+
+        final Wire first = new TextWire(Bytes.elasticByteBuffer());
+        handler.processOnce(42, first, () -> {
+            processed.incrementAndGet();
+            first.writeDocument(false, w -> w.write(() -> "reply").text("done"));
+        });
+
+        // resent after a failover, on another connection
+        final Wire second = new TextWire(Bytes.elasticByteBuffer());
+        handler.processOnce(42, second, () -> {
+            processed.incrementAndGet();
+            second.writeDocument(false, w -> w.write(() -> "reply").text("again"));
+        });
+
+        Assert.assertEquals(1, processed.get());
+        Assert.assertEquals(first.bytes().toString(), second.bytes().toString());
+
+        // a request without a key is always processed
+        handler.processOnce(0, second, processed::incrementAndGet);
+        Assert.assertEquals(2, processed.get());
+    }
+
+    @Test
+    public void testTheHandlerAbandonsAFailedRequest() {
+        final OnceHandler handler = new OnceHandler();
+        handler.dedupWindow(new DedupWindow(10, 60_000));
+        final Wire out = new TextWire(Bytes.elasticByteBuffer());
+        try {
+            handler.processOnce(42, out, () -> {
+                throw new IllegalStateException("failed");
+            });
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            // the next attempt processes it
+        }
+
+        final AtomicInteger processed = new AtomicInteger();
+        handler.processOnce(42, out, processed::incrementAndGet);
+        Assert.assertEquals(1, processed.get());
+    }
+
+    static class OnceHandler extends WireTcpHandler {
+        OnceHandler() {
+            super(TextWire::new);
+        }
+
+        @Override
+        public void processOnce(long idempotencyKey, @NotNull WireOut out, @NotNull Runnable request) {
+            super.processOnce(idempotencyKey, out, request);
+        }
+
+        @Override
+        protected void process(@NotNull WireIn in,
+                               @NotNull WireOut out,
+                               @NotNull SessionDetailsProvider sessionDetails) {
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.WireTcpHandler;
+import net.openhft.chronicle.network.api.session.SessionDetailsProvider;
+import net.openhft.chronicle.network.connection.EventId;
+import net.openhft.chronicle.network.connection.WireOutPublisher;
+import net.openhft.chronicle.network.connection.WireOutPublisher.OverflowPolicy;
+import net.openhft.chronicle.wire.TextWire;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.WriteMarshallable;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class FlowControlTest {
+
+    private static final long TID = 7;
+
+    private final List<String> written = new ArrayList<>();
+    private final Wire wire = new TextWire(Bytes.elasticByteBuffer());
+
+    /**
+     * a message which records that it was written, rather than writing to the wire
+     */
+    private WriteMarshallable message(String name) {
+        return w -> written.add(name);
+    }
+
+    private void writeAll(WireOutPublisher publisher) {
+        wire.bytes().clear();
+        publisher.applyAction(wire, () -> {
+        });
+    }
+
+    @Test
+    public void testNotFlowControlledUntilTheFirstGrant() {
+        final WireOutPublisher publisher = new WireOutPublisher();
+        for (int i = 0; i < 5; i++)
+            publisher.add(TID, message("m" + i));
+
+        writeAll(publisher);
+        Assert.assertEquals(5, written.size());
+        Assert.assertEquals(0, publisher.held());
+        Assert.assertEquals(0, publisher.creditExhaustions());
+    }
+
+    @Test
+    public void testHeldMessagesAreReleasedInOrderByTheNextGrant() {
+        final WireOutPublisher publisher = new WireOutPublisher();
+        publisher.grant(TID, 2);
+        for (int i = 0; i < 5; i++)
+            publisher.add(TID, message("m" + i));
+
+        Assert.assertEquals(3, publisher.held());
+        Assert.assertEquals(1, publisher.creditExhaustions());
+        writeAll(publisher);
+        Assert.assertEquals(Arrays.asList("m0", "m1"), written);
+
+        // another subscription is not held up
+        publisher.add(TID + 1, message("other"));
+        publisher.grant(TID, 2);
+        Assert.assertEquals(1, publisher.held());
+        writeAll(publisher);
+        Assert.assertEquals(Arrays.asList("m0", "m1", "other", "m2", "m3"), written);
+
+        publisher.grant(TID, 10);
+        writeAll(publisher);
+        Assert.assertEquals(Arrays.asList("m0", "m1", "other", "m2", "m3", "m4"), written);
+        Assert.assertEquals(0, publisher.held());
+        Assert.assertEquals(14, publisher.creditsGranted());
+        Assert.assertEquals(1, publisher.creditExhaustions());
+    }
+
+    @Test
+    public void testRemoveCreditDropsTheHeldMessages() {
+        final WireOutPublisher publisher = new WireOutPublisher(100, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST, 10);
+        publisher.grant(TID, 1);
+        publisher.add(TID, message("m0"));
+        publisher.add(TID, message("m1"));
+        publisher.add(TID, message("m2"));
+        Assert.assertEquals(2, publisher.held());
+        // the held messages count towards the bounds
+        Assert.assertEquals(30, publisher.queuedBytes());
+
+        publisher.removeCredit(TID);
+        Assert.assertEquals(0, publisher.held());
+        Assert.assertEquals(10, publisher.queuedBytes());
+
+        writeAll(publisher);
+        Assert.assertEquals(Collections.singletonList("m0"), written);
+        Assert.assertEquals(0, publisher.queuedBytes());
+
+        // no longer flow controlled
+        publisher.add(TID, message("m3"));
+        writeAll(publisher);
+        Assert.assertEquals(Arrays.asList("m0", "m3"), written);
+    }
+
+    @Test
+    public void testHeldMessagesCountTowardsTheBounds() {
+        final WireOutPublisher publisher = new WireOutPublisher(2, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST);
+        publisher.grant(TID, 0);
+        publisher.add(TID, message("m0"));
+        publisher.add(TID, message("m1"));
+        publisher.add(TID, message("m2"));
+
+        Assert.assertEquals(2, publisher.held());
+        Assert.assertEquals(1, publisher.droppedNewest());
+    }
+
+    @Test
+    public void testTheBytesInFlightAreLimited() {
+        // each message is estimated as 100 bytes
+        final WireOutPublisher publisher = new WireOutPublisher(100, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST, 100);
+        publisher.grant(TID, 10);
+        publisher.creditBytes(TID, 250);
+        for (int i = 0; i < 5; i++)
+            publisher.add(TID, message("m" + i));
+
+        // a message is sent while fewer than 250 bytes are in flight
+        Assert.assertEquals(2, publisher.held());
+        Assert.assertEquals(1, publisher.byteExhaustions());
+        Assert.assertEquals(0, publisher.creditExhaustions());
+        writeAll(publisher);
+        Assert.assertEquals(Arrays.asList("m0", "m1", "m2"), written);
+
+        // the client has consumed one message, so its 100 bytes are given back
+        publisher.grant(TID, 1);
+        Assert.assertEquals(1, publisher.held());
+        writeAll(publisher);
+        Assert.assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), written);
+
+        // lifting the limit releases the rest
+        publisher.creditBytes(TID, 0);
+        Assert.assertEquals(0, publisher.held());
+    }
+
+    @Test
+    public void testTheHandlerConsumesTheCreditEvent() {
+        final WireOutPublisher publisher = new WireOutPublisher();
+        final CreditHandler handler = new CreditHandler(publisher);
+        final Wire in = new TextWire(Bytes.elasticByteBuffer());
+        in.writeDocument(false, w -> w.writeEventName(EventId.credit).int64(3)
+                .writeEventName(EventId.creditBytes).int64(1000));
+        in.writeDocument(false, w -> w.write(() -> "payload").text("hello"));
+
+        final boolean[] consumed = new boolean[2];
+        in.readDocument(null, d -> consumed[0] = handler.readCredit(TID, d));
+        in.readDocument(null, d -> {
+            consumed[1] = handler.readCredit(TID, d);
+            // nothing has been read
+            Assert.assertEquals("hello", d.read(() -> "payload").text());
+        });
+
+        Assert.assertTrue(consumed[0]);
+        Assert.assertFalse(consumed[1]);
+        Assert.assertEquals(3, publisher.creditsGranted());
+    }
+
+    static class CreditHandler extends WireTcpHandler {
+        CreditHandler(@NotNull WireOutPublisher publisher) {
+            super(TextWire::new, publisher);
+        }
+
+        @Override
+        public boolean readCredit(long tid, @NotNull WireIn in) {
+            return super.readCredit(tid, in);
+        }
+
+        @Override
+        protected void process(@NotNull WireIn in,
+                               @NotNull WireOut out,
+                               @NotNull SessionDetailsProvider sessionDetails) {
+        }
+    }
+}
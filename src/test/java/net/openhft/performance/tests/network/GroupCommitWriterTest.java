@@ -0,0 +1,122 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.network.connection.GroupCommitWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class GroupCommitWriterTest {
+
+    private static final long DEADLINE_MS = 5_000;
+
+    @Test
+    public void testFramesWrapAroundTheRing() throws IOException {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        try (SocketChannel channel = SocketChannel.open()) {
+            // a ring of 16 bytes, so frames of 6 bytes soon wrap around its end
+            final GroupCommitWriter writer = new GroupCommitWriter("test", 16, () -> channel,
+                    (sc, buffers) -> copyTo(written, buffers), Assert::assertNull);
+            writer.start();
+            try {
+                final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                for (int i = 0; i < 20; i++) {
+                    final byte[] frame = new byte[6];
+                    for (int j = 0; j < frame.length; j++)
+                        frame[j] = (byte) (i * frame.length + j);
+                    expected.write(frame);
+                    writer.append(ByteBuffer.wrap(frame), System.currentTimeMillis() + DEADLINE_MS);
+                }
+
+                awaitDrained(writer);
+                synchronized (written) {
+                    Assert.assertArrayEquals(expected.toByteArray(), written.toByteArray());
+                }
+                Assert.assertEquals(20, writer.frames());
+                Assert.assertEquals(120, writer.bytesWritten());
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    @Test
+    public void testDiscardPending() throws IOException {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        try (SocketChannel channel = SocketChannel.open()) {
+            final AtomicReference<SocketChannel> current = new AtomicReference<>();
+            // not connected, so the writer discards rather than sends
+            final GroupCommitWriter writer = new GroupCommitWriter("test", 64, current::get,
+                    (sc, buffers) -> copyTo(written, buffers), Assert::assertNull);
+            writer.start();
+            try {
+                for (int i = 0; i < 5; i++)
+                    writer.append(ByteBuffer.wrap(new byte[10]),
+                            System.currentTimeMillis() + DEADLINE_MS);
+
+                writer.discardPending();
+                Assert.assertFalse(writer.hasPending());
+                Assert.assertEquals(0, written.size());
+
+                // once connected again, only the new frames are sent
+                current.set(channel);
+                writer.append(ByteBuffer.wrap(new byte[]{1, 2, 3}),
+                        System.currentTimeMillis() + DEADLINE_MS);
+                awaitDrained(writer);
+                synchronized (written) {
+                    Assert.assertArrayEquals(new byte[]{1, 2, 3}, written.toByteArray());
+                }
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFrameLargerThanTheRing() throws IOException {
+        try (SocketChannel channel = SocketChannel.open()) {
+            final GroupCommitWriter writer = new GroupCommitWriter("test", 16, () -> channel,
+                    (sc, buffers) -> {
+                    }, Assert::assertNull);
+            writer.append(ByteBuffer.wrap(new byte[17]), System.currentTimeMillis() + DEADLINE_MS);
+        }
+    }
+
+    private static void copyTo(ByteArrayOutputStream written, ByteBuffer[] buffers) {
+        synchronized (written) {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining())
+                    written.write(buffer.get());
+            }
+        }
+    }
+
+    private static void awaitDrained(GroupCommitWriter writer) {
+        final long end = System.currentTimeMillis() + DEADLINE_MS;
+        while (writer.hasPending()) {
+            if (System.currentTimeMillis() > end)
+                Assert.fail("the writer did not drain the ring");
+            Thread.yield();
+        }
+    }
+}
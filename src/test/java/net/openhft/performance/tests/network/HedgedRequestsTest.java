@@ -0,0 +1,173 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.AcceptorEventHandler;
+import net.openhft.chronicle.network.TCPRegistry;
+import net.openhft.chronicle.network.VanillaSessionDetails;
+import net.openhft.chronicle.network.WireTcpHandler;
+import net.openhft.chronicle.network.api.TcpHandler;
+import net.openhft.chronicle.network.api.session.SessionDetailsProvider;
+import net.openhft.chronicle.network.connection.CoreFields;
+import net.openhft.chronicle.network.connection.HedgedRequests;
+import net.openhft.chronicle.network.connection.TcpChannelHub;
+import net.openhft.chronicle.threads.EventGroup;
+import net.openhft.chronicle.wire.ValueIn;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.WireType;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static net.openhft.chronicle.network.connection.SocketAddressSupplier.uri;
+
+public class HedgedRequestsTest {
+
+    private static final String PRIMARY = "primary.port";
+    private static final String SECONDARY = "secondary.port";
+    private static final long MIN_DELAY_MS = 20;
+    private static final long TIMEOUT_MS = 5_000;
+
+    private final AtomicBoolean primarySilent = new AtomicBoolean();
+    private EventGroup eg;
+    private TcpChannelHub primary;
+    private TcpChannelHub secondary;
+    private HedgedRequests hedgedRequests;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        TCPRegistry.createServerSocketChannelFor(PRIMARY, SECONDARY);
+        eg = new EventGroup(true);
+        eg.start();
+
+        createServer(PRIMARY, () -> new NamedReplyHandler(WireType.TEXT, "primary", primarySilent));
+        createServer(SECONDARY, () -> new NamedReplyHandler(WireType.TEXT, "secondary",
+                new AtomicBoolean()));
+
+        primary = new TcpChannelHub(null, eg, WireType.TEXT, "", uri(PRIMARY), false);
+        secondary = new TcpChannelHub(null, eg, WireType.TEXT, "", uri(SECONDARY), false);
+        Assert.assertTrue(primary.awaitConnected(primary.timeoutMs));
+        Assert.assertTrue(secondary.awaitConnected(secondary.timeoutMs));
+
+        hedgedRequests = new HedgedRequests(primary, secondary, 50.0, MIN_DELAY_MS);
+    }
+
+    private void createServer(String desc, Supplier<TcpHandler> handlers)
+            throws IOException {
+        AcceptorEventHandler eah = new AcceptorEventHandler(desc, handlers,
+                VanillaSessionDetails::new, 0, 0);
+        eg.addHandler(eah);
+        SocketChannel sc = TCPRegistry.createSocketChannel(desc);
+        sc.configureBlocking(false);
+    }
+
+    @After
+    public void tearDown() {
+        eg.stop();
+        primary.close();
+        secondary.close();
+        TcpChannelHub.closeAllHubs();
+        TCPRegistry.reset();
+    }
+
+    private String request() {
+        return hedgedRequests.request("/hedged", () -> "get", null, ValueIn::text, TIMEOUT_MS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testThePercentileMustBeBelow100() {
+        new HedgedRequests(primary, secondary, 100.0, MIN_DELAY_MS);
+    }
+
+    @Test
+    public void testAFastPrimaryIsNotHedged() {
+        Assert.assertEquals("primary", request());
+        Assert.assertEquals(1, hedgedRequests.requests());
+        Assert.assertEquals(0, hedgedRequests.hedges());
+        Assert.assertEquals(0, hedgedRequests.secondaryWins());
+    }
+
+    @Test
+    public void testASlowPrimaryIsHedgedToTheSecondary() {
+        primarySilent.set(true);
+        final long start = System.currentTimeMillis();
+        Assert.assertEquals("secondary", request());
+        final long elapsedMs = System.currentTimeMillis() - start;
+
+        // the secondary was only tried once the hedge delay had passed
+        Assert.assertTrue("elapsedMs=" + elapsedMs, elapsedMs >= hedgedRequests.hedgeDelayMs());
+        Assert.assertTrue("elapsedMs=" + elapsedMs, elapsedMs < TIMEOUT_MS);
+        Assert.assertEquals(1, hedgedRequests.hedges());
+        Assert.assertEquals(1, hedgedRequests.secondaryWins());
+    }
+
+    @Test
+    public void testTheHedgeDelayFollowsTheReplyTimes() {
+        // the delay is recalculated every 128 replies
+        for (int i = 0; i < 128; i++)
+            Assert.assertEquals("primary", request());
+
+        // the local replies are all faster than the minimum delay
+        Assert.assertEquals(MIN_DELAY_MS, hedgedRequests.hedgeDelayMs());
+        Assert.assertEquals(128, hedgedRequests.requests());
+    }
+
+    /**
+     * replies to every request with the name of the server, unless it has been made silent
+     */
+    static class NamedReplyHandler extends WireTcpHandler {
+        @NotNull
+        private final String name;
+        @NotNull
+        private final AtomicBoolean silent;
+        private long tid;
+
+        NamedReplyHandler(@NotNull Function<Bytes, Wire> bytesToWire,
+                          @NotNull String name,
+                          @NotNull AtomicBoolean silent) {
+            super(bytesToWire);
+            this.name = name;
+            this.silent = silent;
+        }
+
+        @Override
+        protected void process(@NotNull WireIn in,
+                               @NotNull WireOut out,
+                               @NotNull SessionDetailsProvider sd) {
+            in.readDocument(m -> {
+                CoreFields.csp(m);
+                tid = CoreFields.tid(m);
+            }, d -> {
+                if (silent.get())
+                    return;
+                out.writeDocument(true, meta -> meta.write(CoreFields.tid).int64(tid));
+                out.writeDocument(false, data -> data.write(CoreFields.reply).text(name));
+            });
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.network.connection.LatencyHistogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+    // the index of the bucket holding Long.MAX_VALUE, the last bucket
+    private static final int LAST = LatencyHistogram.index(Long.MAX_VALUE);
+
+    @Test
+    public void testSmallValuesHaveTheirOwnBucket() {
+        for (int i = 0; i < 16; i++) {
+            Assert.assertEquals(i, LatencyHistogram.index(i));
+            Assert.assertEquals(i, LatencyHistogram.highestValue(i));
+        }
+    }
+
+    @Test
+    public void testBucketsAreContiguous() {
+        // the value after the highest of one bucket is the lowest of the next
+        for (int i = 0; i < LAST; i++) {
+            final long highest = LatencyHistogram.highestValue(i);
+            Assert.assertEquals(i, LatencyHistogram.index(highest));
+            Assert.assertEquals(i + 1, LatencyHistogram.index(highest + 1));
+        }
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LAST));
+    }
+
+    @Test
+    public void testBucketWidthIsWithinAnEighth() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            final long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            final int index = LatencyHistogram.index(value);
+            final long highest = LatencyHistogram.highestValue(index);
+            final long lowest = index == 0 ? 0 : LatencyHistogram.highestValue(index - 1) + 1;
+
+            Assert.assertTrue("value=" + value, lowest <= value && value <= highest);
+            Assert.assertTrue("value=" + value, highest - lowest <= Math.max(0, lowest / 8));
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1_000; i++)
+            histogram.record(i);
+
+        Assert.assertEquals(1_000, histogram.count());
+        Assert.assertEquals(500, histogram.mean());
+        Assert.assertEquals(1_000, histogram.max());
+
+        final long p50 = histogram.percentile(50);
+        Assert.assertTrue("p50=" + p50, p50 >= 500 && p50 <= 500 * 9 / 8);
+        final long p99 = histogram.percentile(99);
+        Assert.assertTrue("p99=" + p99, p99 >= 990 && p99 <= 1_000);
+        // never more than the max
+        Assert.assertEquals(1_000, histogram.percentile(100));
+    }
+
+    @Test
+    public void testNegativeIsCountedAsZero() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        Assert.assertEquals(1, histogram.count());
+        Assert.assertEquals(0, histogram.percentile(50));
+        Assert.assertEquals(0, histogram.max());
+    }
+
+    @Test
+    public void testReset() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000_000);
+        histogram.reset();
+        Assert.assertEquals(0, histogram.count());
+        Assert.assertEquals(0, histogram.percentile(99));
+        Assert.assertEquals(0, histogram.mean());
+        Assert.assertEquals(0, histogram.max());
+    }
+}
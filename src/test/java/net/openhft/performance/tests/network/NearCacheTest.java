@@ -0,0 +1,136 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.network.connection.NearCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NearCacheTest {
+
+    @Test
+    public void testHitAndMiss() {
+        final NearCache nearCache = new NearCache(10, 0);
+        final NearCache.Key key = new NearCache.Key("/map", "get", "key1");
+
+        Assert.assertNull(nearCache.get(key));
+        nearCache.put(key, "value1", nearCache.version());
+
+        // an equal key, made from a different array of args, must find the entry
+        Assert.assertEquals("value1", nearCache.get(new NearCache.Key("/map", "get", "key1")));
+        Assert.assertEquals(1, nearCache.hits());
+        Assert.assertEquals(1, nearCache.misses());
+    }
+
+    @Test
+    public void testInvalidate() {
+        final NearCache nearCache = new NearCache(10, 0);
+        final NearCache.Key mapKey = new NearCache.Key("/map", "get", "key1");
+        final NearCache.Key otherKey = new NearCache.Key("/other", "get", "key1");
+
+        nearCache.put(mapKey, "value1", nearCache.version());
+        nearCache.put(otherKey, "value2", nearCache.version());
+
+        nearCache.invalidate("/map");
+        Assert.assertNull(nearCache.get(mapKey));
+        Assert.assertEquals("value2", nearCache.get(otherKey));
+
+        nearCache.invalidateAll();
+        Assert.assertEquals(0, nearCache.size());
+    }
+
+    @Test
+    public void testResultFetchedDuringAnInvalidationIsNotCached() {
+        final NearCache nearCache = new NearCache(10, 0);
+        final NearCache.Key key = new NearCache.Key("/map", "get", "key1");
+
+        final long version = nearCache.version();
+        // the server invalidates while the call is in flight
+        nearCache.invalidate("/map");
+        nearCache.put(key, "stale", version);
+
+        Assert.assertNull(nearCache.get(key));
+    }
+
+    @Test
+    public void testEviction() {
+        final NearCache nearCache = new NearCache(2, 0);
+        for (int i = 0; i < 3; i++)
+            nearCache.put(new NearCache.Key("/map", "get", i), i, nearCache.version());
+
+        Assert.assertEquals(2, nearCache.size());
+        Assert.assertEquals(1, nearCache.evictions());
+        Assert.assertNull(nearCache.get(new NearCache.Key("/map", "get", 0)));
+    }
+
+    @Test
+    public void testEvictionSweepsAllTheEntries() {
+        final int maxEntries = 16;
+        final NearCache nearCache = new NearCache(maxEntries, 0);
+        for (int i = 0; i < maxEntries; i++)
+            nearCache.put(new NearCache.Key("/map", "get", i), i, nearCache.version());
+
+        // the first entries are the oldest, so each goes once the sweep samples it
+        for (int i = maxEntries; i < 16 * maxEntries; i++)
+            nearCache.put(new NearCache.Key("/map", "get", i), i, nearCache.version());
+
+        for (int i = 0; i < maxEntries; i++)
+            Assert.assertNull(nearCache.get("/map", "get", i));
+        Assert.assertEquals(maxEntries, nearCache.size());
+    }
+
+    @Test
+    public void testTheKeyCopiesTheArgs() {
+        final NearCache nearCache = new NearCache(10, 0);
+        final int[] nested = {1, 2};
+        final Object[] args = {"key1", nested};
+        nearCache.put(new NearCache.Key("/map", "get", args), "value1", nearCache.version());
+
+        // the caller reuses its arrays
+        args[0] = "key2";
+        nested[0] = 3;
+
+        Assert.assertEquals("value1", nearCache.get("/map", "get", "key1", new int[]{1, 2}));
+        Assert.assertNull(nearCache.get("/map", "get", args));
+    }
+
+    @Test
+    public void testLookupWithoutAKey() {
+        final NearCache nearCache = new NearCache(10, 0);
+        nearCache.put(new NearCache.Key("/map", "get", "key1", new int[]{1, 2}), "value1",
+                nearCache.version());
+
+        Assert.assertEquals("value1", nearCache.get("/map", "get", "key1", new int[]{1, 2}));
+        Assert.assertNull(nearCache.get("/map", "get", "key1", new int[]{1, 3}));
+        Assert.assertNull(nearCache.get("/map", "put", "key1", new int[]{1, 2}));
+        Assert.assertEquals(1, nearCache.hits());
+        Assert.assertEquals(2, nearCache.misses());
+    }
+
+    @Test
+    public void testRecentlyUsedIsNotEvicted() {
+        final NearCache nearCache = new NearCache(2, 0);
+        nearCache.put(new NearCache.Key("/map", "get", 0), 0, nearCache.version());
+        nearCache.put(new NearCache.Key("/map", "get", 1), 1, nearCache.version());
+        Assert.assertEquals(0, nearCache.get("/map", "get", 0));
+
+        nearCache.put(new NearCache.Key("/map", "get", 2), 2, nearCache.version());
+        Assert.assertEquals(1, nearCache.evictions());
+        Assert.assertEquals(0, nearCache.get("/map", "get", 0));
+        Assert.assertNull(nearCache.get("/map", "get", 1));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.network.connection.PingTimes;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PingTimesTest {
+
+    @Test
+    public void testEachReplyIsTimedFromItsOwnHeartbeat() {
+        final PingTimes pingTimes = new PingTimes(16);
+        final long first = pingTimes.send(1_000);
+        // sent before the reply to the first arrives
+        final long second = pingTimes.send(5_000);
+
+        Assert.assertEquals(7_000, pingTimes.onReply(second, 12_000));
+        Assert.assertEquals(12_500, pingTimes.onReply(first, 13_500));
+    }
+
+    @Test
+    public void testSequenceNumbersStartAtOne() {
+        final PingTimes pingTimes = new PingTimes(4);
+        Assert.assertEquals(0, pingTimes.sequence());
+        Assert.assertEquals(1, pingTimes.send(0));
+        Assert.assertEquals(2, pingTimes.send(0));
+        Assert.assertEquals(2, pingTimes.sequence());
+    }
+
+    @Test
+    public void testUnknownSequenceNumbersAreNotTimed() {
+        final PingTimes pingTimes = new PingTimes(4);
+        pingTimes.send(100);
+
+        Assert.assertEquals(-1, pingTimes.onReply(0, 200));
+        Assert.assertEquals(-1, pingTimes.onReply(-1, 200));
+        // never sent
+        Assert.assertEquals(-1, pingTimes.onReply(2, 200));
+    }
+
+    @Test
+    public void testAReplyOlderThanTheCapacityIsNotTimed() {
+        final PingTimes pingTimes = new PingTimes(4);
+        final long first = pingTimes.send(100);
+        for (int i = 0; i < 4; i++)
+            pingTimes.send(200 + i);
+
+        // its slot has been reused
+        Assert.assertEquals(-1, pingTimes.onReply(first, 1_000));
+        Assert.assertEquals(1_000 - 200, pingTimes.onReply(first + 1, 1_000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBeAPowerOf2() {
+        new PingTimes(10);
+    }
+}
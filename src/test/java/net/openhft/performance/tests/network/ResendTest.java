@@ -0,0 +1,198 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.ConnectionDroppedException;
+import net.openhft.chronicle.network.AcceptorEventHandler;
+import net.openhft.chronicle.network.TCPRegistry;
+import net.openhft.chronicle.network.VanillaSessionDetails;
+import net.openhft.chronicle.network.WireTcpHandler;
+import net.openhft.chronicle.network.api.session.SessionDetailsProvider;
+import net.openhft.chronicle.network.connection.AbstractStatelessClient;
+import net.openhft.chronicle.network.connection.CoreFields;
+import net.openhft.chronicle.network.connection.TcpChannelHub;
+import net.openhft.chronicle.threads.EventGroup;
+import net.openhft.chronicle.threads.api.EventLoop;
+import net.openhft.chronicle.wire.ParameterizeWireKey;
+import net.openhft.chronicle.wire.ValueIn;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.WireType;
+import net.openhft.chronicle.wire.WriteMarshallable;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static net.openhft.chronicle.network.connection.SocketAddressSupplier.uri;
+
+public class ResendTest {
+
+    private static final String DESC = "host.port";
+
+    private final AtomicInteger requests = new AtomicInteger();
+    // counted down when the server has received the request it does not reply to
+    private final CountDownLatch firstRequest = new CountDownLatch(1);
+    private EventGroup eg;
+    private DroppableHub hub;
+    private ExecutorService es;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        TCPRegistry.createServerSocketChannelFor(DESC);
+        eg = new EventGroup(true);
+        eg.start();
+
+        AcceptorEventHandler eah = new AcceptorEventHandler(DESC,
+                () -> new FirstRequestLostHandler(WireType.TEXT, requests, firstRequest),
+                VanillaSessionDetails::new, 0, 0);
+        eg.addHandler(eah);
+        SocketChannel sc = TCPRegistry.createSocketChannel(DESC);
+        sc.configureBlocking(false);
+
+        hub = new DroppableHub(eg, DESC);
+        Assert.assertTrue(hub.awaitConnected(hub.timeoutMs));
+        es = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        es.shutdownNow();
+        eg.stop();
+        hub.close();
+        TcpChannelHub.closeAllHubs();
+        TCPRegistry.reset();
+    }
+
+    @Test
+    public void testARequestLostWithTheConnectionIsResentOnReconnect() throws Exception {
+        final Client client = new Client(hub);
+        final long start = System.currentTimeMillis();
+        final Future<String> reply = es.submit(client::get);
+
+        // the connection is lost while the first request waits for its reply
+        Assert.assertTrue(firstRequest.await(5, TimeUnit.SECONDS));
+        hub.drop();
+
+        Assert.assertEquals("reply", reply.get(hub.timeoutMs, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, requests.get());
+        Assert.assertEquals(1, hub.reconnects());
+        // the resend was made within the timeout of the call, not a fresh one
+        Assert.assertTrue(System.currentTimeMillis() - start < hub.timeoutMs);
+    }
+
+    @Test
+    public void testARequestWhoseConnectionIsLostBeforeItsReplyIsWaitedForFails()
+            throws InterruptedException {
+        final long tid;
+        hub.outBytesLock().lock();
+        try {
+            tid = hub.writeMetaDataStartTime(System.currentTimeMillis(), hub.outWire(),
+                    "/resend", 0);
+            hub.outWire().writeDocument(false, w -> w.writeEventName(() -> "get")
+                    .marshallable(WriteMarshallable.EMPTY));
+            hub.writeSocket(hub.outWire());
+        } finally {
+            hub.outBytesLock().unlock();
+        }
+        Assert.assertTrue(firstRequest.await(5, TimeUnit.SECONDS));
+        hub.drop();
+
+        // the reply can not arrive, so this fails at once, rather than timing out
+        final long start = System.currentTimeMillis();
+        try {
+            hub.proxyReply(hub.timeoutMs, tid);
+            Assert.fail();
+        } catch (ConnectionDroppedException expected) {
+            // expected
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < hub.timeoutMs / 2);
+    }
+
+    /**
+     * exposes closeSocket(), so the connection can be dropped
+     */
+    static class DroppableHub extends TcpChannelHub {
+        DroppableHub(@NotNull EventLoop eventLoop, @NotNull String desc) {
+            super(null, eventLoop, WireType.TEXT, "", uri(desc), false);
+        }
+
+        void drop() {
+            closeSocket();
+        }
+    }
+
+    static class Client extends AbstractStatelessClient<ParameterizeWireKey> {
+        Client(@NotNull TcpChannelHub hub) {
+            super(hub, 0, "/resend");
+        }
+
+        String get() {
+            return proxyReturnWireConsumerInOut(() -> "get", CoreFields.reply, null,
+                    ValueIn::text);
+        }
+    }
+
+    /**
+     * does not reply to the first request, on any connection, and replies to the rest
+     */
+    static class FirstRequestLostHandler extends WireTcpHandler {
+        @NotNull
+        private final AtomicInteger requests;
+        @NotNull
+        private final CountDownLatch firstRequest;
+        private long tid;
+
+        FirstRequestLostHandler(@NotNull Function<Bytes, Wire> bytesToWire,
+                                @NotNull AtomicInteger requests,
+                                @NotNull CountDownLatch firstRequest) {
+            super(bytesToWire);
+            this.requests = requests;
+            this.firstRequest = firstRequest;
+        }
+
+        @Override
+        protected void process(@NotNull WireIn in,
+                               @NotNull WireOut out,
+                               @NotNull SessionDetailsProvider sd) {
+            in.readDocument(m -> {
+                CoreFields.csp(m);
+                tid = CoreFields.tid(m);
+            }, d -> {
+                if (requests.incrementAndGet() == 1) {
+                    firstRequest.countDown();
+                    return;
+                }
+                out.writeDocument(true, meta -> meta.write(CoreFields.tid).int64(tid));
+                out.writeDocument(false, data -> data.write(CoreFields.reply).text("reply"));
+            });
+        }
+    }
+}
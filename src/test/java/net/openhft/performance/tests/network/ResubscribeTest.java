@@ -0,0 +1,190 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.AcceptorEventHandler;
+import net.openhft.chronicle.network.TCPRegistry;
+import net.openhft.chronicle.network.VanillaSessionDetails;
+import net.openhft.chronicle.network.WireTcpHandler;
+import net.openhft.chronicle.network.api.session.SessionDetailsProvider;
+import net.openhft.chronicle.network.connection.AbstractAsyncSubscription;
+import net.openhft.chronicle.network.connection.AbstractAsyncTemporarySubscription;
+import net.openhft.chronicle.network.connection.TcpChannelHub;
+import net.openhft.chronicle.threads.EventGroup;
+import net.openhft.chronicle.threads.api.EventLoop;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import net.openhft.chronicle.wire.WireType;
+import net.openhft.chronicle.wire.Wires;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import static net.openhft.chronicle.network.connection.SocketAddressSupplier.uri;
+
+public class ResubscribeTest {
+
+    private static final String DESC = "host.port";
+    private static final int SUBSCRIPTIONS = 200;
+
+    private final AtomicInteger subscribes = new AtomicInteger();
+    private EventGroup eg;
+    private DroppableHub hub;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        TCPRegistry.createServerSocketChannelFor(DESC);
+        eg = new EventGroup(true);
+        eg.start();
+
+        AcceptorEventHandler eah = new AcceptorEventHandler(DESC,
+                () -> new SubscribeCountingHandler(WireType.TEXT, subscribes),
+                VanillaSessionDetails::new, 0, 0);
+        eg.addHandler(eah);
+        SocketChannel sc = TCPRegistry.createSocketChannel(DESC);
+        sc.configureBlocking(false);
+
+        hub = new DroppableHub(eg, DESC);
+        Assert.assertTrue(hub.awaitConnected(hub.timeoutMs));
+    }
+
+    @After
+    public void tearDown() {
+        eg.stop();
+        hub.close();
+        TcpChannelHub.closeAllHubs();
+        TCPRegistry.reset();
+    }
+
+    private static void awaitTrue(@NotNull BooleanSupplier condition) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end)
+                Assert.fail("timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testTheSubscriptionsAreResentOnReconnect() throws InterruptedException {
+        for (int i = 0; i < SUBSCRIPTIONS; i++)
+            hub.subscribe(new Subscription(hub, "/sub/" + i));
+        // a temporary subscription is not resent
+        hub.subscribe(new TemporarySubscription(hub, "/temporary"));
+        awaitTrue(() -> subscribes.get() == SUBSCRIPTIONS + 1);
+
+        hub.drop();
+        awaitTrue(() -> hub.reconnects() == 1 && hub.isOpen());
+        awaitTrue(() -> subscribes.get() == 2 * SUBSCRIPTIONS + 1);
+
+        // the heartbeat, which is sent on every connection, is not counted
+        Assert.assertEquals(SUBSCRIPTIONS, hub.lastResubscribeCount());
+        Assert.assertTrue(hub.lastResubscribeTimeNanos() > 0);
+
+        // no more than the subscriptions were sent
+        Thread.sleep(100);
+        Assert.assertEquals(2 * SUBSCRIPTIONS + 1, subscribes.get());
+    }
+
+    @Test
+    public void testNoSubscriptionsToResend() throws InterruptedException {
+        hub.drop();
+        awaitTrue(() -> hub.reconnects() == 1 && hub.isOpen());
+        Assert.assertEquals(0, hub.lastResubscribeCount());
+        Assert.assertEquals(0, subscribes.get());
+    }
+
+    /**
+     * exposes closeSocket(), so the connection can be dropped
+     */
+    static class DroppableHub extends TcpChannelHub {
+        DroppableHub(@NotNull EventLoop eventLoop, @NotNull String desc) {
+            super(null, eventLoop, WireType.TEXT, "", uri(desc), false);
+        }
+
+        void drop() {
+            closeSocket();
+        }
+    }
+
+    static class Subscription extends AbstractAsyncSubscription {
+        Subscription(@NotNull TcpChannelHub hub, String csp) {
+            super(hub, csp, "Subscription");
+        }
+
+        @Override
+        public void onSubscribe(@NotNull WireOut wireOut) {
+            wireOut.writeEventName(() -> "subscribe").bool(true);
+        }
+
+        @Override
+        public void onConsumer(@NotNull WireIn inWire) {
+        }
+    }
+
+    static class TemporarySubscription extends AbstractAsyncTemporarySubscription {
+        TemporarySubscription(@NotNull TcpChannelHub hub, String csp) {
+            super(hub, csp, "TemporarySubscription");
+        }
+
+        @Override
+        public void onSubscribe(@NotNull WireOut wireOut) {
+            wireOut.writeEventName(() -> "subscribe").bool(true);
+        }
+
+        @Override
+        public void onConsumer(@NotNull WireIn inWire) {
+        }
+    }
+
+    /**
+     * counts the subscriptions it receives, on any connection, and does not reply
+     */
+    static class SubscribeCountingHandler extends WireTcpHandler {
+        @NotNull
+        private final AtomicInteger subscribes;
+
+        SubscribeCountingHandler(@NotNull Function<Bytes, Wire> bytesToWire,
+                                 @NotNull AtomicInteger subscribes) {
+            super(bytesToWire);
+            this.subscribes = subscribes;
+        }
+
+        @Override
+        protected void process(@NotNull WireIn in,
+                               @NotNull WireOut out,
+                               @NotNull SessionDetailsProvider sd) {
+            in.readDocument(null, d -> {
+                final StringBuilder eventName = Wires.acquireStringBuilder();
+                d.readEventName(eventName);
+                if ("subscribe".contentEquals(eventName))
+                    subscribes.incrementAndGet();
+            });
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.connection.RingWireOutPublisher;
+import net.openhft.chronicle.wire.TextWire;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WriteMarshallable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class RingWireOutPublisherTest {
+
+    private final Wire out = new TextWire(Bytes.elasticByteBuffer());
+
+    /**
+     * a message of the producer, its sequence, and then padding bytes
+     */
+    private static WriteMarshallable message(int producer, int sequence, int padding) {
+        return w -> {
+            final Bytes bytes = w.bytes();
+            bytes.writeInt(producer);
+            bytes.writeInt(sequence);
+            bytes.writeInt(padding);
+            for (int i = 0; i < padding; i++)
+                bytes.writeByte((byte) sequence);
+        };
+    }
+
+    /**
+     * reads the messages written so far, checking each is intact and in order for its producer
+     *
+     * @return the number of messages read
+     */
+    private static int readAll(Bytes bytes, int[] next) {
+        int count = 0;
+        while (bytes.readRemaining() > 0) {
+            final int producer = bytes.readInt();
+            final int sequence = bytes.readInt();
+            final int padding = bytes.readInt();
+            for (int i = 0; i < padding; i++)
+                Assert.assertEquals((byte) sequence, bytes.readByte());
+            Assert.assertEquals(next[producer]++, sequence);
+            count++;
+        }
+        bytes.clear();
+        return count;
+    }
+
+    private void writeAll(RingWireOutPublisher publisher) {
+        publisher.applyAction(out, () -> {
+        });
+    }
+
+    @Test
+    public void testTheRingWrapsAround() {
+        final RingWireOutPublisher publisher = new RingWireOutPublisher(4, 64, TextWire::new);
+        final int[] next = new int[1];
+        int read = 0;
+        for (int i = 0; i < 100; i++) {
+            publisher.add(message(0, i, 8));
+            if (i % 3 == 2) {
+                writeAll(publisher);
+                read += readAll(out.bytes(), next);
+            }
+        }
+        writeAll(publisher);
+        read += readAll(out.bytes(), next);
+
+        Assert.assertEquals(100, read);
+        Assert.assertEquals(0, publisher.largeMessages());
+    }
+
+    @Test
+    public void testALargeMessageKeepsItsPlace() {
+        final RingWireOutPublisher publisher = new RingWireOutPublisher(4, 64, TextWire::new);
+        publisher.add(message(0, 0, 8));
+        publisher.add(message(0, 1, 500));
+        publisher.add(message(0, 2, 8));
+        publisher.add(message(0, 3, 8));
+        writeAll(publisher);
+        publisher.add(message(0, 4, 8));
+        // the ring has wrapped, so this uses the slot, and the large buffer, of message 1
+        publisher.add(message(0, 5, 1000));
+        writeAll(publisher);
+
+        Assert.assertEquals(6, readAll(out.bytes(), new int[1]));
+        Assert.assertEquals(2, publisher.largeMessages());
+    }
+
+    @Test
+    public void testManyProducersKeepTheirOrder() throws InterruptedException {
+        final RingWireOutPublisher publisher = new RingWireOutPublisher(16, 64, TextWire::new);
+        final int producers = 4;
+        final int perProducer = 20_000;
+        final CountDownLatch done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(() -> {
+                for (int i = 0; i < perProducer; i++)
+                    // every hundredth message is larger than a slot
+                    publisher.add(message(producer, i, i % 100 == 0 ? 200 : i % 32));
+                done.countDown();
+            }).start();
+        }
+
+        final int[] next = new int[producers];
+        int read = 0;
+        while (done.getCount() > 0) {
+            writeAll(publisher);
+            read += readAll(out.bytes(), next);
+        }
+        writeAll(publisher);
+        read += readAll(out.bytes(), next);
+
+        Assert.assertEquals(producers * perProducer, read);
+        for (int p = 0; p < producers; p++)
+            Assert.assertEquals(perProducer, next[p]);
+        Assert.assertEquals(producers * perProducer / 100, publisher.largeMessages());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.network.AcceptorEventHandler;
+import net.openhft.chronicle.network.TCPRegistry;
+import net.openhft.chronicle.network.VanillaSessionDetails;
+import net.openhft.chronicle.network.connection.StripedTcpChannelHub;
+import net.openhft.chronicle.network.connection.TcpChannelHub;
+import net.openhft.chronicle.threads.EventGroup;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireType;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class StripedTcpChannelHubTest {
+
+    private static final String DESC = "host.port";
+    private static final int CONNECTIONS = 2;
+    private static final int THREADS = 4;
+
+    private EventGroup eg;
+    private StripedTcpChannelHub stripedHub;
+
+    @Before
+    public void setUp() throws IOException {
+        TCPRegistry.createServerSocketChannelFor(DESC);
+        eg = new EventGroup(true);
+        eg.start();
+
+        AcceptorEventHandler eah = new AcceptorEventHandler(DESC,
+                () -> new WireEchoRequestHandler(WireType.TEXT), VanillaSessionDetails::new, 0, 0);
+        eg.addHandler(eah);
+        SocketChannel sc = TCPRegistry.createSocketChannel(DESC);
+        sc.configureBlocking(false);
+
+        stripedHub = new StripedTcpChannelHub(null, eg, WireType.TEXT, "", new String[]{DESC},
+                CONNECTIONS, false);
+    }
+
+    @After
+    public void tearDown() {
+        eg.stop();
+        stripedHub.close();
+        TcpChannelHub.closeAllHubs();
+        TCPRegistry.reset();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAtLeastOneConnection() {
+        new StripedTcpChannelHub(null, eg, WireType.TEXT, "", new String[]{DESC}, 0, false);
+    }
+
+    @Test
+    public void testHubForIsStable() {
+        Assert.assertEquals(CONNECTIONS, stripedHub.connections());
+        Assert.assertSame(stripedHub.hubFor("/map/a"), stripedHub.hubFor("/map/a"));
+        Assert.assertSame(stripedHub.hubFor(12345L), stripedHub.hubFor(12345L));
+        Assert.assertSame(stripedHub.hubFor((String) null), stripedHub.hubFor((String) null));
+
+        // every key maps to one of the connections
+        final Map<TcpChannelHub, Boolean> hubs = new IdentityHashMap<>();
+        for (int i = 0; i < 100; i++)
+            hubs.put(stripedHub.hubFor("/map/" + i), true);
+        Assert.assertEquals(CONNECTIONS, hubs.size());
+    }
+
+    @Test
+    public void testThreadsAreStripedAcrossTheConnections() throws Exception {
+        final ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        // holds every task until all have started, so each runs on its own thread
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        try {
+            final List<Future<TcpChannelHub>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final String message = "<thread " + t + ">";
+                futures.add(es.submit(() -> {
+                    barrier.await();
+                    final TcpChannelHub hub = stripedHub.hub();
+                    for (int i = 0; i < 10; i++) {
+                        Assert.assertSame(hub, stripedHub.hub());
+                        Assert.assertEquals(message + i, echo(hub, message + i));
+                    }
+                    return hub;
+                }));
+            }
+
+            final Map<TcpChannelHub, Integer> threadsPerHub = new IdentityHashMap<>();
+            for (Future<TcpChannelHub> future : futures)
+                threadsPerHub.merge(future.get(5, TimeUnit.SECONDS), 1, Integer::sum);
+
+            // the threads are assigned round robin
+            Assert.assertEquals(CONNECTIONS, threadsPerHub.size());
+            for (int threads : threadsPerHub.values())
+                Assert.assertEquals(THREADS / CONNECTIONS, threads);
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @NotNull
+    private static String echo(@NotNull TcpChannelHub hub, @NotNull String message)
+            throws InterruptedException {
+        // lock() does not write until the hub has connected
+        Assert.assertTrue(hub.awaitConnected(hub.timeoutMs));
+        final long tid = hub.nextUniqueTransaction(System.currentTimeMillis());
+
+        // lock() writes the outWire to the socket once the task has run
+        hub.lock(() -> {
+            final Wire wire = hub.outWire();
+            wire.writeDocument(true, w -> w.write(() -> "tid").int64(tid));
+            wire.writeDocument(false, w -> w.write(() -> "payload").text(message));
+        });
+
+        final Wire reply = hub.proxyReply(TimeUnit.SECONDS.toMillis(1), tid);
+        final String[] text = {null};
+        reply.readDocument(null, data -> text[0] = data.read(() -> "payloadResponse").text());
+        return text[0];
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.connection.AsyncSubscription;
+import net.openhft.chronicle.network.connection.SubscriptionDispatcher;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireType;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+public class SubscriptionDispatcherTest {
+
+    private static final int RING_SIZE = 4;
+    private static final int SPILL_LIMIT = 8;
+
+    private final List<Long> dropped = new CopyOnWriteArrayList<>();
+    private final SubscriptionDispatcher dispatcher = new SubscriptionDispatcher("test", 2,
+            RING_SIZE, SPILL_LIMIT, WireType.TEXT, dropped::add);
+
+    @After
+    public void tearDown() {
+        dispatcher.close();
+    }
+
+    /**
+     * writes a message as the reader thread would, straight into the claimed bytes
+     */
+    private void receive(@NotNull Subscriber subscriber, int value, boolean isLast) {
+        Assert.assertTrue(tryReceive(subscriber, value, isLast));
+    }
+
+    /**
+     * @return false if the message was discarded
+     */
+    private boolean tryReceive(@NotNull Subscriber subscriber, int value, boolean isLast) {
+        final Bytes bytes = dispatcher.claim(subscriber.tid(), subscriber);
+        if (bytes == null)
+            return false;
+        WireType.TEXT.apply(bytes).writeDocument(false, d -> d.write(() -> "value").int32(value));
+        dispatcher.publish(subscriber.tid(), isLast);
+        return true;
+    }
+
+    private static void awaitTrue(@NotNull BooleanSupplier condition) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end)
+                Assert.fail("timed out");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTheRingSizeIsAPowerOf2() {
+        new SubscriptionDispatcher("test", 1, 3, SPILL_LIMIT, WireType.TEXT, tid -> {
+        });
+    }
+
+    @Test
+    public void testTheMessagesAreDeliveredInOrderOffTheReaderThread() throws InterruptedException {
+        final Subscriber subscriber = new Subscriber(1, null);
+        for (int i = 0; i < 1000; i++)
+            receive(subscriber, i, false);
+
+        awaitTrue(() -> subscriber.values.size() == 1000);
+        for (int i = 0; i < 1000; i++)
+            Assert.assertEquals(i, (int) subscriber.values.get(i));
+        Assert.assertNotSame(Thread.currentThread(), subscriber.thread);
+        Assert.assertEquals(0, dispatcher.occupancy(subscriber.tid()));
+    }
+
+    @Test
+    public void testASlowSubscriberDoesNotHoldUpTheOthers() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Subscriber slow = new Subscriber(1, release);
+        final Subscriber fast = new Subscriber(2, null);
+
+        for (int i = 0; i < 3; i++)
+            receive(slow, i, false);
+        for (int i = 0; i < 3; i++)
+            receive(fast, i, false);
+
+        awaitTrue(() -> fast.values.size() == 3);
+        // the message being delivered counts until its delivery has finished
+        Assert.assertEquals(3, dispatcher.occupancy(slow.tid()));
+        Assert.assertEquals(3, dispatcher.maxOccupancy());
+        Assert.assertEquals(3, dispatcher.queued());
+
+        release.countDown();
+        awaitTrue(() -> slow.values.size() == 3);
+        awaitTrue(() -> dispatcher.queued() == 0);
+    }
+
+    @Test
+    public void testAFullRingSpillsRatherThanBlocking() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Subscriber slow = new Subscriber(1, release);
+
+        // the first message is held by the subscriber, so the ring fills after RING_SIZE
+        for (int i = 0; i < 10; i++)
+            receive(slow, i, false);
+        Assert.assertEquals(10 - RING_SIZE, dispatcher.ringFull());
+        Assert.assertEquals(10, dispatcher.occupancy(slow.tid()));
+
+        release.countDown();
+        awaitTrue(() -> slow.values.size() == 10);
+        for (int i = 0; i < 10; i++)
+            Assert.assertEquals(i, (int) slow.values.get(i));
+        awaitTrue(() -> dispatcher.occupancy(slow.tid()) == 0);
+
+        // the ring is used again once the spilled messages have been delivered
+        receive(slow, 10, false);
+        awaitTrue(() -> slow.values.size() == 11);
+        Assert.assertEquals(10 - RING_SIZE, dispatcher.ringFull());
+    }
+
+    @Test
+    public void testASubscriberWhichFillsTheSpillIsDropped() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Subscriber slow = new Subscriber(1, release);
+        final Subscriber fast = new Subscriber(2, null);
+
+        // the first message is held by the subscriber, then the ring and the spill fill
+        for (int i = 0; i < RING_SIZE + SPILL_LIMIT; i++)
+            receive(slow, i, false);
+        Assert.assertEquals(0, dispatcher.dropped());
+        Assert.assertFalse(tryReceive(slow, RING_SIZE + SPILL_LIMIT, false));
+
+        Assert.assertEquals(1, dispatcher.dropped());
+        Assert.assertEquals(1, dropped.size());
+        Assert.assertEquals(1L, (long) dropped.get(0));
+        Assert.assertEquals(0, dispatcher.occupancy(slow.tid()));
+
+        // the other subscriptions are not affected
+        receive(fast, 0, false);
+        awaitTrue(() -> fast.values.size() == 1);
+
+        // the backlog is discarded, and the subscriber is told it has been dropped
+        release.countDown();
+        Assert.assertTrue(slow.closed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, slow.values.size());
+        Assert.assertEquals(1, slow.valuesWhenClosed);
+    }
+
+    @Test
+    public void testOnCloseFollowsTheMessagesAlreadyReceived() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Subscriber subscriber = new Subscriber(1, release);
+        for (int i = 0; i < 3; i++)
+            receive(subscriber, i, false);
+        dispatcher.onClose(subscriber.tid(), subscriber);
+        Assert.assertFalse(subscriber.closed.await(50, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        Assert.assertTrue(subscriber.closed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(3, subscriber.valuesWhenClosed);
+    }
+
+    @Test
+    public void testTheBacklogOfARemovedSubscriptionIsDiscarded() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Subscriber subscriber = new Subscriber(1, release);
+        for (int i = 0; i < 3; i++)
+            receive(subscriber, i, false);
+        awaitTrue(() -> subscriber.delivering);
+
+        dispatcher.remove(subscriber.tid());
+        Assert.assertEquals(0, dispatcher.occupancy(subscriber.tid()));
+
+        release.countDown();
+        Thread.sleep(50);
+        // only the message already being delivered arrives
+        Assert.assertEquals(1, subscriber.values.size());
+    }
+
+    @Test
+    public void testTheLastMessageEndsTheRing() throws InterruptedException {
+        final Subscriber subscriber = new Subscriber(1, null);
+        receive(subscriber, 0, false);
+        receive(subscriber, 1, true);
+        awaitTrue(() -> subscriber.values.size() == 2);
+        Assert.assertEquals(0, dispatcher.occupancy(subscriber.tid()));
+    }
+
+    static class Subscriber implements AsyncSubscription {
+        final List<Integer> values = new CopyOnWriteArrayList<>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        private final long tid;
+        // if not null, the first delivery waits for this
+        private final CountDownLatch release;
+        volatile Thread thread;
+        volatile boolean delivering;
+        volatile int valuesWhenClosed = -1;
+
+        Subscriber(long tid, CountDownLatch release) {
+            this.tid = tid;
+            this.release = release;
+        }
+
+        @Override
+        public long tid() {
+            return tid;
+        }
+
+        @Override
+        public void applySubscribe() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void onConsumer(@NotNull WireIn inWire) {
+            thread = Thread.currentThread();
+            delivering = true;
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            inWire.readDocument(null, d -> values.add(d.read(() -> "value").int32()));
+        }
+
+        @Override
+        public void onClose() {
+            valuesWhenClosed = values.size();
+            closed.countDown();
+        }
+    }
+}
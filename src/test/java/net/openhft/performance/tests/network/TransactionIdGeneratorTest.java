@@ -0,0 +1,101 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.network.connection.TransactionIdGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class TransactionIdGeneratorTest {
+
+    private static final int THREADS = 8;
+    private static final int TIDS_PER_THREAD = 50_000;
+
+    private static void assertUniqueAcrossThreads(TransactionIdGenerator generator, long seed)
+            throws InterruptedException {
+        final long[][] tids = new long[THREADS][TIDS_PER_THREAD];
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final long[] mine = tids[t];
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                for (int i = 0; i < mine.length; i++)
+                    mine[i] = generator.next(seed);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        final Set<Long> seen = new HashSet<>();
+        for (long[] mine : tids) {
+            for (int i = 0; i < mine.length; i++) {
+                Assert.assertTrue("tid=" + mine[i], mine[i] > seed);
+                Assert.assertTrue("duplicate tid=" + mine[i], seen.add(mine[i]));
+                // the tids of each thread increase
+                if (i > 0)
+                    Assert.assertTrue(mine[i] > mine[i - 1]);
+            }
+        }
+        Assert.assertEquals(THREADS * TIDS_PER_THREAD, seen.size());
+    }
+
+    @Test(timeout = 30_000)
+    public void testTimestampTidsAreUniqueAcrossThreads() throws InterruptedException {
+        assertUniqueAcrossThreads(new TransactionIdGenerator(1_000, 0), 1_000);
+    }
+
+    @Test(timeout = 30_000)
+    public void testBlockTidsAreUniqueAcrossThreads() throws InterruptedException {
+        assertUniqueAcrossThreads(new TransactionIdGenerator(1_000, 64), 1_000);
+    }
+
+    @Test
+    public void testTimestampTidsFollowTheTime() {
+        final TransactionIdGenerator generator = new TransactionIdGenerator(1_000, 0);
+        Assert.assertEquals(2_000, generator.next(2_000));
+        // more than one tid in the same millisecond
+        Assert.assertEquals(2_001, generator.next(2_000));
+        // the clock going backwards does not repeat a tid
+        Assert.assertEquals(2_002, generator.next(1_500));
+    }
+
+    @Test
+    public void testBlocksAreTakenFromTheSeed() {
+        final TransactionIdGenerator generator = new TransactionIdGenerator(1_000, 4);
+        for (int i = 1; i <= 10; i++)
+            Assert.assertEquals(1_000 + i, generator.next(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeBlockSize() {
+        new TransactionIdGenerator(0, -1);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.performance.tests.network;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.network.connection.WireOutPublisher;
+import net.openhft.chronicle.network.connection.WireOutPublisher.OverflowPolicy;
+import net.openhft.chronicle.network.connection.WireOutPublisher.Priority;
+import net.openhft.chronicle.wire.TextWire;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WriteMarshallable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WireOutPublisherOverflowTest {
+
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+    private final Wire wire = new TextWire(Bytes.elasticByteBuffer());
+
+    /**
+     * a message which records that it was written, rather than writing to the wire
+     */
+    private WriteMarshallable message(String name) {
+        return w -> written.add(name);
+    }
+
+    private void writeAll(WireOutPublisher publisher) {
+        wire.bytes().clear();
+        publisher.applyAction(wire, () -> {
+        });
+    }
+
+    @Test
+    public void testDropNewest() {
+        final WireOutPublisher publisher = new WireOutPublisher(2, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST);
+        final List<OverflowPolicy> overflows = new ArrayList<>();
+        publisher.overflowListener((p, policy) -> overflows.add(policy));
+
+        publisher.add(message("a"));
+        publisher.add(message("b"));
+        publisher.add(message("c"));
+        Assert.assertFalse(publisher.tryAdd(message("d")));
+
+        Assert.assertEquals(2, publisher.droppedNewest());
+        Assert.assertEquals(0, publisher.droppedOldest());
+        Assert.assertEquals(Arrays.asList(OverflowPolicy.DROP_NEWEST, OverflowPolicy.DROP_NEWEST), overflows);
+
+        writeAll(publisher);
+        Assert.assertEquals(Arrays.asList("a", "b"), written);
+        Assert.assertEquals(0, publisher.queuedBytes());
+
+        // the space is free again once written
+        Assert.assertTrue(publisher.tryAdd(message("e")));
+    }
+
+    @Test
+    public void testDropOldestNeverDropsTheHighLane() {
+        final WireOutPublisher publisher = new WireOutPublisher(3, Long.MAX_VALUE, OverflowPolicy.DROP_OLDEST);
+        publisher.add(Priority.HIGH, message("high"));
+        publisher.add(message("a"));
+        publisher.add(Priority.LOW, message("low"));
+        publisher.add(message("b"));
+        publisher.add(message("c"));
+
+        Assert.assertEquals(2, publisher.droppedOldest());
+        Assert.assertEquals(0, publisher.droppedNewest());
+
+        writeAll(publisher);
+        Assert.assertEquals(Arrays.asList("high", "b", "c"), written);
+    }
+
+    @Test
+    public void testDisconnect() {
+        final WireOutPublisher publisher = new WireOutPublisher(1, Long.MAX_VALUE, OverflowPolicy.DISCONNECT);
+        final AtomicInteger overflows = new AtomicInteger();
+        publisher.overflowListener((p, policy) -> overflows.incrementAndGet());
+
+        publisher.add(message("a"));
+        Assert.assertFalse(publisher.disconnectRequested());
+        publisher.add(message("b"));
+
+        Assert.assertTrue(publisher.disconnectRequested());
+        Assert.assertTrue(publisher.isClosed());
+        Assert.assertEquals(1, publisher.droppedNewest());
+        Assert.assertEquals(1, overflows.get());
+    }
+
+    @Test
+    public void testTheByteBoundAppliesBeforeAnythingIsWritten() {
+        // each message is estimated as 300 bytes, so only 3 fit in 1000 bytes
+        final WireOutPublisher publisher = new WireOutPublisher(100, 1000, OverflowPolicy.DROP_NEWEST, 300);
+        for (int i = 0; i < 5; i++)
+            publisher.add(message("m" + i));
+
+        Assert.assertEquals(900, publisher.queuedBytes());
+        Assert.assertEquals(2, publisher.droppedNewest());
+
+        writeAll(publisher);
+        Assert.assertEquals(Arrays.asList("m0", "m1", "m2"), written);
+        Assert.assertEquals(0, publisher.queuedBytes());
+    }
+
+    @Test
+    public void testAMessageLargerThanTheByteBoundIsQueuedAlone() {
+        final WireOutPublisher publisher = new WireOutPublisher(100, 100, OverflowPolicy.DROP_NEWEST, 300);
+        Assert.assertTrue(publisher.tryAdd(message("large")));
+        Assert.assertFalse(publisher.tryAdd(message("next")));
+
+        writeAll(publisher);
+        Assert.assertEquals(Collections.singletonList("large"), written);
+    }
+
+    @Test
+    public void testBlockWaitsForTheEventLoop() throws InterruptedException {
+        final WireOutPublisher publisher = new WireOutPublisher(1, Long.MAX_VALUE, OverflowPolicy.BLOCK);
+        final AtomicInteger overflows = new AtomicInteger();
+        publisher.overflowListener((p, policy) -> overflows.incrementAndGet());
+        publisher.add(message("a"));
+
+        final CountDownLatch added = new CountDownLatch(1);
+        final Thread producer = new Thread(() -> {
+            publisher.add(message("b"));
+            added.countDown();
+        });
+        producer.start();
+
+        Assert.assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, publisher.blocked());
+
+        writeAll(publisher);
+        Assert.assertTrue(added.await(5, TimeUnit.SECONDS));
+        producer.join();
+        writeAll(publisher);
+
+        Assert.assertEquals(Arrays.asList("a", "b"), written);
+        Assert.assertEquals(1, publisher.blocked());
+        Assert.assertEquals(1, overflows.get());
+        Assert.assertEquals(0, publisher.droppedNewest());
+    }
+
+    @Test
+    public void testTryAddDoesNotBlock() {
+        final WireOutPublisher publisher = new WireOutPublisher(1, Long.MAX_VALUE, OverflowPolicy.BLOCK);
+        Assert.assertTrue(publisher.tryAdd(message("a")));
+        Assert.assertFalse(publisher.tryAdd(message("b")));
+        Assert.assertEquals(0, publisher.blocked());
+        Assert.assertEquals(1, publisher.droppedNewest());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTheEventLoopCannotBlock() {
+        final WireOutPublisher publisher = new WireOutPublisher(1, Long.MAX_VALUE, OverflowPolicy.BLOCK);
+        // this thread becomes the event loop
+        writeAll(publisher);
+        publisher.add(message("a"));
+        publisher.add(message("b"));
+    }
+
+    @Test
+    public void testConcurrentProducersNeverPassTheBound() throws InterruptedException {
+        final int maxMessages = 8;
+        // each message reserves one byte, so the bytes reserved are the messages queued
+        final WireOutPublisher publisher = new WireOutPublisher(maxMessages, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST, 1);
+        final int producers = 4;
+        final int perProducer = 10_000;
+        final AtomicInteger accepted = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            new Thread(() -> {
+                for (int i = 0; i < perProducer; i++)
+                    if (publisher.tryAdd(message("m")))
+                        accepted.incrementAndGet();
+                done.countDown();
+            }).start();
+        }
+
+        while (done.getCount() > 0) {
+            Assert.assertTrue(publisher.queuedBytes() <= maxMessages);
+            writeAll(publisher);
+        }
+        writeAll(publisher);
+
+        Assert.assertEquals(accepted.get(), written.size());
+        Assert.assertEquals(producers * perProducer, accepted.get() + publisher.droppedNewest());
+        Assert.assertEquals(0, publisher.queuedBytes());
+    }
+}